@@ -0,0 +1,107 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import startup.ConfigFile;
+
+/**
+ * Input data shared by the benchmarks. All data is generated from fixed
+ * seeds, so the runs of different releases see the same inputs.
+ */
+final class BenchmarkData {
+
+	/** PRG of the sharing instances */
+	static final String RANDOM_ALGORITHM = ConfigFile.DEFAULT_PRG;
+	/** the default field of the Shamir shares */
+	static final long FIELD_SIZE = Long.valueOf(ConfigFile.DEFAULT_FIELD);
+
+	private BenchmarkData() {
+	}
+
+
+	/**
+	 * @param i	the number of the element
+	 * @return	the i-th input element (an IPv4 address)
+	 */
+	static String element(int i) {
+		return "10." + ((i >>> 16) & 0xff) + "." + ((i >>> 8) & 0xff) + "." + (i & 0xff) + ":" + (i >>> 24);
+	}
+
+
+	/**
+	 * Writes an input file with one element per line.
+	 *
+	 * @param numberOfElements	number of elements
+	 * @return					the file, deleted on exit
+	 * @throws IOException
+	 */
+	static File createInputFile(int numberOfElements) throws IOException {
+		File file = File.createTempFile("bftsu-bench", ".txt");
+		file.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < numberOfElements; i++) {
+				writer.write(element(i));
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+
+	/**
+	 * Creates a counting Bloom filter vector as sent by an input peer: the
+	 * given number of elements hashed to random positions.
+	 *
+	 * @param length			the length of the filter
+	 * @param numberOfElements	number of set positions (with repetitions)
+	 * @param seed				the seed
+	 * @return					the filter
+	 */
+	static long[] randomFilter(int length, int numberOfElements, long seed) {
+		Random random = new Random(seed);
+		long[] filter = new long[length];
+		for (int i = 0; i < numberOfElements; i++) {
+			filter[random.nextInt(length)]++;
+		}
+		return filter;
+	}
+
+
+	/**
+	 * Creates a vector of random field elements, e.g., one row of shares.
+	 *
+	 * @param length	the length of the vector
+	 * @param seed		the seed
+	 * @return			the vector
+	 */
+	static long[] randomShares(int length, long seed) {
+		Random random = new Random(seed);
+		long[] shares = new long[length];
+		for (int i = 0; i < length; i++) {
+			shares[i] = (random.nextLong() >>> 1) % FIELD_SIZE;
+		}
+		return shares;
+	}
+}
@@ -0,0 +1,122 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuHashStrategy;
+import mpc.bftsu.BftsuInputIndex;
+import mpc.bftsu.BftsuInputReader;
+import services.BloomFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Construction of the Bloom filter of an input peer from its input file:
+ * line by line into a {@link BloomFilter} (the original SEPIA input peer),
+ * read by the line reader of the default input mode, and memory-mapped with
+ * and without the index of the input pass. The index needs a MurmurHash3
+ * strategy; with the default strategy its benchmark only reads the input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BloomFilterBenchmark {
+
+	@Param({ "65536", "1048576" })
+	public int filterSize;
+
+	@Param({ "3", "7" })
+	public int hashCount;
+
+	@Param({ "100000", "1000000" })
+	public int elements;
+
+	@Param({ BftsuHashStrategy.SEPIA, BftsuHashStrategy.MURMUR3 })
+	public String strategy;
+
+	private File inputFile;
+	private BftsuInputReader reader;
+	private boolean indexable;
+
+
+	@Setup
+	public void setUp() throws IOException {
+		inputFile = BenchmarkData.createInputFile(elements);
+		reader = new BftsuInputReader(BftsuHashStrategy.getInstance(strategy), hashCount,
+				BloomFilter.getNextPowerOfTwo(filterSize), Runtime.getRuntime().availableProcessors());
+		indexable = BftsuHashStrategy.getInstance(strategy).hashesBytes();
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		reader.shutdown();
+		inputFile.delete();
+	}
+
+
+	@Benchmark
+	public int[] lineInput() throws IOException {
+		BloomFilter bf = new BloomFilter(hashCount, filterSize, true);
+		BufferedReader br = new BufferedReader(new FileReader(inputFile));
+		try {
+			String elem = null;
+			while (null != (elem = br.readLine())) {
+				bf.insert(elem);
+			}
+		} finally {
+			br.close();
+		}
+		return bf.getArray();
+	}
+
+
+	@Benchmark
+	public long[] sequentialInput() throws IOException {
+		return reader.readSequentially(inputFile).getArray();
+	}
+
+
+	@Benchmark
+	public long[] mappedInput() throws IOException {
+		return reader.read(inputFile).getArray();
+	}
+
+
+	@Benchmark
+	public BftsuInputIndex mappedInputWithIndex() throws IOException {
+		if (!indexable) {
+			reader.read(inputFile);
+			return null;
+		}
+		BftsuInputIndex index = new BftsuInputIndex(hashCount, inputFile);
+		reader.read(inputFile, index);
+		return index;
+	}
+}
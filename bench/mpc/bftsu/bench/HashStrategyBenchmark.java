@@ -0,0 +1,95 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuHashStrategy;
+import services.BloomFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Elements per second of the opt-in MurmurHash3 strategies (see
+ * {@link BftsuHashStrategy}). The elements are hashed from a direct buffer,
+ * like the mapped input file. The default strategy has no byte-level
+ * positions; see {@link BloomFilterBenchmark} for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HashStrategyBenchmark {
+
+	private static final int ELEMENTS = 1 << 16;
+
+	@Param({ BftsuHashStrategy.MURMUR3, BftsuHashStrategy.MURMUR3_128_DOUBLE })
+	public String strategy;
+
+	@Param({ "1048576" })
+	public int filterSize;
+
+	@Param({ "3", "7", "12" })
+	public int hashCount;
+
+	private BftsuHashStrategy hashStrategy;
+	private ByteBuffer buffer;
+	/** element i is [bounds[i], bounds[i+1]) */
+	private int[] bounds;
+	private int[] positions;
+	private int mask;
+
+
+	@Setup
+	public void setUp() {
+		hashStrategy = BftsuHashStrategy.getInstance(strategy);
+		bounds = new int[ELEMENTS + 1];
+		byte[][] elements = new byte[ELEMENTS][];
+		int length = 0;
+		for (int i = 0; i < ELEMENTS; i++) {
+			elements[i] = BenchmarkData.element(i).getBytes();
+			length += elements[i].length;
+		}
+		buffer = ByteBuffer.allocateDirect(length);
+		for (int i = 0; i < ELEMENTS; i++) {
+			bounds[i] = buffer.position();
+			buffer.put(elements[i]);
+		}
+		bounds[ELEMENTS] = buffer.position();
+		positions = new int[hashCount];
+		mask = BloomFilter.getNextPowerOfTwo(filterSize) - 1;
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(ELEMENTS)
+	public int hashElements() {
+		int sum = 0;
+		for (int i = 0; i < ELEMENTS; i++) {
+			hashStrategy.getPositions(buffer, bounds[i], bounds[i + 1], hashCount, mask, positions, 0);
+			sum += positions[hashCount - 1];
+		}
+		return sum;
+	}
+}
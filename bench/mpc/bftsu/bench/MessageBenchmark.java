@@ -0,0 +1,177 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuCodec;
+import mpc.bftsu.BftsuMessage;
+import mpc.bftsu.BftsuShareBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serialization of {@link BftsuMessage}s: the initial shares sent by an input
+ * peer (read into an array or off-heap), and the fan-out of the final result
+ * of a privacy peer to all input peers, encoded once for all messages or once
+ * per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MessageBenchmark {
+
+	@Param({ "65536", "1048576" })
+	public int filterSize;
+
+	@Param({ "10", "100" })
+	public int inputPeers;
+
+	/** percentage of the positions set in the final result */
+	@Param({ "1", "50" })
+	public int resultDensity;
+
+	private long[] shares;
+	private byte[] serializedShares;
+	private long[] results;
+
+
+	@Setup
+	public void setUp() throws IOException {
+		shares = BenchmarkData.randomShares(filterSize, 1);
+		serializedShares = serialize(createSharesMessage());
+		Random random = new Random(2);
+		results = new long[filterSize];
+		for (int i = 0; i < filterSize; i++) {
+			results[i] = (random.nextInt(100) < resultDensity) ? 1 : 0;
+		}
+	}
+
+
+	@Benchmark
+	public long writeInitialShares() throws IOException {
+		return write(createSharesMessage());
+	}
+
+
+	@Benchmark
+	public long[] readInitialShares() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedShares));
+		return ((BftsuMessage) in.readObject()).getInitialShares();
+	}
+
+
+	@Benchmark
+	public long readInitialSharesOffHeap() throws IOException, ClassNotFoundException {
+		BftsuMessage.setReadSharesOffHeap(true);
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedShares));
+			BftsuShareBuffer buffer = ((BftsuMessage) in.readObject()).getShareBuffer();
+			long first = buffer.get(0);
+			buffer.release();
+			return first;
+		} finally {
+			BftsuMessage.setReadSharesOffHeap(false);
+		}
+	}
+
+
+	@Benchmark
+	public long finalResultEncodedOnce() throws IOException {
+		byte[] encodedResults = BftsuCodec.encodeAdaptive(results);
+		long bytes = 0;
+		for (int i = 0; i < inputPeers; i++) {
+			BftsuMessage message = createResultMessage();
+			message.setEncodedResults(encodedResults);
+			bytes += write(message);
+		}
+		return bytes;
+	}
+
+
+	@Benchmark
+	public long finalResultEncodedPerMessage() throws IOException {
+		long bytes = 0;
+		for (int i = 0; i < inputPeers; i++) {
+			BftsuMessage message = createResultMessage();
+			message.setResults(results);
+			bytes += write(message);
+		}
+		return bytes;
+	}
+
+
+	private BftsuMessage createSharesMessage() {
+		BftsuMessage message = new BftsuMessage("inputpeer", 0);
+		message.setIsInitialSharesMessage(true);
+		message.setShares(shares);
+		message.setSharesOffset(0);
+		message.setIsLastSharesChunk(true);
+		return message;
+	}
+
+
+	private BftsuMessage createResultMessage() {
+		BftsuMessage message = new BftsuMessage("privacypeer", 0);
+		message.setIsFinalResultMessage(true);
+		return message;
+	}
+
+
+	private static byte[] serialize(BftsuMessage message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * Serializes a message like a connection would, without keeping the bytes.
+	 *
+	 * @return	the number of bytes written
+	 */
+	private static long write(BftsuMessage message) throws IOException {
+		final long[] count = new long[1];
+		ObjectOutputStream out = new ObjectOutputStream(new OutputStream() {
+			public void write(int b) {
+				count[0]++;
+			}
+
+			public void write(byte[] b, int off, int len) {
+				count[0] += len;
+			}
+		});
+		out.writeObject(message);
+		out.close();
+		return count[0];
+	}
+}
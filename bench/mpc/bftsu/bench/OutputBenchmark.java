@@ -0,0 +1,105 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuBloomFilter;
+import mpc.bftsu.BftsuHashStrategy;
+import mpc.bftsu.BftsuInputIndex;
+import mpc.bftsu.BftsuInputReader;
+import services.BloomFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Writing the output of an input peer: the elements of the input file that
+ * pass the reconstructed filter, found by hashing the input again or through
+ * the index of the input pass (<code>mpc.bftsu.input.index</code>).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutputBenchmark {
+
+	@Param({ "1048576" })
+	public int filterSize;
+
+	@Param({ "3", "7" })
+	public int hashCount;
+
+	@Param({ "100000", "1000000" })
+	public int elements;
+
+	/** one out of this many input elements is in the result */
+	@Param({ "10" })
+	public int resultFraction;
+
+	private File inputFile;
+	private File outputFile;
+	private BftsuInputReader reader;
+	private BftsuInputIndex index;
+	private BftsuBloomFilter result;
+
+
+	@Setup
+	public void setUp() throws IOException {
+		BftsuHashStrategy hashStrategy = BftsuHashStrategy.getDefault();
+		int length = BloomFilter.getNextPowerOfTwo(filterSize);
+		inputFile = BenchmarkData.createInputFile(elements);
+		outputFile = File.createTempFile("bftsu-bench", ".csv");
+		outputFile.deleteOnExit();
+		reader = new BftsuInputReader(hashStrategy, hashCount, length, Runtime.getRuntime().availableProcessors());
+		index = new BftsuInputIndex(hashCount, inputFile);
+		reader.read(inputFile, index);
+		result = new BftsuBloomFilter(hashStrategy, hashCount, length);
+		for (int i = 0; i < elements; i += resultFraction) {
+			result.insert(BenchmarkData.element(i).getBytes());
+		}
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		reader.shutdown();
+		inputFile.delete();
+		outputFile.delete();
+	}
+
+
+	@Benchmark
+	public long rehashInput() throws IOException {
+		reader.writeMatchingLines(inputFile, result, outputFile);
+		return outputFile.length();
+	}
+
+
+	@Benchmark
+	public long indexedInput() throws IOException {
+		index.writeMatchingLines(inputFile, result, outputFile);
+		return outputFile.length();
+	}
+}
@@ -0,0 +1,69 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuInterpolation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Reconstruction of the result of a privacy peer from the result shares of
+ * all privacy peers ({@link BftsuInterpolation}), in cells per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReconstructionBenchmark {
+
+	/** number of cells reconstructed per invocation */
+	private static final int CELLS = 1 << 16;
+
+	@Param({ "3", "5", "7" })
+	public int privacyPeers;
+
+	private BftsuInterpolation interpolation;
+	private long[][] resultShares;
+	private int[] alphaIndices;
+
+
+	@Setup
+	public void setUp() {
+		interpolation = new BftsuInterpolation(BenchmarkData.FIELD_SIZE);
+		resultShares = new long[privacyPeers][];
+		alphaIndices = new int[privacyPeers];
+		for (int i = 0; i < privacyPeers; i++) {
+			resultShares[i] = BenchmarkData.randomShares(CELLS, 100 + i);
+			alphaIndices[i] = i;
+		}
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public long[] reconstruct() {
+		return interpolation.interpolate(resultShares, alphaIndices);
+	}
+}
@@ -0,0 +1,100 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuRoundState;
+import mpc.protocolPrimitives.Primitives;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-round setup of a privacy peer: creating the primitives and the
+ * {@link BftsuRoundState} for a new set of peers, compared to checking that
+ * the peers are the same and reusing the state of the last round.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoundSetupBenchmark {
+
+	@Param({ "3", "5", "7" })
+	public int privacyPeers;
+
+	@Param({ "10", "100" })
+	public int inputPeers;
+
+	private List<String> privacyPeerIDs;
+	private List<String> inputPeerIDs;
+	private BftsuRoundState roundState;
+
+
+	@Setup
+	public void setUp() {
+		privacyPeerIDs = new ArrayList<String>();
+		for (int i = 1; i < privacyPeers; i++) {
+			privacyPeerIDs.add("privacypeer" + i);
+		}
+		inputPeerIDs = new ArrayList<String>();
+		for (int i = 0; i < inputPeers; i++) {
+			inputPeerIDs.add("inputpeer" + i);
+		}
+		roundState = newRoundState();
+	}
+
+
+	@Benchmark
+	public BftsuRoundState newPeers() {
+		return newRoundState();
+	}
+
+
+	@Benchmark
+	public Primitives samePeers() {
+		if (roundState.hasPeers(privacyPeerIDs, inputPeerIDs)) {
+			return roundState.getPrimitives();
+		}
+		throw new IllegalStateException("Peers changed");
+	}
+
+
+	private BftsuRoundState newRoundState() {
+		List<String> ids = new ArrayList<String>(privacyPeerIDs);
+		ids.add("privacypeer0");
+		Collections.sort(ids);
+		Map<String, Integer> ppIndexMap = new HashMap<String, Integer>();
+		for (int i = 0; i < ids.size(); i++) {
+			ppIndexMap.put(ids.get(i), i);
+		}
+		int myAlphaIndex = ppIndexMap.get("privacypeer0");
+		Primitives primitives = new Primitives(BenchmarkData.RANDOM_ALGORITHM, BenchmarkData.FIELD_SIZE, -1,
+				privacyPeers, myAlphaIndex, privacyPeers - 1);
+		return new BftsuRoundState(privacyPeerIDs, inputPeerIDs, ppIndexMap, primitives);
+	}
+}
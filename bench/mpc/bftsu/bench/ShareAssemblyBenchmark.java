@@ -0,0 +1,96 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mpc.bftsu.BftsuPeerInfo;
+import mpc.bftsu.BftsuShareAccumulator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Assembling the input of the threshold union of a privacy peer from the
+ * received shares: as rows, or summed up with a {@link BftsuShareAccumulator}.
+ * The union itself needs the connected privacy peers and is not covered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShareAssemblyBenchmark {
+
+	@Param({ "65536", "1048576" })
+	public int filterSize;
+
+	@Param({ "5", "20" })
+	public int inputPeers;
+
+	private BftsuPeerInfo[] peerInfos;
+	private BftsuShareAccumulator accumulator;
+
+
+	@Setup
+	public void setUp() {
+		peerInfos = new BftsuPeerInfo[inputPeers];
+		for (int i = 0; i < inputPeers; i++) {
+			peerInfos[i] = new BftsuPeerInfo("inputpeer" + i, i);
+			peerInfos[i].setInitialShares(BenchmarkData.randomShares(filterSize, i));
+		}
+		accumulator = new BftsuShareAccumulator(BenchmarkData.FIELD_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		accumulator.shutdown();
+	}
+
+
+	/**
+	 * Collects the share rows of all input peers, as done by
+	 * <code>BftsuPrivacyPeer.startBftsu()</code>.
+	 */
+	@Benchmark
+	public long[][] assembleRows() {
+		long[][] data = new long[inputPeers][];
+		for (int i = 0; i < inputPeers; i++) {
+			data[i] = peerInfos[i].getInitialShares();
+		}
+		return data;
+	}
+
+
+	/**
+	 * Sums up the share vectors of all input peers
+	 * (<code>mpc.bftsu.incrementalsum</code>).
+	 */
+	@Benchmark
+	public long[][] incrementalSum() throws InterruptedException {
+		accumulator.reset(filterSize);
+		for (int i = 0; i < inputPeers; i++) {
+			accumulator.add(peerInfos[i].getInitialShares(), 0);
+		}
+		return accumulator.getSum();
+	}
+}
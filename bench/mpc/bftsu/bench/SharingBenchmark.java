@@ -0,0 +1,83 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import mpc.ShamirSharing;
+import mpc.bftsu.BftsuShareGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Sharing the Bloom filter of an input peer: a single {@link ShamirSharing}
+ * instance and the parallel {@link BftsuShareGenerator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SharingBenchmark {
+
+	@Param({ "65536", "1048576" })
+	public int filterSize;
+
+	@Param({ "3", "5", "7" })
+	public int privacyPeers;
+
+	private long[] secrets;
+	private ShamirSharing sharing;
+	private BftsuShareGenerator generator;
+
+
+	@Setup
+	public void setUp() {
+		secrets = BenchmarkData.randomFilter(filterSize, filterSize / 4, 1);
+		sharing = new ShamirSharing();
+		sharing.setRandomAlgorithm(BenchmarkData.RANDOM_ALGORITHM);
+		sharing.setFieldSize(BenchmarkData.FIELD_SIZE);
+		sharing.setNumberOfPrivacyPeers(privacyPeers);
+		sharing.init();
+		generator = new BftsuShareGenerator(BenchmarkData.RANDOM_ALGORITHM, BenchmarkData.FIELD_SIZE, -1,
+				Runtime.getRuntime().availableProcessors());
+		generator.setNumberOfPrivacyPeers(privacyPeers);
+	}
+
+
+	@TearDown
+	public void tearDown() {
+		generator.shutdown();
+	}
+
+
+	@Benchmark
+	public long[][] shamirSharing() {
+		return sharing.generateShares(secrets);
+	}
+
+
+	@Benchmark
+	public long[][] shareGenerator() {
+		return generator.generateShares(secrets);
+	}
+}
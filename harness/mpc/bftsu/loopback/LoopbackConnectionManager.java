@@ -0,0 +1,125 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.loopback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import connections.ConnectionManager;
+import connections.PrivacyPeerAddress;
+import connections.PrivacyViolationException;
+
+/**
+ * Stands in for the socket based connection manager of a peer: the messages
+ * are sent over a {@link LoopbackNetwork}. All peers of the network are
+ * always connected.
+ */
+public class LoopbackConnectionManager extends ConnectionManager {
+
+	private LoopbackNetwork network;
+	private String myID;
+	private boolean isPrivacyPeer;
+
+
+	/**
+	 * Creates the connection manager of a peer (see
+	 * {@link LoopbackNetwork#addPeer(String, boolean)}).
+	 *
+	 * @param network		the network
+	 * @param myID			the ID of the peer
+	 * @param isPrivacyPeer	true for a privacy peer
+	 */
+	LoopbackConnectionManager(LoopbackNetwork network, String myID, boolean isPrivacyPeer) {
+		super(myID, new ArrayList<PrivacyPeerAddress>(), null);
+		this.network = network;
+		this.myID = myID;
+		this.isPrivacyPeer = isPrivacyPeer;
+	}
+
+
+	/**
+	 * Nothing to establish: all peers of the network are connected.
+	 */
+	public void establishConnections() {
+	}
+
+
+	public void waitForConnections() {
+	}
+
+
+	public void activateTemporaryConnections() {
+	}
+
+
+	/**
+	 * Returns the IDs of the connected peers of one kind, without this peer.
+	 *
+	 * @param privacyPeers	true for the privacy peers, false for the input peers
+	 * @return				the IDs
+	 */
+	public List<String> getActivePeers(boolean privacyPeers) {
+		List<String> ids = privacyPeers ? network.getPrivacyPeerIDs() : (isPrivacyPeer ? network.getInputPeerIDs() : new ArrayList<String>());
+		ids.remove(myID);
+		return ids;
+	}
+
+
+	public List<String> getConfiguredPrivacyPeerIDs() {
+		return network.getPrivacyPeerIDs();
+	}
+
+
+	public int getNumberOfConnectedPeers(boolean privacyPeers, boolean inputPeers) {
+		int count = 0;
+		if (privacyPeers) {
+			count += getActivePeers(true).size();
+		}
+		if (inputPeers) {
+			count += getActivePeers(false).size();
+		}
+		return count;
+	}
+
+
+	public void sendMessage(String recipientID, Object message) throws PrivacyViolationException {
+		try {
+			network.send(myID, recipientID, message);
+		} catch (IOException e) {
+			throw new IllegalStateException("Sending to " + recipientID + " failed: " + e.getMessage(), e);
+		}
+	}
+
+
+	/**
+	 * Receives the next message of a peer. Returns null if the thread is
+	 * interrupted, like the connection manager does for a disconnected peer.
+	 *
+	 * @param senderID	the ID of the sender
+	 * @return			the message (null if interrupted)
+	 */
+	public Object receiveMessage(String senderID) throws PrivacyViolationException {
+		try {
+			return network.receive(myID, senderID);
+		} catch (IOException e) {
+			throw new IllegalStateException("Receiving from " + senderID + " failed: " + e.getMessage(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
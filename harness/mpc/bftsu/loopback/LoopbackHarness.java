@@ -0,0 +1,316 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.loopback;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Properties;
+import java.util.Random;
+
+import mpc.bftsu.BftsuBase;
+import mpc.bftsu.BftsuPeer;
+import mpc.bftsu.BftsuPrivacyPeer;
+import services.Stopper;
+import startup.ConfigFile;
+import events.ExceptionEvent;
+
+/**
+ * Runs input peers and privacy peers in one JVM, connected by a
+ * {@link LoopbackNetwork}, and reports the time per phase, the bytes
+ * exchanged and the time slots per second.
+ * <p>
+ * Usage: <code>LoopbackHarness &lt;config file&gt; &lt;input peers&gt;
+ * &lt;privacy peers&gt; [latency in ms] [bandwidth in Mbit/s]</code>
+ * <p>
+ * The config file is a usual bftsu config file; the peer IDs, the input and
+ * output folders and the minimum numbers of peers are set per peer. The input
+ * files are generated: every input peer gets {@value #PROP_ELEMENTS}
+ * elements per time slot, drawn from {@value #PROP_UNIVERSE} different ones,
+ * so elements exceed the threshold when the universe is small enough.
+ */
+public class LoopbackHarness {
+
+	/** elements per input peer and time slot */
+	public static final String PROP_ELEMENTS = "loopback.elements";
+	/** number of different elements (default: twice the elements per slot) */
+	public static final String PROP_UNIVERSE = "loopback.universe";
+	/** seconds to wait for all peers to finish */
+	public static final String PROP_TIMEOUT = "loopback.timeout";
+
+	private Properties baseProperties;
+	private int numberOfInputPeers;
+	private int numberOfPrivacyPeers;
+	private int timeSlotCount;
+	private LoopbackNetwork network;
+	private File workFolder;
+	private List<BftsuBase> inputPeers = new ArrayList<BftsuBase>();
+	private List<BftsuBase> privacyPeers = new ArrayList<BftsuBase>();
+	private volatile String failure = null;
+	private long startTime;
+	private long endTime;
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: LoopbackHarness <config file> <input peers> <privacy peers> [latency in ms] [bandwidth in Mbit/s]");
+			System.exit(2);
+		}
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		double latency = (args.length > 3) ? Double.valueOf(args[3]) : 0;
+		double bandwidth = (args.length > 4) ? Double.valueOf(args[4]) : 0;
+		LoopbackHarness harness = new LoopbackHarness(properties, Integer.valueOf(args[1]), Integer.valueOf(args[2]),
+				new LoopbackNetwork(latency, bandwidth));
+		boolean successful = harness.run();
+		harness.printReport();
+		System.out.println("Latency: " + latency + " ms, bandwidth: " + (bandwidth > 0 ? bandwidth + " Mbit/s" : "unlimited"));
+		System.exit(successful ? 0 : 1);
+	}
+
+
+	/**
+	 * Creates a new harness.
+	 *
+	 * @param baseProperties		the properties shared by all peers
+	 * @param numberOfInputPeers	number of input peers
+	 * @param numberOfPrivacyPeers	number of privacy peers
+	 * @param network				the network connecting the peers
+	 */
+	public LoopbackHarness(Properties baseProperties, int numberOfInputPeers, int numberOfPrivacyPeers, LoopbackNetwork network) {
+		this.baseProperties = baseProperties;
+		this.numberOfInputPeers = numberOfInputPeers;
+		this.numberOfPrivacyPeers = numberOfPrivacyPeers;
+		this.network = network;
+		this.timeSlotCount = Integer.valueOf(baseProperties.getProperty(ConfigFile.PROP_NUMBER_OF_TIME_SLOTS));
+	}
+
+
+	/**
+	 * Generates the input, starts all peers and waits until they processed
+	 * all time slots.
+	 *
+	 * @return	true if all peers finished without errors
+	 * @throws Exception
+	 */
+	public boolean run() throws Exception {
+		workFolder = File.createTempFile("bftsu-loopback", "");
+		workFolder.delete();
+		workFolder.mkdirs();
+
+		// all peers have to be known to the network before the first one starts
+		List<LoopbackConnectionManager> ppConnections = new ArrayList<LoopbackConnectionManager>();
+		List<LoopbackConnectionManager> ipConnections = new ArrayList<LoopbackConnectionManager>();
+		for (int i = 0; i < numberOfPrivacyPeers; i++) {
+			ppConnections.add(network.addPeer(getPeerID(true, i), true));
+		}
+		for (int i = 0; i < numberOfInputPeers; i++) {
+			ipConnections.add(network.addPeer(getPeerID(false, i), false));
+		}
+		for (int i = 0; i < numberOfInputPeers; i++) {
+			generateInput(i);
+		}
+
+		Observer observer = new Observer() {
+			public void update(Observable observable, Object object) {
+				if (object instanceof ExceptionEvent && failure == null) {
+					failure = ((ExceptionEvent) object).getMessage();
+				}
+			}
+		};
+		for (int i = 0; i < numberOfPrivacyPeers; i++) {
+			BftsuPrivacyPeer peer = new BftsuPrivacyPeer(i, ppConnections.get(i), new Stopper());
+			peer.setProperties(getProperties(true, i));
+			peer.addObserver(observer);
+			peer.initialize();
+			privacyPeers.add(peer);
+		}
+		for (int i = 0; i < numberOfInputPeers; i++) {
+			BftsuPeer peer = new BftsuPeer(i, ipConnections.get(i), new Stopper());
+			peer.setProperties(getProperties(false, i));
+			peer.addObserver(observer);
+			peer.initialize();
+			inputPeers.add(peer);
+		}
+
+		startTime = System.nanoTime();
+		for (final BftsuBase peer : privacyPeers) {
+			start(peer);
+		}
+		for (final BftsuBase peer : inputPeers) {
+			start(peer);
+		}
+
+		long timeout = Long.valueOf(baseProperties.getProperty(PROP_TIMEOUT, "600")) * 1000000000L;
+		while (failure == null && !allDone()) {
+			if (System.nanoTime() - startTime > timeout) {
+				failure = "Timeout";
+				break;
+			}
+			Thread.sleep(20);
+		}
+		endTime = System.nanoTime();
+		return failure == null;
+	}
+
+
+	/**
+	 * Prints the time slots per second, the time per phase and the traffic.
+	 */
+	public void printReport() {
+		double seconds = (endTime - startTime) / 1e9;
+		System.out.println(numberOfInputPeers + " input peers, " + numberOfPrivacyPeers + " privacy peers, "
+				+ timeSlotCount + " time slots");
+		if (failure != null) {
+			System.out.println("FAILED: " + failure);
+		}
+		System.out.println(String.format(Locale.ROOT, "Total time: %.3f s, %.3f time slots/s", seconds, timeSlotCount / seconds));
+
+		System.out.println("Time per phase (ms, mean over the peers):");
+		StringBuilder header = new StringBuilder(String.format("  %-14s", ""));
+		for (BftsuBase.Phase phase : BftsuBase.Phase.values()) {
+			if (phase != BftsuBase.Phase.DONE) {
+				header.append(String.format("%14s", phase));
+			}
+		}
+		System.out.println(header);
+		printPhaseTimes("input peers", inputPeers);
+		printPhaseTimes("privacy peers", privacyPeers);
+
+		System.out.println("Traffic:");
+		printTraffic("input -> privacy", false, true);
+		printTraffic("privacy -> privacy", true, true);
+		printTraffic("privacy -> input", true, false);
+	}
+
+
+	private void printPhaseTimes(String name, List<BftsuBase> peers) {
+		StringBuilder line = new StringBuilder(String.format("  %-14s", name));
+		long[] sums = new long[BftsuBase.Phase.values().length];
+		for (BftsuBase peer : peers) {
+			long[] times = peer.getPhaseTimes();
+			for (int i = 0; i < sums.length; i++) {
+				sums[i] += times[i];
+			}
+		}
+		for (BftsuBase.Phase phase : BftsuBase.Phase.values()) {
+			if (phase != BftsuBase.Phase.DONE) {
+				line.append(String.format("%14d", sums[phase.ordinal()] / Math.max(1, peers.size())));
+			}
+		}
+		System.out.println(line);
+	}
+
+
+	private void printTraffic(String name, boolean fromPrivacyPeers, boolean toPrivacyPeers) {
+		System.out.println(String.format(Locale.ROOT, "  %-20s %,16d bytes %,10d messages", name,
+				network.getBytes(fromPrivacyPeers, toPrivacyPeers), network.getMessages(fromPrivacyPeers, toPrivacyPeers)));
+	}
+
+
+	private boolean allDone() {
+		for (BftsuBase peer : privacyPeers) {
+			if (peer.getPhase() != BftsuBase.Phase.DONE) {
+				return false;
+			}
+		}
+		for (BftsuBase peer : inputPeers) {
+			if (peer.getPhase() != BftsuBase.Phase.DONE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	private void start(final BftsuBase peer) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					if (peer instanceof BftsuPeer) {
+						((BftsuPeer) peer).runProtocol();
+					} else {
+						((BftsuPrivacyPeer) peer).runProtocol();
+					}
+				} catch (Exception e) {
+					failure = peer.getMyPeerID() + ": " + e;
+				}
+			}
+		}, "Loopback " + peer.getMyPeerID());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	private static String getPeerID(boolean privacyPeer, int index) {
+		return (privacyPeer ? "pp" : "ip") + (index + 1);
+	}
+
+
+	private File getFolder(boolean privacyPeer, int index, String name) {
+		File folder = new File(new File(workFolder, getPeerID(privacyPeer, index)), name);
+		folder.mkdirs();
+		return folder;
+	}
+
+
+	private Properties getProperties(boolean privacyPeer, int index) {
+		Properties properties = new Properties();
+		properties.putAll(baseProperties);
+		properties.setProperty(ConfigFile.PROP_MY_PEER_ID, getPeerID(privacyPeer, index));
+		properties.setProperty(ConfigFile.PROP_INPUT_DIR, getFolder(privacyPeer, index, "input").getPath());
+		properties.setProperty(ConfigFile.PROP_OUTPUT_DIR, getFolder(privacyPeer, index, "output").getPath());
+		properties.setProperty(ConfigFile.PROP_MIN_INPUTPEERS, String.valueOf(numberOfInputPeers));
+		properties.setProperty(ConfigFile.PROP_MIN_PRIVACYPEERS, String.valueOf(numberOfPrivacyPeers));
+		return properties;
+	}
+
+
+	/**
+	 * Writes the input files of all time slots of an input peer.
+	 */
+	private void generateInput(int index) throws IOException {
+		int elements = Integer.valueOf(baseProperties.getProperty(PROP_ELEMENTS, "10000"));
+		int universe = Integer.valueOf(baseProperties.getProperty(PROP_UNIVERSE, String.valueOf(2 * elements)));
+		File folder = getFolder(false, index, "input");
+		for (int slot = 1; slot <= timeSlotCount; slot++) {
+			Random random = new Random(31L * index + slot);
+			File file = new File(folder, String.format("slot%06d.txt", slot));
+			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			try {
+				for (int i = 0; i < elements; i++) {
+					writer.write("element" + random.nextInt(universe));
+					writer.write('\n');
+				}
+			} finally {
+				writer.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,233 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu.loopback;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory network between the peers of one JVM. Every message is
+ * serialized like on a real connection (so the peers never share arrays, and
+ * the bytes can be counted) and put into the queue of its directed link.
+ * <p>
+ * A link can simulate a one-way latency and a bandwidth limit: the messages
+ * of a link are transmitted one after another at the given rate, and each
+ * arrives after the latency.
+ */
+public class LoopbackNetwork {
+
+	/** the one-way latency of a link (ns) */
+	private long latency;
+	/** the bandwidth of a link (bytes per second, 0: unlimited) */
+	private long bandwidth;
+
+	/** the IDs of all privacy peers */
+	private final List<String> privacyPeerIDs = new ArrayList<String>();
+	/** the IDs of all input peers */
+	private final List<String> inputPeerIDs = new ArrayList<String>();
+	/** the directed links, by "sender recipient" */
+	private final Map<String, Link> links = new ConcurrentHashMap<String, Link>();
+
+
+	/**
+	 * A message on its way.
+	 */
+	private static class Delivery {
+		/** the serialized message */
+		byte[] data;
+		/** when the message arrives (ns) */
+		long arrivalTime;
+	}
+
+
+	/**
+	 * A directed link between two peers.
+	 */
+	private static class Link {
+		final BlockingQueue<Delivery> queue = new LinkedBlockingQueue<Delivery>();
+		/** when the last message is transmitted (ns) */
+		long busyUntil = 0;
+		long bytes = 0;
+		long messages = 0;
+	}
+
+
+	/**
+	 * Creates a new network.
+	 *
+	 * @param latencyMillis		one-way latency of a link in ms
+	 * @param bandwidthMbits	bandwidth of a link in Mbit/s (0: unlimited)
+	 */
+	public LoopbackNetwork(double latencyMillis, double bandwidthMbits) {
+		this.latency = (long) (latencyMillis * 1000000);
+		this.bandwidth = (long) (bandwidthMbits * 1000000 / 8);
+	}
+
+
+	/**
+	 * Adds a peer to the network. All peers have to be added before the
+	 * first one starts.
+	 *
+	 * @param id			the ID of the peer
+	 * @param privacyPeer	true for a privacy peer, false for an input peer
+	 * @return				the connection manager of the peer
+	 */
+	public synchronized LoopbackConnectionManager addPeer(String id, boolean privacyPeer) {
+		List<String> ids = privacyPeer ? privacyPeerIDs : inputPeerIDs;
+		ids.add(id);
+		Collections.sort(ids);
+		return new LoopbackConnectionManager(this, id, privacyPeer);
+	}
+
+
+	/**
+	 * @return the IDs of all privacy peers (sorted)
+	 */
+	public synchronized List<String> getPrivacyPeerIDs() {
+		return new ArrayList<String>(privacyPeerIDs);
+	}
+
+
+	/**
+	 * @return the IDs of all input peers (sorted)
+	 */
+	public synchronized List<String> getInputPeerIDs() {
+		return new ArrayList<String>(inputPeerIDs);
+	}
+
+
+	/**
+	 * Sends a message.
+	 *
+	 * @param senderID		the ID of the sender
+	 * @param recipientID	the ID of the recipient
+	 * @param message		the message (serializable)
+	 * @throws IOException	if the message cannot be serialized
+	 */
+	public void send(String senderID, String recipientID, Object message) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		Delivery delivery = new Delivery();
+		delivery.data = bytes.toByteArray();
+		Link link = getLink(senderID, recipientID);
+		synchronized (link) {
+			long start = Math.max(System.nanoTime(), link.busyUntil);
+			long transmission = (bandwidth > 0) ? delivery.data.length * 1000000000L / bandwidth : 0;
+			link.busyUntil = start + transmission;
+			delivery.arrivalTime = link.busyUntil + latency;
+			link.bytes += delivery.data.length;
+			link.messages++;
+		}
+		link.queue.add(delivery);
+	}
+
+
+	/**
+	 * Receives the next message of a sender, waiting until it arrives.
+	 *
+	 * @param recipientID	the ID of the recipient
+	 * @param senderID		the ID of the sender
+	 * @return				the message
+	 * @throws IOException	if the message cannot be deserialized
+	 * @throws InterruptedException
+	 */
+	public Object receive(String recipientID, String senderID) throws IOException, InterruptedException {
+		Delivery delivery = getLink(senderID, recipientID).queue.take();
+		long wait = delivery.arrivalTime - System.nanoTime();
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(delivery.data));
+		try {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown message class: " + e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Returns the number of bytes sent over all links between two groups of
+	 * peers.
+	 *
+	 * @param fromPrivacyPeers	true for the links starting at a privacy peer
+	 * @param toPrivacyPeers	true for the links ending at a privacy peer
+	 * @return					the number of bytes
+	 */
+	public long getBytes(boolean fromPrivacyPeers, boolean toPrivacyPeers) {
+		return sum(fromPrivacyPeers, toPrivacyPeers, true);
+	}
+
+
+	/**
+	 * Returns the number of messages sent over all links between two groups
+	 * of peers.
+	 *
+	 * @param fromPrivacyPeers	true for the links starting at a privacy peer
+	 * @param toPrivacyPeers	true for the links ending at a privacy peer
+	 * @return					the number of messages
+	 */
+	public long getMessages(boolean fromPrivacyPeers, boolean toPrivacyPeers) {
+		return sum(fromPrivacyPeers, toPrivacyPeers, false);
+	}
+
+
+	private long sum(boolean fromPrivacyPeers, boolean toPrivacyPeers, boolean bytes) {
+		List<String> senders = fromPrivacyPeers ? getPrivacyPeerIDs() : getInputPeerIDs();
+		List<String> recipients = toPrivacyPeers ? getPrivacyPeerIDs() : getInputPeerIDs();
+		long sum = 0;
+		for (String sender : senders) {
+			for (String recipient : recipients) {
+				Link link = links.get(sender + " " + recipient);
+				if (link != null) {
+					synchronized (link) {
+						sum += bytes ? link.bytes : link.messages;
+					}
+				}
+			}
+		}
+		return sum;
+	}
+
+
+	private Link getLink(String senderID, String recipientID) {
+		String key = senderID + " " + recipientID;
+		Link link = links.get(key);
+		if (link == null) {
+			synchronized (links) {
+				link = links.get(key);
+				if (link == null) {
+					link = new Link();
+					links.put(key, link);
+				}
+			}
+		}
+		return link;
+	}
+}
@@ -15,10 +15,23 @@
 
 package mpc.bftsu;
 
+import java.io.File;
+import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.Observable;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import mpc.protocolPrimitives.PrimitivesEnabledPeer;
@@ -39,6 +52,33 @@ import events.ExceptionEvent;
  */
 public abstract class BftsuBase extends PrimitivesEnabledPeer {
 
+	/** the phases of a round */
+	public enum Phase {
+		/** (re-)establishing connections, reading the input, starting the protocol threads */
+		INITIALIZING,
+		/** the initial shares are generated and sent (input peer) or received (privacy peer) */
+		SHARING,
+		/** the privacy peers compute the threshold union */
+		COMPUTING,
+		/** the final results are sent (privacy peer) or received (input peer) */
+		RESULTS,
+		/** the output files are written (input peer) */
+		OUTPUT,
+		/** all time slots are processed */
+		DONE
+	}
+
+	/** a notification waiting for the event handler */
+	private static class Notification {
+		final Observable observable;
+		final Object object;
+
+		Notification(Observable observable, Object object) {
+			this.observable = observable;
+			this.object = object;
+		}
+	}
+
 	protected String inputFolder;
 	protected String outputFolder;
 	protected int inputTimeout;
@@ -66,6 +106,54 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 	
 	/** threshold for the threshold-set union */
 	protected long threshold = 0;
+	/** read the input files memory-mapped instead of line by line */
+	protected boolean useMappedInput = false;
+	/** keep the element offsets and positions of the input to filter the output */
+	protected boolean useInputIndex = false;
+	/** maps the input elements to their Bloom filter positions */
+	protected BftsuHashStrategy hashStrategy = BftsuHashStrategy.getDefault();
+	/** number of threads hashing a memory-mapped input file */
+	protected int inputThreads = 1;
+	/** number of threads generating the initial shares */
+	protected int sharingThreads = 1;
+	/** number of initial shares per message (0: all shares in one message) */
+	protected int sharesChunkSize = 0;
+	/** number of time slots processed in one protocol round */
+	protected int slotsPerRound = 1;
+	/** start time of the current round (for the throughput log) */
+	protected long roundStartTime = 0;
+	/** number of time slots an input peer reads ahead (0: no pipelining) */
+	protected int pipelineDepth = 0;
+	/** sum up the initial shares on the privacy peer while they arrive */
+	protected boolean incrementalSum = false;
+	/** the kind of executor running the protocol threads */
+	protected String executorType = EXECUTOR_VIRTUAL;
+	/** maximum number of protocol threads of the pool executor (0: unbounded) */
+	protected int executorThreads = 0;
+	/** store the received initial shares off-heap */
+	protected boolean offHeapShares = false;
+	/** soft deadline of the sharing phase in ms (0: wait for all input peers) */
+	protected long quorumDeadline = 0;
+	/** runs the protocol threads of all rounds */
+	private ExecutorService protocolExecutor = null;
+	/** the phase of the current round */
+	private volatile Phase phase = Phase.INITIALIZING;
+	/** time spent in each phase (ns), indexed by the ordinal of the phase */
+	private final long[] phaseTimes = new long[Phase.values().length];
+	/** when the current phase started (ns) */
+	private long phaseStartTime = System.nanoTime();
+	/** properties to use instead of the ones of the config file (null: config file) */
+	private Properties configProperties = null;
+	/** the stage timings and traffic of this peer */
+	protected final BftsuMetrics metrics = new BftsuMetrics();
+	/** export the metrics through JMX and a CSV file per peer */
+	protected boolean exportMetrics = false;
+	/** set when a round failed, e.g., because a protocol thread could not be started */
+	private final AtomicBoolean roundFailed = new AtomicBoolean();
+	/** notifications waiting for the event handler (null if the notifying thread handles them) */
+	private volatile BlockingQueue<Notification> notifications = null;
+	/** the thread handling the notifications */
+	private Thread eventHandler = null;
 
 	
 	/** prefix of all bftsu protocol properties */
@@ -74,6 +162,109 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 	public static final String PROP_BLOOMF_SIZE = PROP_BLOOM_PREFIX + "size";
 	
 	public static final String PROP_BFTSU_THRESHOLD = "mpc.bftsu.threshold";
+	/**
+	 * If true, input files are memory-mapped and hashed in parallel; otherwise
+	 * they are read line by line by the original BufferedReader input path.
+	 * The mapped input splits the lines like BufferedReader.readLine, so both
+	 * modes result in the same filter for input in the platform charset (see
+	 * {@link BftsuInputReader}), and input peers may use different settings.
+	 */
+	public static final String PROP_BFTSU_MAPPED_INPUT = "mpc.bftsu.input.mapped";
+	public static final String PROP_BFTSU_INPUT_THREADS = "mpc.bftsu.input.threads";
+	/**
+	 * If true (and the input is memory-mapped with a MurmurHash3 strategy, see
+	 * {@link #PROP_BFTSU_HASH}), the input peer keeps the offset and the Bloom
+	 * filter positions of every input element, so the output is filtered
+	 * without parsing and hashing the input file again. Costs about
+	 * (8 + 4 * hashcount) bytes per element until the output is written.
+	 */
+	public static final String PROP_BFTSU_INPUT_INDEX = "mpc.bftsu.input.index";
+	/**
+	 * Hash strategy of the Bloom filters, see {@link BftsuHashStrategy}. It
+	 * applies to both input modes and to the output filtering. The default
+	 * {@value BftsuHashStrategy#SEPIA} keeps the positions of
+	 * services.BloomFilter; the MurmurHash3 strategies are opt-in. All input
+	 * peers have to use the same strategy.
+	 */
+	public static final String PROP_BFTSU_HASH = "mpc.bftsu.input.hash";
+	public static final String PROP_BFTSU_SHARING_THREADS = "mpc.bftsu.sharing.threads";
+	/**
+	 * Number of initial shares per message. The shares are generated and sent
+	 * chunk by chunk, so sending a chunk overlaps with generating the next one.
+	 */
+	public static final String PROP_BFTSU_SHARES_CHUNK_SIZE = "mpc.bftsu.sharing.chunksize";
+	/**
+	 * Number of time slots processed in one protocol round. The Bloom filters
+	 * of these slots are concatenated and shared, computed and reconstructed as
+	 * one vector, which saves the fixed cost of a round per slot. All peers have
+	 * to use the same value. The Bloom filter length times the slots must fit
+	 * one vector (an int length, an eighth of that with off-heap shares).
+	 */
+	public static final String PROP_BFTSU_SLOTS_PER_ROUND = "mpc.bftsu.batch.slots";
+	/**
+	 * Number of time slots an input peer reads ahead: the input files of the
+	 * next slots are read (and their Bloom filters built) while the current
+	 * slot is being computed. Above 0, consecutive rounds also overlap: an
+	 * input peer shares the next round as soon as it sent the shares of the
+	 * current one, and the privacy peers receive them while they compute the
+	 * current round. At most two rounds are in flight, and the computation of
+	 * the rounds stays sequential. A privacy peer reads at most 2^20 shares
+	 * (one message if larger) of the next round per input peer ahead; the rest
+	 * waits on the connection until the round is started. 0 disables the
+	 * read-ahead and the overlap.
+	 */
+	public static final String PROP_BFTSU_PIPELINE_DEPTH = "mpc.bftsu.pipeline.depth";
+	/**
+	 * If true, privacy peers add every received chunk of shares to a running
+	 * sum right away and run the threshold union on that sum. This relies on
+	 * the threshold union summing up the input filters before comparing them
+	 * with the threshold. The summation uses mpc.bftsu.sharing.threads
+	 * workers. A vector is dropped once it is complete, except with a quorum
+	 * deadline: then every vector is kept until the round is computed, to take
+	 * it out of the sum again if the privacy peers agree on fewer input peers.
+	 */
+	public static final String PROP_BFTSU_INCREMENTAL_SUM = "mpc.bftsu.incrementalsum";
+	/**
+	 * Executor running the protocol threads: "virtual" uses virtual threads if the
+	 * JVM supports them (and falls back to "pool" otherwise), "pool" uses a pool
+	 * whose threads are reused across rounds. A bounded pool needs at least one
+	 * thread per connected peer plus one, twice that with a pipeline depth; a
+	 * protocol thread that finds no free thread fails the round with an error.
+	 */
+	public static final String PROP_BFTSU_EXECUTOR = "mpc.bftsu.executor";
+	public static final String PROP_BFTSU_EXECUTOR_THREADS = "mpc.bftsu.executor.threads";
+	/**
+	 * If true (default: false), the stage timings and the traffic of a peer are
+	 * exposed as MBean <code>mpc.bftsu:type=Metrics,peer=&lt;ID&gt;</code> and
+	 * appended to <code>bftsu_metrics_&lt;ID&gt;.csv</code> in the output folder
+	 * after every round (see {@link BftsuMetrics}).
+	 */
+	public static final String PROP_BFTSU_METRICS = "mpc.bftsu.metrics";
+	/**
+	 * Soft deadline of the sharing phase in ms (0: default, wait for the shares
+	 * of all input peers). Once it has passed and the shares of at least
+	 * minInputPeers (and at least one) input peers have arrived, the privacy
+	 * peers agree on the input peers whose shares all of them received and
+	 * compute the round on those. The shares of the other input peers are
+	 * excluded from the round, and their final result messages say so. Input
+	 * peers whose shares had not arrived get that message (without results)
+	 * right away; the round does not wait for them, and their late shares are
+	 * dropped. If the privacy peers agree on fewer than minInputPeers input
+	 * peers, the time slot is not computed and the input peers get no results
+	 * for it.
+	 */
+	public static final String PROP_BFTSU_QUORUM_DEADLINE = "mpc.bftsu.quorum.deadline";
+	/**
+	 * If true, privacy peers read the initial shares into off-heap buffers and
+	 * keep them there until the round is computed, which keeps very large
+	 * share vectors out of the heap. The vectors are summed up from there into
+	 * a single row, so they are never copied to the heap as a whole.
+	 * Off-heap memory is limited by -XX:MaxDirectMemorySize, which has to be
+	 * raised accordingly.
+	 */
+	public static final String PROP_BFTSU_OFF_HEAP = "mpc.bftsu.sharing.offheap";
+	public static final String EXECUTOR_VIRTUAL = "virtual";
+	public static final String EXECUTOR_POOL = "pool";
 	
 	
 	/**
@@ -92,7 +283,7 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 	 * Init the properties.
 	 */
 	protected synchronized void initProperties() throws Exception {
-		Properties properties = ConfigFile.getInstance().getProperties();
+		Properties properties = (configProperties != null) ? configProperties : ConfigFile.getInstance().getProperties();
 		
         inputFolder = properties.getProperty(ConfigFile.PROP_INPUT_DIR, ConfigFile.DEFAULT_INPUT_DIR);
         outputFolder = properties.getProperty(ConfigFile.PROP_OUTPUT_DIR, ConfigFile.DEFAULT_OUTPUT_DIR);
@@ -124,6 +315,36 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
         bloomFilterSize = Integer.valueOf(properties.getProperty(PROP_BLOOMF_SIZE));
         
         threshold = Long.valueOf(properties.getProperty(PROP_BFTSU_THRESHOLD));
+        useMappedInput = Boolean.valueOf(properties.getProperty(PROP_BFTSU_MAPPED_INPUT, "false"));
+        hashStrategy = BftsuHashStrategy.getInstance(properties.getProperty(PROP_BFTSU_HASH, BftsuHashStrategy.SEPIA));
+        useInputIndex = useMappedInput && Boolean.valueOf(properties.getProperty(PROP_BFTSU_INPUT_INDEX, "false"));
+        if (useInputIndex && !hashStrategy.hashesBytes()) {
+        	logger.log(Level.WARNING, "The input index needs a MurmurHash3 strategy (" + PROP_BFTSU_HASH + "); it is not used");
+        	useInputIndex = false;
+        }
+        inputThreads = Integer.valueOf(properties.getProperty(PROP_BFTSU_INPUT_THREADS,
+        		String.valueOf(Runtime.getRuntime().availableProcessors())));
+        sharingThreads = Integer.valueOf(properties.getProperty(PROP_BFTSU_SHARING_THREADS,
+        		String.valueOf(Runtime.getRuntime().availableProcessors())));
+        sharesChunkSize = Integer.valueOf(properties.getProperty(PROP_BFTSU_SHARES_CHUNK_SIZE, "0"));
+        slotsPerRound = Math.max(1, Integer.valueOf(properties.getProperty(PROP_BFTSU_SLOTS_PER_ROUND, "1")));
+        pipelineDepth = Integer.valueOf(properties.getProperty(PROP_BFTSU_PIPELINE_DEPTH, "0"));
+        incrementalSum = Boolean.valueOf(properties.getProperty(PROP_BFTSU_INCREMENTAL_SUM, "false"));
+        executorType = properties.getProperty(PROP_BFTSU_EXECUTOR, EXECUTOR_VIRTUAL);
+        executorThreads = Integer.valueOf(properties.getProperty(PROP_BFTSU_EXECUTOR_THREADS, "0"));
+        exportMetrics = Boolean.valueOf(properties.getProperty(PROP_BFTSU_METRICS, "false"));
+        offHeapShares = Boolean.valueOf(properties.getProperty(PROP_BFTSU_OFF_HEAP, "false"));
+        quorumDeadline = Long.valueOf(properties.getProperty(PROP_BFTSU_QUORUM_DEADLINE, "0"));
+        
+        // the vectors of a round hold the Bloom filters of all its time slots
+        long itemsPerRound = (long) numberOfItems * slotsPerRound;
+        long maxItemsPerRound = offHeapShares ? BftsuShareBuffer.MAX_DIRECT_LENGTH : Integer.MAX_VALUE;
+        if (itemsPerRound > maxItemsPerRound) {
+        	throw new IllegalArgumentException(PROP_BFTSU_SLOTS_PER_ROUND + "=" + slotsPerRound + " is too large: "
+        			+ slotsPerRound + " Bloom filters of " + numberOfItems + " items do not fit one vector of at most "
+        			+ maxItemsPerRound + " items" + (offHeapShares ? " (off-heap)" : "")
+        			+ ", use at most " + Math.max(1, maxItemsPerRound / numberOfItems) + " time slots per round");
+        }
       
 		
 		// output properties to log
@@ -140,12 +361,123 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 		logger.log(Level.INFO, "Items to read: " + itemsToRead);
 		logger.log(Level.INFO, "Number of hashfunctions: " + numberOfHashFunctions);
 		logger.log(Level.INFO, "Bloom filter size: " + bloomFilterSize);
+		logger.log(Level.INFO, "Memory-mapped input: " + useMappedInput + " (" + inputThreads + " threads)");
+		logger.log(Level.INFO, "Input index for the output: " + useInputIndex);
+		logger.log(Level.INFO, "Hash strategy: " + hashStrategy.getName());
+		logger.log(Level.INFO, "Share generation threads: " + sharingThreads);
+		logger.log(Level.INFO, "Shares per message: " + (sharesChunkSize > 0 ? sharesChunkSize : "all"));
+		logger.log(Level.INFO, "Time slots per round: " + slotsPerRound);
+		logger.log(Level.INFO, "Pipeline depth (time slots read ahead): " + pipelineDepth);
+		logger.log(Level.INFO, "Incremental share summation: " + incrementalSum);
+		logger.log(Level.INFO, "Protocol executor: " + executorType + (executorThreads > 0 ? " (" + executorThreads + " threads)" : ""));
+		logger.log(Level.INFO, "Export metrics: " + exportMetrics);
+		logger.log(Level.INFO, "Off-heap initial shares: " + offHeapShares);
+		logger.log(Level.INFO, "Quorum deadline: " + (quorumDeadline > 0 ? quorumDeadline + " ms" : "none (wait for all input peers)"));
 		
+		if (exportMetrics) {
+			metrics.startExport(getMyPeerID(), new File(outputFolder));
+		}
 	}
 
 
 	/**
-	 * Process message received by an observable.
+	 * Runs a protocol thread on the protocol executor. The threads of a round
+	 * wait for each other, so a task must never wait in a queue for a free
+	 * thread. A bounded pool without a free thread rejects the task instead
+	 * (see {@link #PROP_BFTSU_EXECUTOR_THREADS}); the round then fails (see
+	 * {@link #failRound(String, Exception)}).
+	 *
+	 * @param task	the protocol to run
+	 * @return		false if the task was rejected
+	 */
+	protected boolean runProtocolTask(Runnable task) {
+		try {
+			getProtocolExecutor().execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			failRound("No protocol thread available for time slot " + currentTimeSlot + ((executorThreads > 0)
+					? ": all " + executorThreads + " threads are busy; raise " + PROP_BFTSU_EXECUTOR_THREADS
+					: ": the protocol executor is shut down"), e);
+			return false;
+		}
+	}
+
+
+	/**
+	 * Fails the current round: stops the protocol, lets the threads waiting
+	 * for a step of the round return and reports the error.
+	 *
+	 * @param errorMessage	the reason
+	 * @param e				the exception (null if none)
+	 */
+	protected void failRound(String errorMessage, Exception e) {
+		if (!roundFailed.compareAndSet(false, true)) {
+			return;
+		}
+		logger.log(Level.SEVERE, errorMessage);
+		protocolStopper.setIsStopped(true);
+		releaseWaitingThreads();
+		if (e != null) {
+			sendExceptionEvent(this, e, errorMessage);
+		} else {
+			sendExceptionEvent(this, errorMessage);
+		}
+	}
+
+
+	/**
+	 * @return true if a round failed (see {@link #failRound(String, Exception)})
+	 */
+	public boolean isRoundFailed() {
+		return roundFailed.get();
+	}
+
+
+	/**
+	 * Lets the threads waiting for a step of the round return, after the round
+	 * failed. They check {@link #isRoundFailed()} and stop.
+	 */
+	protected void releaseWaitingThreads() {
+	}
+
+
+	/**
+	 * Returns the executor running the protocol threads. It is created on first
+	 * use and kept for all rounds, so no threads are created per round.
+	 */
+	protected synchronized ExecutorService getProtocolExecutor() {
+		if (protocolExecutor == null) {
+			protocolExecutor = createProtocolExecutor();
+		}
+		return protocolExecutor;
+	}
+
+
+	private ExecutorService createProtocolExecutor() {
+		if (EXECUTOR_VIRTUAL.equals(executorType)) {
+			try {
+				// looked up reflectively to stay compatible with JVMs without virtual threads
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (Exception e) {
+				logger.log(Level.INFO, "Virtual threads are not available, using a thread pool for the protocol threads");
+			}
+		}
+		int maxThreads = (executorThreads > 0) ? executorThreads : Integer.MAX_VALUE;
+		return new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger threadNumber = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "Bftsu protocol thread " + threadNumber.incrementAndGet());
+					}
+				});
+	}
+
+
+	/**
+	 * Process message received by an observable. Notifications of different
+	 * protocol threads are not serialized, so implementations have to
+	 * synchronize where they need to.
 	 * 
 	 * @param observable	Observable who sent the notification
 	 * @param object		The object that was sent by the observable
@@ -153,14 +485,61 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 	protected abstract void notificationReceived(Observable observable, Object object) throws Exception;
 
 
+	/**
+	 * Hands all further notifications to a dedicated event handler thread. The
+	 * protocol threads then only queue their notifications and never wait for
+	 * a (slow) handler, e.g., one writing the output files. The notifications
+	 * are handled one after another in the order they arrived. Input peers use
+	 * it; privacy peers handle the shares in parallel on the notifying threads.
+	 */
+	protected synchronized void startEventHandler() {
+		if (eventHandler != null) {
+			return;
+		}
+		final BlockingQueue<Notification> queue = new LinkedBlockingQueue<Notification>();
+		eventHandler = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Notification notification = queue.take();
+						handleNotification(notification.observable, notification.object);
+					}
+				} catch (InterruptedException e) {
+					logger.log(Level.INFO, "Event handler stopped (" + queue.size() + " notifications left)");
+				}
+			}
+		}, "Bftsu event handler " + getMyPeerID());
+		eventHandler.setDaemon(true);
+		eventHandler.start();
+		notifications = queue;
+	}
+
+
 	/**
 	 * Invoked when an observable that we're observing is notifying its
-	 * observers
+	 * observers. The notification is queued if an event handler was started
+	 * and handled right away otherwise.
 	 * 
 	 * @param observable	Observable who sent the notification
 	 * @param object		The object that was sent by the observable
 	 */
-	public synchronized void update(Observable observable, Object object) {
+	public void update(Observable observable, Object object) {
+		BlockingQueue<Notification> queue = notifications;
+		if (queue != null) {
+			queue.add(new Notification(observable, object));
+		} else {
+			handleNotification(observable, object);
+		}
+	}
+
+
+	/**
+	 * Handles a notification of an observable.
+	 * 
+	 * @param observable	Observable who sent the notification
+	 * @param object		The object that was sent by the observable
+	 */
+	private void handleNotification(Observable observable, Object object) {
 		ExceptionEvent exceptionEvent;
 		String errorMessage;
 		
@@ -169,7 +548,7 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 			return;
 		}
 		
-		logger.log(Level.INFO, "Received notification from observable: " + observable.getClass().getName() + " (object is of type: " + object.getClass().getName() + ")");
+		BftsuLog.fine(logger, "Received notification from observable: ", observable.getClass().getName(), ", object is of type: ", object.getClass().getName());
 
 		try {
 			/* !!! WATCH OUT FOR ORDER (e.g. BftsuMessage will go for
@@ -197,11 +576,157 @@ public abstract class BftsuBase extends PrimitivesEnabledPeer {
 		}
 	}
 
+	/**
+	 * @return the phase of the current round
+	 */
+	public Phase getPhase() {
+		return phase;
+	}
+
+
+	/**
+	 * Moves the current round to the next phase.
+	 *
+	 * @param next	the next phase
+	 */
+	protected void setPhase(Phase next) {
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Time slot " + currentTimeSlot + ": phase " + phase + " -> " + next);
+		}
+		synchronized (phaseTimes) {
+			long now = System.nanoTime();
+			phaseTimes[phase.ordinal()] += now - phaseStartTime;
+			phaseStartTime = now;
+			phase = next;
+		}
+	}
+
+
+	/**
+	 * Returns the time spent in each phase so far, over all rounds. The time
+	 * of the current phase is only added when the phase ends.
+	 *
+	 * @return	the time in ms, indexed by the ordinal of the phase
+	 */
+	public long[] getPhaseTimes() {
+		long[] times = new long[phaseTimes.length];
+		synchronized (phaseTimes) {
+			for (int i = 0; i < times.length; i++) {
+				times[i] = phaseTimes[i] / 1000000;
+			}
+		}
+		return times;
+	}
+
+
+	/**
+	 * Sets the properties to use instead of the ones of the config file, e.g.,
+	 * for several peers running in the same JVM. Has to be called before the
+	 * peer is initialized.
+	 *
+	 * @param properties	the properties of this peer
+	 */
+	public void setProperties(Properties properties) {
+		this.configProperties = properties;
+	}
+
+
+	/**
+	 * Returns the settings that determine the Bloom filter positions of an
+	 * element: the hash strategy, the number of hash functions and the length
+	 * of the filter. Input peers send them with their shares, and privacy
+	 * peers reject the shares of filters built with other settings, since
+	 * their cells would not match.
+	 *
+	 * @return the settings, e.g., "murmur3/5/65536"
+	 */
+	public String getFilterConfig() {
+		return hashStrategy.getName() + "/" + numberOfHashFunctions + "/" + numberOfItems;
+	}
+
+
+	/**
+	 * @return the (first) time slot of the current round (starting at 1)
+	 */
+	public int getCurrentTimeSlot() {
+		return currentTimeSlot;
+	}
+
+
+	/**
+	 * @return the number of time slots of the current round (the last round
+	 * may have fewer than slotsPerRound)
+	 */
+	public int getSlotsInRound() {
+		return getSlotsInRound(currentTimeSlot);
+	}
+
+
+	/**
+	 * @param firstTimeSlot	the first time slot of the round
+	 * @return the number of time slots of the round starting there
+	 */
+	public int getSlotsInRound(int firstTimeSlot) {
+		return Math.max(1, Math.min(slotsPerRound, timeSlotCount - firstTimeSlot + 1));
+	}
+
+
+	/**
+	 * @return the length of the vectors of the current round, i.e., the Bloom
+	 * filters of all its time slots one after another
+	 */
+	public int getItemsInRound() {
+		return numberOfItems * getSlotsInRound();
+	}
+
+
+	/**
+	 * Ends the current round: writes its metrics and logs a single summary
+	 * line with its duration, throughput, traffic and the time per stage
+	 * (the per-message details are only logged at level FINE).
+	 */
+	protected void endRound() {
+		endRound(currentTimeSlot, getSlotsInRound(), roundStartTime);
+	}
+
+
+	/**
+	 * Ends a round that is not the current one any more, e.g., because the
+	 * next round is already shared.
+	 *
+	 * @param firstTimeSlot	the first time slot of the round
+	 * @param slots			the number of time slots of the round
+	 * @param startTime		when the round was started
+	 */
+	protected void endRound(int firstTimeSlot, int slots, long startTime) {
+		long duration = System.currentTimeMillis() - startTime;
+		String summary = metrics.endRound(firstTimeSlot, slots);
+		logger.log(Level.INFO, "Processed time slots " + firstTimeSlot + "-" + (firstTimeSlot + slots - 1) + " in " + duration + " ms ("
+				+ (duration > 0 ? String.valueOf(slots * 1000.0 / duration) : "-") + " slots/s): " + summary);
+	}
+
+
+	/**
+	 * @return the stage timings and traffic of this peer
+	 */
+	public BftsuMetrics getMetrics() {
+		return metrics;
+	}
+
+
 	/**
 	 * Does some cleaning up.
 	 */
 	protected synchronized void cleanUp() throws Exception {
 		// Stop all started threads
 		stopProcessing();
+		if (eventHandler != null) {
+			eventHandler.interrupt();
+		}
+		if (protocolExecutor != null) {
+			protocolExecutor.shutdown();
+			protocolExecutor = null;
+		}
+		metrics.stopExport();
 	}
 }
@@ -0,0 +1,354 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+import services.BloomFilter;
+
+/**
+ * A counting Bloom filter that keeps its counters in a <code>long[]</code>,
+ * i.e., in the layout expected by {@link mpc.ShamirSharing#generateShares(long[])}.
+ * The counter array is handed out without copying, so a filter never occupies
+ * more than one array.
+ * <p>
+ * Elements are hashed from their raw bytes by a {@link BftsuHashStrategy}, the
+ * same way for insertion and for checking. With the default strategy
+ * {@value BftsuHashStrategy#SEPIA}, the filter hands the elements as Strings
+ * ({@link #ELEMENT_CHARSET}) to a {@link BloomFilter} instead, whose int
+ * counters are widened once by {@link #getArray()}.
+ * <p>
+ * A filter is not thread-safe. A filter can also wrap a reconstructed
+ * (non-counting) result to check elements against it, either as dense array
+ * or as {@link BitSet}.
+ */
+public class BftsuBloomFilter {
+
+	/**
+	 * the charset of the elements hashed as Strings: the one of the
+	 * {@link java.io.FileReader} of the line reader
+	 */
+	public static final Charset ELEMENT_CHARSET = Charset.defaultCharset();
+
+	/** the counters (null if the filter is backed by a bit set) */
+	private long[] counters;
+	/** the set positions of a read-only non-counting filter */
+	private BitSet bits = null;
+	/** number of hash functions */
+	private int numberOfHashFunctions;
+	/** maps a hash value to a position (the length is a power of two) */
+	private int mask;
+	/** computes the positions of the elements */
+	private BftsuHashStrategy hashStrategy;
+	/** the positions of the element being inserted or checked */
+	private int[] scratch;
+	/** the filter of a {@value BftsuHashStrategy#SEPIA} filter (null for other strategies) */
+	private BloomFilter sepiaFilter = null;
+	/** true while the counters of a {@value BftsuHashStrategy#SEPIA} filter are kept by sepiaFilter */
+	private boolean sepiaCounting = false;
+
+
+	/**
+	 * Creates an empty filter. Like {@link BloomFilter}, the length is the next
+	 * larger power of two of the requested size.
+	 *
+	 * @param numberOfHashFunctions	number of hash functions
+	 * @param size					requested size of the filter
+	 */
+	public BftsuBloomFilter(int numberOfHashFunctions, int size) {
+		this(BftsuHashStrategy.getDefault(), numberOfHashFunctions, size);
+	}
+
+
+	/**
+	 * Creates an empty filter using the given hash strategy.
+	 *
+	 * @param hashStrategy			the hash strategy
+	 * @param numberOfHashFunctions	number of hash functions
+	 * @param size					requested size of the filter
+	 */
+	public BftsuBloomFilter(BftsuHashStrategy hashStrategy, int numberOfHashFunctions, int size) {
+		this(hashStrategy, numberOfHashFunctions, hashStrategy.hashesBytes() ? new long[BloomFilter.getNextPowerOfTwo(size)] : null,
+				BloomFilter.getNextPowerOfTwo(size));
+		if (!hashStrategy.hashesBytes()) {
+			sepiaFilter = new BloomFilter(numberOfHashFunctions, getLength(), true);
+			sepiaCounting = true;
+		}
+	}
+
+
+	/**
+	 * Creates a filter backed by the given array (the array is not copied).
+	 *
+	 * @param numberOfHashFunctions	number of hash functions
+	 * @param array					the counters, the length has to be a power of two
+	 */
+	public BftsuBloomFilter(int numberOfHashFunctions, long[] array) {
+		this(BftsuHashStrategy.getDefault(), numberOfHashFunctions, array);
+	}
+
+
+	/**
+	 * Creates a filter backed by the given array, using the given hash strategy.
+	 *
+	 * @param hashStrategy			the hash strategy
+	 * @param numberOfHashFunctions	number of hash functions
+	 * @param array					the counters, the length has to be a power of two
+	 */
+	public BftsuBloomFilter(BftsuHashStrategy hashStrategy, int numberOfHashFunctions, long[] array) {
+		this(hashStrategy, numberOfHashFunctions, array, array.length);
+	}
+
+
+	private BftsuBloomFilter(BftsuHashStrategy hashStrategy, int numberOfHashFunctions, long[] array, int length) {
+		if (Integer.bitCount(length) != 1) {
+			throw new IllegalArgumentException("Filter length has to be a power of two: " + length);
+		}
+		this.hashStrategy = hashStrategy;
+		this.numberOfHashFunctions = numberOfHashFunctions;
+		this.scratch = new int[numberOfHashFunctions];
+		this.counters = array;
+		this.mask = length - 1;
+	}
+
+
+	/**
+	 * Creates a read-only non-counting filter backed by the given bit set.
+	 *
+	 * @param numberOfHashFunctions	number of hash functions
+	 * @param bits					the set positions
+	 * @param length				length of the filter, has to be a power of two
+	 */
+	public BftsuBloomFilter(int numberOfHashFunctions, BitSet bits, int length) {
+		this(BftsuHashStrategy.getDefault(), numberOfHashFunctions, bits, length);
+	}
+
+
+	/**
+	 * Creates a read-only non-counting filter backed by the given bit set,
+	 * using the given hash strategy.
+	 *
+	 * @param hashStrategy			the hash strategy
+	 * @param numberOfHashFunctions	number of hash functions
+	 * @param bits					the set positions
+	 * @param length				length of the filter, has to be a power of two
+	 */
+	public BftsuBloomFilter(BftsuHashStrategy hashStrategy, int numberOfHashFunctions, BitSet bits, int length) {
+		// services.BloomFilter only wraps dense arrays
+		this(hashStrategy, numberOfHashFunctions, hashStrategy.hashesBytes() ? null : BftsuCodec.toArray(bits, length), length);
+		if (hashStrategy.hashesBytes()) {
+			this.bits = bits;
+		}
+	}
+
+
+	/**
+	 * Inserts an element.
+	 *
+	 * @param buffer	buffer holding the element
+	 * @param from		index of the first byte of the element
+	 * @param to		index after the last byte of the element
+	 */
+	public void insert(ByteBuffer buffer, int from, int to) {
+		if (!hashStrategy.hashesBytes()) {
+			insert(toString(buffer, from, to));
+			return;
+		}
+		insert(buffer, from, to, scratch, 0);
+	}
+
+
+	/**
+	 * Inserts an element and stores its positions.
+	 *
+	 * @param buffer	buffer holding the element
+	 * @param from		index of the first byte of the element
+	 * @param to		index after the last byte of the element
+	 * @param positions	array receiving the positions of the element
+	 * @param offset	index in positions where the first position is stored
+	 */
+	public void insert(ByteBuffer buffer, int from, int to, int[] positions, int offset) {
+		hashStrategy.getPositions(buffer, from, to, numberOfHashFunctions, mask, positions, offset);
+		for (int i = offset; i < offset + numberOfHashFunctions; i++) {
+			counters[positions[i]]++;
+		}
+	}
+
+
+	/**
+	 * Inserts an element.
+	 *
+	 * @param element	the bytes of the element
+	 */
+	public void insert(byte[] element) {
+		insert(ByteBuffer.wrap(element), 0, element.length);
+	}
+
+
+	/**
+	 * Inserts an element given as String, e.g., a line read by a
+	 * {@link java.io.BufferedReader}.
+	 *
+	 * @param element	the element
+	 */
+	public void insert(String element) {
+		if (hashStrategy.hashesBytes()) {
+			insert(element.getBytes(ELEMENT_CHARSET));
+			return;
+		}
+		if (!sepiaCounting) {
+			throw new IllegalStateException("The counters of the filter were already handed out");
+		}
+		sepiaFilter.insert(element);
+	}
+
+
+	/**
+	 * Checks whether an element is contained in the filter.
+	 *
+	 * @param buffer	buffer holding the element
+	 * @param from		index of the first byte of the element
+	 * @param to		index after the last byte of the element
+	 * @return			true if all positions of the element are set
+	 */
+	public boolean check(ByteBuffer buffer, int from, int to) {
+		if (!hashStrategy.hashesBytes()) {
+			return check(toString(buffer, from, to));
+		}
+		hashStrategy.getPositions(buffer, from, to, numberOfHashFunctions, mask, scratch, 0);
+		return check(scratch, 0);
+	}
+
+
+	/**
+	 * Checks whether an element given as String is contained in the filter.
+	 *
+	 * @param element	the element
+	 * @return			true if all positions of the element are set
+	 */
+	public boolean check(String element) {
+		if (hashStrategy.hashesBytes()) {
+			return check(element.getBytes(ELEMENT_CHARSET));
+		}
+		if (sepiaFilter == null) {
+			sepiaFilter = new BloomFilter(numberOfHashFunctions, counters, false);
+		}
+		return sepiaFilter.check(element);
+	}
+
+
+	/**
+	 * Checks whether an element is contained in the filter, given the
+	 * positions stored when it was inserted (into a filter of the same length).
+	 *
+	 * @param positions	array holding the positions of the element
+	 * @param offset	index in positions of the element's first position
+	 * @return			true if all positions of the element are set
+	 */
+	public boolean check(int[] positions, int offset) {
+		for (int i = offset; i < offset + numberOfHashFunctions; i++) {
+			if (bits != null ? !bits.get(positions[i]) : counters[positions[i]] == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Checks whether an element is contained in the filter.
+	 *
+	 * @param element	the bytes of the element
+	 * @return			true if all positions of the element are set
+	 */
+	public boolean check(byte[] element) {
+		return check(ByteBuffer.wrap(element), 0, element.length);
+	}
+
+
+	/**
+	 * Adds the counters of another filter of the same length to this one.
+	 *
+	 * @param other	the filter to add
+	 */
+	public void add(BftsuBloomFilter other) {
+		getArray();
+		if (other.sepiaCounting) {
+			// sum SEPIA's int counters without widening them first
+			int[] otherCounters = other.sepiaFilter.getArray();
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] += otherCounters[i];
+			}
+		} else {
+			long[] otherCounters = other.counters;
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] += otherCounters[i];
+			}
+		}
+		if (!hashStrategy.hashesBytes()) {
+			// checked against the new counters
+			sepiaFilter = null;
+		}
+	}
+
+
+	/**
+	 * Returns the counters. A {@value BftsuHashStrategy#SEPIA} filter widens
+	 * the int counters of its {@link BloomFilter} into a new array on the first
+	 * call and drops them; no elements can be inserted after that.
+	 *
+	 * @return the counters (not a copy)
+	 */
+	public long[] getArray() {
+		if (sepiaCounting) {
+			int[] sepiaCounters = sepiaFilter.getArray();
+			counters = new long[sepiaCounters.length];
+			for (int i = 0; i < sepiaCounters.length; i++) {
+				counters[i] = sepiaCounters[i];
+			}
+			sepiaFilter = null;
+			sepiaCounting = false;
+		}
+		return counters;
+	}
+
+
+	/**
+	 * @return the number of counters
+	 */
+	public int getLength() {
+		return mask + 1;
+	}
+
+
+	/**
+	 * @return the hash strategy of the filter
+	 */
+	public BftsuHashStrategy getHashStrategy() {
+		return hashStrategy;
+	}
+
+
+	private static String toString(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(from + i);
+		}
+		return new String(bytes, ELEMENT_CHARSET);
+	}
+}
@@ -0,0 +1,491 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Compact binary encoding of the vectors exchanged in the bftsu protocol.
+ * <p>
+ * Field elements are non-negative and smaller than the field order, so each
+ * value is stored with just as many bits as the largest value of the vector
+ * needs (i.e., about <code>ceil(log2(fieldOrder))</code> bits for shares and
+ * a single bit for 0/1 vectors) instead of 64.
+ * <p>
+ * Encoded vector: <code>int length, byte bitsPerValue, packed values</code>.
+ * The values are packed little-endian, least significant bit first.
+ * <p>
+ * 0/1 vectors (i.e., the reconstructed final results) are usually very sparse
+ * and can be written in an adaptive form which uses the smallest of a bitset,
+ * a run-length and a delta-coded index list encoding.
+ */
+public class BftsuCodec {
+
+	/** number of values packed or unpacked at once (a multiple of 8) */
+	private static final int DIRECT_PIECE_LENGTH = 8192;
+
+	/**
+	 * per-thread buffers of {@link #readDirect(DataInput)}; the packed buffer
+	 * is also used by {@link #write(DataOutput, long[], int, int)} and
+	 * {@link #read(DataInput)}
+	 */
+	private static final ThreadLocal<long[]> directValues = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[DIRECT_PIECE_LENGTH];
+		}
+	};
+	private static final ThreadLocal<byte[]> directPacked = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[DIRECT_PIECE_LENGTH * 8];
+		}
+	};
+
+	/** encodings of the adaptive form */
+	public static final int ENCODING_DENSE = 0;
+	public static final int ENCODING_BITSET = 1;
+	public static final int ENCODING_RUNS = 2;
+	public static final int ENCODING_INDICES = 3;
+
+	private BftsuCodec() {
+	}
+
+
+	/**
+	 * Returns the number of bits needed to store the largest value.
+	 *
+	 * @param values	the values
+	 * @return			bits per value (at least 1)
+	 */
+	public static int getBitsPerValue(long[] values) {
+		return getBitsPerValue(values, 0, values.length);
+	}
+
+
+	/**
+	 * Returns the number of bits needed to store the largest value in the
+	 * range [from, to).
+	 *
+	 * @param values	the values
+	 * @param from		index of the first value
+	 * @param to		index after the last value
+	 * @return			bits per value (at least 1)
+	 */
+	public static int getBitsPerValue(long[] values, int from, int to) {
+		long or = 0;
+		for (int i = from; i < to; i++) {
+			or |= values[i];
+		}
+		return Math.max(1, 64 - Long.numberOfLeadingZeros(or));
+	}
+
+
+	/**
+	 * Returns the number of bytes needed to pack the values.
+	 *
+	 * @param length		the number of values
+	 * @param bitsPerValue	bits per value
+	 * @return				the number of bytes
+	 */
+	public static int getPackedLength(int length, int bitsPerValue) {
+		return (int) (((long) length * bitsPerValue + 7) / 8);
+	}
+
+
+	/**
+	 * Writes an encoded vector.
+	 *
+	 * @param out		the output
+	 * @param values	the vector to write
+	 * @return			the number of bytes written
+	 * @throws IOException
+	 */
+	public static int write(DataOutput out, long[] values) throws IOException {
+		return write(out, values, 0, values.length);
+	}
+
+
+	/**
+	 * Writes the range [from, to) of a vector, in the same form as a vector
+	 * holding only these values (without copying them). The values are packed
+	 * piece by piece through a small per-thread buffer.
+	 *
+	 * @param out		the output
+	 * @param values	the vector
+	 * @param from		index of the first value to write
+	 * @param to		index after the last value to write
+	 * @return			the number of bytes written
+	 * @throws IOException
+	 */
+	public static int write(DataOutput out, long[] values, int from, int to) throws IOException {
+		int bitsPerValue = getBitsPerValue(values, from, to);
+		out.writeInt(to - from);
+		out.writeByte(bitsPerValue);
+		byte[] packed = directPacked.get();
+		for (int pieceStart = from; pieceStart < to; pieceStart += DIRECT_PIECE_LENGTH) {
+			// pieces are a multiple of 8 values long, so every piece ends at a byte boundary
+			int pieceEnd = Math.min(to, pieceStart + DIRECT_PIECE_LENGTH);
+			int packedLength = getPackedLength(pieceEnd - pieceStart, bitsPerValue);
+			pack(values, pieceStart, pieceEnd, bitsPerValue, ByteBuffer.wrap(packed, 0, packedLength));
+			out.write(packed, 0, packedLength);
+		}
+		return 5 + getPackedLength(to - from, bitsPerValue);
+	}
+
+
+	/**
+	 * Reads an encoded vector.
+	 *
+	 * @param in	the input
+	 * @return		the vector
+	 * @throws IOException
+	 */
+	public static long[] read(DataInput in) throws IOException {
+		int length = in.readInt();
+		int bitsPerValue = in.readUnsignedByte();
+		if (length < 0 || bitsPerValue < 1 || bitsPerValue > 64) {
+			throw new IOException("Invalid vector header: length=" + length + ", bits=" + bitsPerValue);
+		}
+		long[] values = new long[length];
+		byte[] packed = directPacked.get();
+		for (int from = 0; from < length; from += DIRECT_PIECE_LENGTH) {
+			int to = Math.min(length, from + DIRECT_PIECE_LENGTH);
+			int packedLength = getPackedLength(to - from, bitsPerValue);
+			in.readFully(packed, 0, packedLength);
+			unpack(ByteBuffer.wrap(packed, 0, packedLength), values, from, to, bitsPerValue);
+		}
+		return values;
+	}
+
+
+	/**
+	 * Reads an encoded vector into an off-heap buffer (see
+	 * {@link BftsuShareBuffer#allocateDirect(int)}). The values are unpacked
+	 * piece by piece through small per-thread buffers, so the vector is never
+	 * held on the heap.
+	 *
+	 * @param in	the input
+	 * @return		the vector (to be released by the caller)
+	 * @throws IOException
+	 */
+	public static BftsuShareBuffer readDirect(DataInput in) throws IOException {
+		int length = in.readInt();
+		int bitsPerValue = in.readUnsignedByte();
+		if (length < 0 || bitsPerValue < 1 || bitsPerValue > 64) {
+			throw new IOException("Invalid vector header: length=" + length + ", bits=" + bitsPerValue);
+		}
+		BftsuShareBuffer buffer = BftsuShareBuffer.allocateDirect(length);
+		long[] values = directValues.get();
+		byte[] packed = directPacked.get();
+		try {
+			for (int from = 0; from < length; from += DIRECT_PIECE_LENGTH) {
+				// pieces are a multiple of 8 values long, so every piece starts at a byte boundary
+				int pieceLength = Math.min(DIRECT_PIECE_LENGTH, length - from);
+				int packedLength = getPackedLength(pieceLength, bitsPerValue);
+				in.readFully(packed, 0, packedLength);
+				unpack(ByteBuffer.wrap(packed, 0, packedLength), values, 0, pieceLength, bitsPerValue);
+				buffer.set(from, values, 0, pieceLength);
+			}
+		} catch (IOException e) {
+			buffer.release();
+			throw e;
+		}
+		return buffer;
+	}
+
+
+	/**
+	 * Writes a vector in the adaptive form: an encoding byte followed by the
+	 * vector in the smallest encoding. Vectors with values other than 0 and 1
+	 * are written densely (see {@link #write(DataOutput, long[])}).
+	 * <ul>
+	 * <li>bitset: <code>int length, packed bits</code>
+	 * <li>runs: <code>int length, varint number of runs, varint run lengths</code>,
+	 * alternating between runs of zeros and ones, starting with zeros
+	 * <li>indices: <code>int length, varint number of ones, varint index deltas</code>
+	 * </ul>
+	 * To read the vector, read the encoding byte first, followed by either
+	 * {@link #read(DataInput)} for the dense encoding or the length and
+	 * {@link #readBits(DataInput, int, int)} otherwise.
+	 *
+	 * @param out		the output
+	 * @param values	the vector to write
+	 * @return			the number of bytes written
+	 * @throws IOException
+	 */
+	public static int writeAdaptive(DataOutput out, long[] values) throws IOException {
+		if (getBitsPerValue(values) > 1) {
+			out.writeByte(ENCODING_DENSE);
+			return 1 + write(out, values);
+		}
+
+		// determine the size of every encoding in one pass
+		int bitsetSize = getPackedLength(values.length, 1);
+		int runs = 0;
+		int runsSize = 0;
+		int ones = 0;
+		int indicesSize = 0;
+		int lastOne = 0;
+		long current = 0;
+		int runStart = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != current) {
+				runsSize += getVarIntLength(i - runStart);
+				runs++;
+				runStart = i;
+				current = values[i];
+			}
+			if (values[i] != 0) {
+				indicesSize += getVarIntLength(i - lastOne);
+				lastOne = i;
+				ones++;
+			}
+		}
+		runsSize += getVarIntLength(values.length - runStart) + getVarIntLength(runs + 1);
+		indicesSize += getVarIntLength(ones);
+
+		if (indicesSize <= runsSize && indicesSize <= bitsetSize) {
+			out.writeByte(ENCODING_INDICES);
+			out.writeInt(values.length);
+			writeVarInt(out, ones);
+			lastOne = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != 0) {
+					writeVarInt(out, i - lastOne);
+					lastOne = i;
+				}
+			}
+			return 5 + indicesSize;
+		} else if (runsSize <= bitsetSize) {
+			out.writeByte(ENCODING_RUNS);
+			out.writeInt(values.length);
+			writeVarInt(out, runs + 1);
+			current = 0;
+			runStart = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != current) {
+					writeVarInt(out, i - runStart);
+					runStart = i;
+					current = values[i];
+				}
+			}
+			writeVarInt(out, values.length - runStart);
+			return 5 + runsSize;
+		} else {
+			out.writeByte(ENCODING_BITSET);
+			out.writeInt(values.length);
+			byte[] packed = new byte[bitsetSize];
+			pack(values, 0, values.length, 1, ByteBuffer.wrap(packed));
+			out.write(packed);
+			return 5 + bitsetSize;
+		}
+	}
+
+
+	/**
+	 * Encodes a vector in the adaptive form once, e.g., to send the same
+	 * vector to many peers.
+	 *
+	 * @param values	the vector to encode
+	 * @return			the encoded vector as written by {@link #writeAdaptive(DataOutput, long[])}
+	 * @throws IOException
+	 */
+	public static byte[] encodeAdaptive(long[] values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeAdaptive(out, values);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * Reads a 0/1 vector written by {@link #writeAdaptive(DataOutput, long[])}
+	 * without materializing it as a <code>long[]</code>.
+	 *
+	 * @param in			the input
+	 * @param encoding		the encoding byte read before
+	 * @param n				the vector length read before
+	 * @return				the set positions
+	 * @throws IOException
+	 */
+	public static BitSet readBits(DataInput in, int encoding, int n) throws IOException {
+		BitSet bits;
+		switch (encoding) {
+		case ENCODING_BITSET:
+			byte[] packed = new byte[getPackedLength(n, 1)];
+			in.readFully(packed);
+			bits = BitSet.valueOf(packed);
+			break;
+		case ENCODING_RUNS:
+			bits = new BitSet(n);
+			int runs = readVarInt(in);
+			int position = 0;
+			for (int run = 0; run < runs; run++) {
+				int runLength = readVarInt(in);
+				if ((run & 1) == 1) {
+					bits.set(position, position + runLength);
+				}
+				position += runLength;
+			}
+			break;
+		case ENCODING_INDICES:
+			bits = new BitSet(n);
+			int ones = readVarInt(in);
+			int index = 0;
+			for (int i = 0; i < ones; i++) {
+				index += readVarInt(in);
+				bits.set(index);
+			}
+			break;
+		default:
+			throw new IOException("Unknown vector encoding: " + encoding);
+		}
+		return bits;
+	}
+
+
+	/**
+	 * Converts a 0/1 vector to its dense form.
+	 *
+	 * @param bits		the set positions
+	 * @param length	the vector length
+	 * @return			the dense vector
+	 */
+	public static long[] toArray(BitSet bits, int length) {
+		long[] values = new long[length];
+		for (int i = bits.nextSetBit(0); i >= 0 && i < length; i = bits.nextSetBit(i + 1)) {
+			values[i] = 1;
+		}
+		return values;
+	}
+
+
+	private static int getVarIntLength(int value) {
+		int length = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+
+	private static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+
+	/**
+	 * Packs the values in the range [from, to) into the buffer (heap or direct).
+	 *
+	 * @param values		the values
+	 * @param from			index of the first value
+	 * @param to			index after the last value
+	 * @param bitsPerValue	bits per value
+	 * @param out			the buffer to write to
+	 */
+	public static void pack(long[] values, int from, int to, int bitsPerValue, ByteBuffer out) {
+		int lowBits = Math.min(bitsPerValue, 32);
+		int highBits = bitsPerValue - lowBits;
+		long lowMask = (1L << lowBits) - 1;
+		long highMask = (1L << highBits) - 1;
+		long acc = 0;
+		int accBits = 0;
+		for (int i = from; i < to; i++) {
+			long value = values[i];
+			acc |= (value & lowMask) << accBits;
+			accBits += lowBits;
+			while (accBits >= 8) {
+				out.put((byte) acc);
+				acc >>>= 8;
+				accBits -= 8;
+			}
+			if (highBits > 0) {
+				acc |= ((value >>> 32) & highMask) << accBits;
+				accBits += highBits;
+				while (accBits >= 8) {
+					out.put((byte) acc);
+					acc >>>= 8;
+					accBits -= 8;
+				}
+			}
+		}
+		if (accBits > 0) {
+			out.put((byte) acc);
+		}
+	}
+
+
+	/**
+	 * Unpacks values from the buffer (heap or direct) into the range [from, to).
+	 *
+	 * @param in			the buffer to read from
+	 * @param values		the array to fill
+	 * @param from			index of the first value
+	 * @param to			index after the last value
+	 * @param bitsPerValue	bits per value
+	 */
+	public static void unpack(ByteBuffer in, long[] values, int from, int to, int bitsPerValue) {
+		int lowBits = Math.min(bitsPerValue, 32);
+		int highBits = bitsPerValue - lowBits;
+		long lowMask = (1L << lowBits) - 1;
+		long highMask = (1L << highBits) - 1;
+		long acc = 0;
+		int accBits = 0;
+		for (int i = from; i < to; i++) {
+			while (accBits < lowBits) {
+				acc |= (in.get() & 0xffL) << accBits;
+				accBits += 8;
+			}
+			long value = acc & lowMask;
+			acc >>>= lowBits;
+			accBits -= lowBits;
+			if (highBits > 0) {
+				while (accBits < highBits) {
+					acc |= (in.get() & 0xffL) << accBits;
+					accBits += 8;
+				}
+				value |= (acc & highMask) << 32;
+				acc >>>= highBits;
+				accBits -= highBits;
+			}
+			values[i] = value;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps an element (a range of bytes) to its positions in a Bloom filter. All
+ * peers of a computation have to use the same strategy.
+ * <ul>
+ * <li>{@value #SEPIA} (default): the positions of {@link services.BloomFilter},
+ * which hashes the element as a String; peers with this strategy compute the
+ * same filters as peers without the bftsu input settings. Its positions are
+ * not known at byte level, so {@link BftsuBloomFilter} hands the elements to
+ * a {@link services.BloomFilter} instead of calling {@link #getPositions}
+ * <li>{@value #MURMUR3}: one seeded 32-bit MurmurHash3 per hash function
+ * <li>{@value #MURMUR3_128_DOUBLE}: a single 128-bit MurmurHash3 (x64) whose
+ * halves are combined to all positions by Kirsch-Mitzenmacher double hashing,
+ * <code>h1 + i*h2</code>; much cheaper for many hash functions
+ * </ul>
+ * Strategies are stateless and can be shared between threads.
+ */
+public abstract class BftsuHashStrategy {
+
+	/** name of the strategy of {@link services.BloomFilter} */
+	public static final String SEPIA = "sepia";
+	/** name of the strategy computing one 32-bit MurmurHash3 per hash function */
+	public static final String MURMUR3 = "murmur3";
+	/** name of the double hashing strategy over a 128-bit MurmurHash3 */
+	public static final String MURMUR3_128_DOUBLE = "murmur3-128-double";
+
+	private static final BftsuHashStrategy SEPIA_INSTANCE = new Sepia();
+	private static final BftsuHashStrategy MURMUR3_INSTANCE = new Murmur3();
+	private static final BftsuHashStrategy MURMUR3_128_DOUBLE_INSTANCE = new Murmur3x128Double();
+
+
+	/**
+	 * Returns the strategy with the given name.
+	 *
+	 * @param name	the name of the strategy
+	 * @return		the strategy
+	 */
+	public static BftsuHashStrategy getInstance(String name) {
+		if (SEPIA.equals(name)) {
+			return SEPIA_INSTANCE;
+		} else if (MURMUR3.equals(name)) {
+			return MURMUR3_INSTANCE;
+		} else if (MURMUR3_128_DOUBLE.equals(name)) {
+			return MURMUR3_128_DOUBLE_INSTANCE;
+		}
+		throw new IllegalArgumentException("Unknown hash strategy: " + name);
+	}
+
+
+	/**
+	 * @return the default strategy ({@value #SEPIA})
+	 */
+	public static BftsuHashStrategy getDefault() {
+		return SEPIA_INSTANCE;
+	}
+
+
+	/**
+	 * @return the name of the strategy
+	 */
+	public abstract String getName();
+
+
+	/**
+	 * @return false if the positions cannot be computed from the bytes of an
+	 * element ({@value #SEPIA})
+	 */
+	public boolean hashesBytes() {
+		return true;
+	}
+
+
+	/**
+	 * Computes the positions of an element.
+	 *
+	 * @param buffer				buffer holding the element
+	 * @param from					index of the first byte of the element
+	 * @param to					index after the last byte of the element
+	 * @param numberOfHashFunctions	number of positions to compute
+	 * @param mask					filter length - 1 (the length is a power of two)
+	 * @param positions				array receiving the positions
+	 * @param offset				index in positions where the first position is stored
+	 */
+	public abstract void getPositions(ByteBuffer buffer, int from, int to, int numberOfHashFunctions, int mask, int[] positions, int offset);
+
+
+	/**
+	 * The positions of {@link services.BloomFilter}.
+	 */
+	private static class Sepia extends BftsuHashStrategy {
+		public String getName() {
+			return SEPIA;
+		}
+
+		public boolean hashesBytes() {
+			return false;
+		}
+
+		public void getPositions(ByteBuffer buffer, int from, int to, int numberOfHashFunctions, int mask, int[] positions, int offset) {
+			throw new UnsupportedOperationException("The positions of services.BloomFilter are not known at byte level");
+		}
+	}
+
+
+	/**
+	 * One seeded 32-bit MurmurHash3 per hash function.
+	 */
+	private static class Murmur3 extends BftsuHashStrategy {
+		public String getName() {
+			return MURMUR3;
+		}
+
+		public void getPositions(ByteBuffer buffer, int from, int to, int numberOfHashFunctions, int mask, int[] positions, int offset) {
+			for (int i = 0; i < numberOfHashFunctions; i++) {
+				positions[offset + i] = murmur3x32(buffer, from, to, i) & mask;
+			}
+		}
+	}
+
+
+	/**
+	 * Kirsch-Mitzenmacher double hashing over a 128-bit MurmurHash3.
+	 */
+	private static class Murmur3x128Double extends BftsuHashStrategy {
+		public String getName() {
+			return MURMUR3_128_DOUBLE;
+		}
+
+		public void getPositions(ByteBuffer buffer, int from, int to, int numberOfHashFunctions, int mask, int[] positions, int offset) {
+			long[] h = murmur3x128(buffer, from, to);
+			// an odd step visits distinct positions in a power-of-two filter
+			long step = h[1] | 1;
+			long combined = h[0];
+			for (int i = 0; i < numberOfHashFunctions; i++) {
+				positions[offset + i] = (int) combined & mask;
+				combined += step;
+			}
+		}
+	}
+
+
+	/**
+	 * Computes the 32-bit MurmurHash3 (x86) of an element.
+	 *
+	 * @param buffer	buffer holding the element
+	 * @param from		index of the first byte of the element
+	 * @param to		index after the last byte of the element
+	 * @param seed		the seed
+	 * @return			the hash value
+	 */
+	static int murmur3x32(ByteBuffer buffer, int from, int to, int seed) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		int h = seed;
+		int length = to - from;
+		int blocksEnd = from + (length & ~3);
+		for (int p = from; p < blocksEnd; p += 4) {
+			int k = (buffer.get(p) & 0xff) | ((buffer.get(p+1) & 0xff) << 8)
+					| ((buffer.get(p+2) & 0xff) << 16) | (buffer.get(p+3) << 24);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+		int k = 0;
+		switch (length & 3) {
+		case 3:
+			k ^= (buffer.get(blocksEnd + 2) & 0xff) << 16;
+		case 2:
+			k ^= (buffer.get(blocksEnd + 1) & 0xff) << 8;
+		case 1:
+			k ^= (buffer.get(blocksEnd) & 0xff);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+		}
+		h ^= length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+
+	/**
+	 * Computes the 128-bit MurmurHash3 (x64, seed 0) of an element.
+	 *
+	 * @param buffer	buffer holding the element
+	 * @param from		index of the first byte of the element
+	 * @param to		index after the last byte of the element
+	 * @return			the two 64-bit halves of the hash value
+	 */
+	static long[] murmur3x128(ByteBuffer buffer, int from, int to) {
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		long h1 = 0;
+		long h2 = 0;
+		int length = to - from;
+		int blocksEnd = from + (length & ~15);
+		for (int p = from; p < blocksEnd; p += 16) {
+			long k1 = getLongLE(buffer, p);
+			long k2 = getLongLE(buffer, p + 8);
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+		long k1 = 0;
+		long k2 = 0;
+		int tail = length & 15;
+		for (int i = tail - 1; i >= 8; i--) {
+			k2 ^= (long) (buffer.get(blocksEnd + i) & 0xff) << ((i - 8) * 8);
+		}
+		if (tail > 8) {
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+		}
+		for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+			k1 ^= (long) (buffer.get(blocksEnd + i) & 0xff) << (i * 8);
+		}
+		if (tail > 0) {
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		h2 += h1;
+		return new long[] { h1, h2 };
+	}
+
+
+	private static long getLongLE(ByteBuffer buffer, int p) {
+		long value = 0;
+		for (int i = 7; i >= 0; i--) {
+			value = (value << 8) | (buffer.get(p + i) & 0xff);
+		}
+		return value;
+	}
+
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -0,0 +1,168 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative values (e.g., durations in us) with
+ * log-linear buckets like an HDR histogram: values below 16 are counted
+ * exactly, larger ones in 8 buckets per power of two, i.e., with a relative
+ * error of at most 12.5%. Recording a value is lock-free and does not
+ * allocate.
+ */
+public class BftsuHistogram {
+
+	/** values below this are counted exactly */
+	private static final int EXACT_VALUES = 16;
+	/** buckets per power of two (above the exact values) */
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int NUMBER_OF_BUCKETS = EXACT_VALUES + (63 - 4) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUMBER_OF_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value	the value (negative values are recorded as 0)
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(getBucket(value));
+		count.increment();
+		sum.add(value);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+
+	/**
+	 * Moves all recorded values to a new histogram, e.g., to report an
+	 * interval. Values recorded concurrently end up in either histogram.
+	 *
+	 * @return	a histogram with the values recorded so far
+	 */
+	public BftsuHistogram drain() {
+		BftsuHistogram drained = new BftsuHistogram();
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			long bucketCount = buckets.getAndSet(i, 0);
+			if (bucketCount != 0) {
+				drained.buckets.set(i, bucketCount);
+			}
+		}
+		drained.count.add(count.sumThenReset());
+		drained.sum.add(sum.sumThenReset());
+		drained.max.set(max.getAndSet(0));
+		return drained;
+	}
+
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+
+	/**
+	 * @return the sum of all recorded values
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+
+	/**
+	 * @return the mean of all recorded values (0 if there are none)
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return (n > 0) ? (double) sum.sum() / n : 0;
+	}
+
+
+	/**
+	 * @return the largest recorded value
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+
+	/**
+	 * Returns a percentile, as the largest value of the bucket it falls into
+	 * (but at most the largest recorded value).
+	 *
+	 * @param percentile	the percentile (0 to 100)
+	 * @return				the value (0 if there are no values)
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] counts = new long[NUMBER_OF_BUCKETS];
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < NUMBER_OF_BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(getBucketEnd(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+
+	static int getBucket(long value) {
+		if (value < EXACT_VALUES) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return EXACT_VALUES + (exponent - 4) * SUB_BUCKETS + subBucket;
+	}
+
+
+	/**
+	 * @return the largest value counted in the given bucket
+	 */
+	static long getBucketEnd(int bucket) {
+		if (bucket < EXACT_VALUES) {
+			return bucket;
+		}
+		int exponent = (bucket - EXACT_VALUES) / SUB_BUCKETS + 4;
+		int subBucket = (bucket - EXACT_VALUES) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) * width) + width - 1;
+	}
+}
@@ -0,0 +1,217 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Remembers where the elements of an input file are and which filter
+ * positions they were hashed to, so the output can be filtered without
+ * parsing and hashing the input file a second time.
+ * <p>
+ * The index is kept in primitive arrays per chunk of the file: the offset and
+ * the length of every element and its <code>k</code> filter positions. To
+ * write the output, the positions are probed in the result filter and the
+ * bytes of the matching elements are copied from the memory-mapped file.
+ */
+public class BftsuInputIndex {
+
+	/** the elements of one chunk of the input file */
+	static class Chunk {
+		/** position of the chunk in the file */
+		final long start;
+		/** position after the chunk */
+		final long end;
+		/** number of elements in the chunk */
+		int size = 0;
+		/** offset of every element, relative to the chunk start */
+		int[] offsets = new int[1024];
+		/** length of every element */
+		int[] lengths = new int[1024];
+		/** the filter positions; element i uses [i*k, (i+1)*k) */
+		int[] positions;
+
+		Chunk(long start, long end, int numberOfHashFunctions) {
+			this.start = start;
+			this.end = end;
+			this.positions = new int[1024 * numberOfHashFunctions];
+		}
+	}
+
+	/** number of hash functions */
+	private int numberOfHashFunctions;
+	/** the chunks in file order */
+	private List<Chunk> chunks = new ArrayList<Chunk>();
+	/** length of the indexed file */
+	private long fileLength;
+	/** modification time of the indexed file */
+	private long fileModified;
+
+
+	/**
+	 * Creates an empty index for the given file.
+	 *
+	 * @param numberOfHashFunctions	number of hash functions of the Bloom filter
+	 * @param file					the file that is indexed
+	 */
+	public BftsuInputIndex(int numberOfHashFunctions, File file) {
+		this.numberOfHashFunctions = numberOfHashFunctions;
+		this.fileLength = file.length();
+		this.fileModified = file.lastModified();
+	}
+
+
+	/**
+	 * Checks whether the index still describes the file, i.e., whether the file
+	 * was not changed since it was read.
+	 *
+	 * @param file	the input file
+	 * @return		true if the index can be used for the file
+	 */
+	public boolean isValidFor(File file) {
+		return file.length() == fileLength && file.lastModified() == fileModified;
+	}
+
+
+	/**
+	 * @return the number of indexed elements
+	 */
+	public long getNumberOfElements() {
+		long elements = 0;
+		for (Chunk chunk : chunks) {
+			elements += chunk.size;
+		}
+		return elements;
+	}
+
+
+	/**
+	 * Creates the index of a chunk. Chunks can be filled in parallel and are
+	 * added using {@link #addChunk(Chunk)}.
+	 */
+	Chunk newChunk(long start, long end) {
+		return new Chunk(start, end, numberOfHashFunctions);
+	}
+
+
+	/**
+	 * Adds an element to a chunk and returns the offset in the chunk's position
+	 * array where its <code>k</code> positions have to be stored.
+	 */
+	int addElement(Chunk chunk, int offset, int length) {
+		if (chunk.size == chunk.offsets.length) {
+			int capacity = chunk.size * 2;
+			chunk.offsets = Arrays.copyOf(chunk.offsets, capacity);
+			chunk.lengths = Arrays.copyOf(chunk.lengths, capacity);
+			chunk.positions = Arrays.copyOf(chunk.positions, capacity * numberOfHashFunctions);
+		}
+		chunk.offsets[chunk.size] = offset;
+		chunk.lengths[chunk.size] = length;
+		return (chunk.size++) * numberOfHashFunctions;
+	}
+
+
+	/**
+	 * Adds a filled chunk (chunks may be added in any order).
+	 */
+	synchronized void addChunk(Chunk chunk) {
+		chunks.add(chunk);
+	}
+
+
+	/**
+	 * Brings the chunks into file order, once all of them were added.
+	 */
+	synchronized void sortChunks() {
+		Collections.sort(chunks, new Comparator<Chunk>() {
+			public int compare(Chunk c1, Chunk c2) {
+				return c1.start < c2.start ? -1 : (c1.start == c2.start ? 0 : 1);
+			}
+		});
+	}
+
+
+	/**
+	 * Copies all elements that are contained in the result filter to the output
+	 * file, one per line.
+	 *
+	 * @param input		the indexed input file
+	 * @param filter	the (non-counting) result filter
+	 * @param output	the output file
+	 * @throws IOException
+	 */
+	public void writeMatchingLines(File input, BftsuBloomFilter filter, File output) throws IOException {
+		byte[] lineSeparator = System.getProperty("line.separator").getBytes();
+		FileOutputStream out = new FileOutputStream(output);
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			FileChannel inChannel = raf.getChannel();
+			FileChannel outChannel = out.getChannel();
+			ByteBuffer outBuffer = ByteBuffer.allocateDirect(1 << 16);
+			for (Chunk chunk : chunks) {
+				if (chunk.size == 0) {
+					continue;
+				}
+				MappedByteBuffer buffer = inChannel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+				for (int i = 0; i < chunk.size; i++) {
+					if (!filter.check(chunk.positions, i * numberOfHashFunctions)) {
+						continue;
+					}
+					int offset = chunk.offsets[i];
+					int length = chunk.lengths[i];
+					if (outBuffer.remaining() < length + lineSeparator.length) {
+						flush(outBuffer, outChannel);
+					}
+					ByteBuffer element = buffer.duplicate();
+					element.limit(offset + length).position(offset);
+					if (outBuffer.remaining() < length + lineSeparator.length) {
+						// longer than the buffer: write it directly
+						while (element.hasRemaining()) {
+							outChannel.write(element);
+						}
+					} else {
+						outBuffer.put(element);
+					}
+					outBuffer.put(lineSeparator);
+				}
+			}
+			flush(outBuffer, outChannel);
+		} finally {
+			raf.close();
+			out.close();
+		}
+	}
+
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
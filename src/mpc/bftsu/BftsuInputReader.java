@@ -0,0 +1,405 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads the elements of an input file (one element per line) into a
+ * {@link BftsuBloomFilter} without creating a String per element.
+ * <p>
+ * The file is memory-mapped and split into chunks at line boundaries. Every
+ * chunk is hashed straight from the mapped bytes into a filter of its own and
+ * the chunk filters are summed up at the end. Since the merge is a plain sum,
+ * the resulting filter does not depend on the number of chunks or threads.
+ * <p>
+ * Files can also be read sequentially by the line reader of the original
+ * input peer, a {@link BufferedReader} over a {@link FileReader}. The mapped
+ * chunks are split into lines like {@link BufferedReader#readLine()} does
+ * (at '\n', '\r' or "\r\n"), so both result in the same filter as long as
+ * the input is valid in the platform charset and that charset encodes '\n'
+ * and '\r' as single bytes (e.g. ASCII, ISO-8859-1 or UTF-8). The positions
+ * are computed by the {@link BftsuHashStrategy}; all peers of a computation
+ * have to use the same strategy.
+ */
+public class BftsuInputReader {
+
+	/** the smallest chunk handed to a worker thread */
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	/** the largest region that is mapped at once */
+	private static final long MAX_CHUNK_SIZE = 1 << 30;
+
+	/** computes the positions of the elements */
+	private BftsuHashStrategy hashStrategy;
+	/** number of hash functions */
+	private int numberOfHashFunctions;
+	/** length of the filter (a power of two) */
+	private int filterLength;
+	/** number of chunks hashed in parallel */
+	private int numberOfThreads;
+	/** the workers hashing the chunks */
+	private ExecutorService executor = null;
+
+
+	/**
+	 * Creates a new input reader.
+	 *
+	 * @param numberOfHashFunctions	number of hash functions of the Bloom filter
+	 * @param filterLength			length of the Bloom filter, has to be a power of two
+	 * @param numberOfThreads		number of chunks hashed in parallel
+	 */
+	public BftsuInputReader(int numberOfHashFunctions, int filterLength, int numberOfThreads) {
+		this(BftsuHashStrategy.getDefault(), numberOfHashFunctions, filterLength, numberOfThreads);
+	}
+
+
+	/**
+	 * Creates a new input reader using the given hash strategy.
+	 *
+	 * @param hashStrategy			the hash strategy of the Bloom filter
+	 * @param numberOfHashFunctions	number of hash functions of the Bloom filter
+	 * @param filterLength			length of the Bloom filter, has to be a power of two
+	 * @param numberOfThreads		number of chunks hashed in parallel
+	 */
+	public BftsuInputReader(BftsuHashStrategy hashStrategy, int numberOfHashFunctions, int filterLength, int numberOfThreads) {
+		if (Integer.bitCount(filterLength) != 1) {
+			throw new IllegalArgumentException("Filter length has to be a power of two: " + filterLength);
+		}
+		this.hashStrategy = hashStrategy;
+		this.numberOfHashFunctions = numberOfHashFunctions;
+		this.filterLength = filterLength;
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+	}
+
+
+	/**
+	 * Reads all elements of the file into a new counting Bloom filter.
+	 *
+	 * @param file	the input file
+	 * @return		the Bloom filter
+	 * @throws IOException
+	 */
+	public BftsuBloomFilter read(File file) throws IOException {
+		return read(file, null);
+	}
+
+
+	/**
+	 * Reads all elements of the file into a new counting Bloom filter and
+	 * records their offsets and positions in the given index.
+	 *
+	 * @param file	the input file
+	 * @param index	the index to fill (null for none)
+	 * @return		the Bloom filter
+	 * @throws IOException
+	 */
+	public BftsuBloomFilter read(File file, final BftsuInputIndex index) throws IOException {
+		if (index != null && !hashStrategy.hashesBytes()) {
+			throw new IllegalArgumentException("The input index needs the positions of the elements, which "
+					+ hashStrategy.getName() + " does not compute");
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			long[] bounds = getChunkBounds(channel);
+			int chunks = bounds.length - 1;
+			if (chunks == 1) {
+				BftsuBloomFilter filter = new BftsuBloomFilter(hashStrategy, numberOfHashFunctions, filterLength);
+				hashChunk(channel, bounds[0], bounds[1], filter, index);
+				return filter;
+			}
+
+			List<Future<BftsuBloomFilter>> futures = new ArrayList<Future<BftsuBloomFilter>>(chunks);
+			for (int i = 0; i < chunks; i++) {
+				final long start = bounds[i];
+				final long end = bounds[i+1];
+				futures.add(getExecutor().submit(new Callable<BftsuBloomFilter>() {
+					public BftsuBloomFilter call() throws IOException {
+						BftsuBloomFilter filter = new BftsuBloomFilter(hashStrategy, numberOfHashFunctions, filterLength);
+						hashChunk(channel, start, end, filter, index);
+						return filter;
+					}
+				}));
+			}
+
+			// merge the chunk filters into the first one
+			BftsuBloomFilter filter = getResult(futures.get(0));
+			for (int i = 1; i < chunks; i++) {
+				filter.add(getResult(futures.get(i)));
+			}
+			if (index != null) {
+				index.sortChunks();
+			}
+			return filter;
+		} finally {
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Reads all elements of the file one after another into a new counting
+	 * Bloom filter, line by line like the original input peer. The result is
+	 * the same as the one of {@link #read(File)}.
+	 *
+	 * @param file	the input file
+	 * @return		the Bloom filter
+	 * @throws IOException
+	 */
+	public BftsuBloomFilter readSequentially(File file) throws IOException {
+		BftsuBloomFilter filter = new BftsuBloomFilter(hashStrategy, numberOfHashFunctions, filterLength);
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String elem = null;
+			while (null != (elem = br.readLine())) {
+				filter.insert(elem);
+			}
+		} finally {
+			br.close();
+		}
+		return filter;
+	}
+
+
+	/**
+	 * Copies all lines of the input file whose element is contained in the
+	 * filter to the output file.
+	 *
+	 * @param input		the input file
+	 * @param filter	the (non-counting) result filter
+	 * @param output	the output file
+	 * @throws IOException
+	 */
+	public void writeMatchingLines(File input, BftsuBloomFilter filter, File output) throws IOException {
+		byte[] lineSeparator = System.getProperty("line.separator").getBytes();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 16);
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			for (long start = 0; start < size; ) {
+				long end = findChunkEnd(channel, Math.min(start + MAX_CHUNK_SIZE, size), size);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+				int limit = buffer.limit();
+				int lineStart = 0;
+				while (lineStart < limit) {
+					int lineEnd = findLineEnd(buffer, lineStart, limit);
+					if (filter.check(buffer, lineStart, lineEnd)) {
+						for (int i = lineStart; i < lineEnd; i++) {
+							out.write(buffer.get(i));
+						}
+						out.write(lineSeparator);
+					}
+					lineStart = nextLineStart(buffer, lineEnd, limit);
+				}
+				start = end;
+			}
+		} finally {
+			raf.close();
+			out.close();
+		}
+	}
+
+
+	/**
+	 * Copies all lines of the input file whose element is contained in the
+	 * filter to the output file, line by line like the original input peer.
+	 *
+	 * @param input		the input file
+	 * @param filter	the (non-counting) result filter
+	 * @param output	the output file
+	 * @throws IOException
+	 */
+	public void writeMatchingLinesSequentially(File input, BftsuBloomFilter filter, File output) throws IOException {
+		BufferedWriter bw = new BufferedWriter(new FileWriter(output));
+		BufferedReader br = new BufferedReader(new FileReader(input));
+		try {
+			String elem = null;
+			while (null != (elem = br.readLine())) {
+				// for each element in the input set, check if it is in the result
+				if (filter.check(elem)) {
+					bw.write(elem);
+					bw.newLine();
+				}
+			}
+		} finally {
+			br.close();
+			bw.close();
+		}
+	}
+
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Bftsu input reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+
+	private static BftsuBloomFilter getResult(Future<BftsuBloomFilter> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading input", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to read input", e.getCause());
+		}
+	}
+
+
+	/**
+	 * Splits the file into chunks that end at a line boundary.
+	 *
+	 * @return the chunk boundaries: chunk i spans [bounds[i], bounds[i+1])
+	 */
+	private long[] getChunkBounds(FileChannel channel) throws IOException {
+		long size = channel.size();
+		long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / numberOfThreads + 1));
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		long start = 0;
+		while (start < size) {
+			start = findChunkEnd(channel, Math.min(start + chunkSize, size), size);
+			bounds.add(start);
+		}
+		if (bounds.size() == 1) {
+			bounds.add(0L); // empty file
+		}
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Returns the position after the first line separator at or after the
+	 * given position (or the file size if there is none).
+	 */
+	private static long findChunkEnd(FileChannel channel, long position, long size) throws IOException {
+		if (position >= size) {
+			return size;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return Math.min(position + i + 1, size);
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+
+	/**
+	 * Inserts all elements of a chunk into the filter (and the index).
+	 */
+	private void hashChunk(FileChannel channel, long start, long end, BftsuBloomFilter filter, BftsuInputIndex index) throws IOException {
+		if (end <= start) {
+			return;
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		int limit = buffer.limit();
+		int lineStart = 0;
+		BftsuInputIndex.Chunk chunk = (index != null) ? index.newChunk(start, end) : null;
+		while (lineStart < limit) {
+			int lineEnd = findLineEnd(buffer, lineStart, limit);
+			if (chunk != null) {
+				int offset = index.addElement(chunk, lineStart, lineEnd - lineStart);
+				filter.insert(buffer, lineStart, lineEnd, chunk.positions, offset);
+			} else {
+				filter.insert(buffer, lineStart, lineEnd);
+			}
+			lineStart = nextLineStart(buffer, lineEnd, limit);
+		}
+		if (chunk != null) {
+			index.addChunk(chunk);
+		}
+	}
+
+
+	/**
+	 * Returns the end of the line starting at the given index: the index of
+	 * the first '\n' or '\r', like {@link BufferedReader#readLine()}.
+	 */
+	private static int findLineEnd(ByteBuffer buffer, int from, int limit) {
+		for (int i = from; i < limit; i++) {
+			byte b = buffer.get(i);
+			if (b == '\n' || b == '\r') {
+				return i;
+			}
+		}
+		return limit;
+	}
+
+
+	/**
+	 * Returns the start of the line after the given line end, skipping the
+	 * '\n' of a "\r\n". A chunk ends after a '\n', so it never splits one.
+	 */
+	private static int nextLineStart(ByteBuffer buffer, int lineEnd, int limit) {
+		if (lineEnd + 1 < limit && buffer.get(lineEnd) == '\r' && buffer.get(lineEnd + 1) == '\n') {
+			return lineEnd + 2;
+		}
+		return lineEnd + 1;
+	}
+}
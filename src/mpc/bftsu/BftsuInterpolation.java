@@ -0,0 +1,157 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+/**
+ * Reconstructs whole vectors of secrets from the Shamir shares of several
+ * privacy peers.
+ * <p>
+ * The privacy peer with alpha index <code>i</code> holds the value of the
+ * sharing polynomial at <code>x = i+1</code> (the same points as used by
+ * {@link mpc.ShamirSharing}). The secret is the value at <code>x = 0</code>,
+ * i.e., a linear combination of the shares with the Lagrange weights of the
+ * participating privacy peers. The weights only depend on the set of privacy
+ * peers, so they are computed once per vector instead of once per secret.
+ */
+public class BftsuInterpolation {
+
+	/** fields up to this size multiply without overflowing a long */
+	private static final long MAX_SMALL_FIELD_SIZE = 1L << 31;
+	/** fields up to this size multiply in 16-bit limbs */
+	private static final long MAX_LIMB_FIELD_SIZE = 1L << 47;
+
+	/** the size of the (prime) field */
+	private long fieldSize;
+
+
+	/**
+	 * Creates a new interpolation for the given field.
+	 *
+	 * @param fieldSize	the size of the field, has to be prime
+	 */
+	public BftsuInterpolation(long fieldSize) {
+		this.fieldSize = fieldSize;
+	}
+
+
+	/**
+	 * Reconstructs the secrets from the share vectors of the given privacy
+	 * peers. At least degree+1 share vectors are needed.
+	 *
+	 * @param shares		the share vectors; dimensions: [peer][numberOfSecrets]
+	 * @param alphaIndices	the alpha index of the privacy peer of each share vector
+	 * @return				the secrets
+	 */
+	public long[] interpolate(long[][] shares, int[] alphaIndices) {
+		long[] weights = getLagrangeWeights(alphaIndices);
+		long[] secrets = new long[shares[0].length];
+		for (int j = 0; j < shares.length; j++) {
+			long[] row = shares[j];
+			long weight = weights[j];
+			if (fieldSize <= MAX_SMALL_FIELD_SIZE) {
+				for (int i = 0; i < secrets.length; i++) {
+					long s = secrets[i] + (row[i] * weight) % fieldSize;
+					secrets[i] = s >= fieldSize ? s - fieldSize : s;
+				}
+			} else {
+				for (int i = 0; i < secrets.length; i++) {
+					long s = secrets[i] + mulMod(row[i], weight);
+					secrets[i] = (s < 0 || s >= fieldSize) ? s - fieldSize : s;
+				}
+			}
+		}
+		return secrets;
+	}
+
+
+	/**
+	 * Computes the Lagrange weights for interpolating at <code>x = 0</code>.
+	 *
+	 * @param alphaIndices	the alpha indices of the participating privacy peers
+	 * @return				the weight of every privacy peer
+	 */
+	public long[] getLagrangeWeights(int[] alphaIndices) {
+		long[] weights = new long[alphaIndices.length];
+		for (int j = 0; j < alphaIndices.length; j++) {
+			long xj = alphaIndices[j] + 1;
+			long numerator = 1;
+			long denominator = 1;
+			for (int m = 0; m < alphaIndices.length; m++) {
+				if (m == j) {
+					continue;
+				}
+				long xm = alphaIndices[m] + 1;
+				numerator = mulMod(numerator, xm);
+				denominator = mulMod(denominator, ((xm - xj) % fieldSize + fieldSize) % fieldSize);
+			}
+			weights[j] = mulMod(numerator, inverse(denominator));
+		}
+		return weights;
+	}
+
+
+	/**
+	 * Multiplies two field elements.
+	 */
+	long mulMod(long a, long b) {
+		if (fieldSize <= MAX_SMALL_FIELD_SIZE) {
+			return (a * b) % fieldSize;
+		}
+		if (fieldSize <= MAX_LIMB_FIELD_SIZE) {
+			// a and the remainder are below 2^47, so neither a times a 16-bit limb
+			// nor the remainder shifted by 16 bits overflows
+			long result = 0;
+			for (int shift = 48; shift >= 0; shift -= 16) {
+				result = (result << 16) % fieldSize + (a * ((b >>> shift) & 0xffff)) % fieldSize;
+				if (result >= fieldSize) {
+					result -= fieldSize;
+				}
+			}
+			return result;
+		}
+		// double and add
+		long result = 0;
+		for (int bit = 63 - Long.numberOfLeadingZeros(b); bit >= 0; bit--) {
+			result <<= 1;
+			if (result < 0 || result >= fieldSize) {
+				result -= fieldSize;
+			}
+			if (((b >>> bit) & 1) != 0) {
+				result += a;
+				if (result < 0 || result >= fieldSize) {
+					result -= fieldSize;
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Computes the multiplicative inverse of a field element (Fermat).
+	 */
+	private long inverse(long a) {
+		long result = 1;
+		long base = a;
+		for (long e = fieldSize - 2; e > 0; e >>>= 1) {
+			if ((e & 1) != 0) {
+				result = mulMod(result, base);
+			}
+			base = mulMod(base, base);
+		}
+		return result;
+	}
+}
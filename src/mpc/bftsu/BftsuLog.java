@@ -0,0 +1,103 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logging helpers for the hot paths of a round (per message, per thread and
+ * per barrier). The message is passed in parts and only concatenated if the
+ * level is enabled, so a disabled level costs a single check and no
+ * allocation. Messages that are logged once per round use the logger
+ * directly.
+ */
+public final class BftsuLog {
+
+	private BftsuLog() {
+	}
+
+
+	/**
+	 * Logs <code>message + arg</code> if the level is enabled.
+	 */
+	public static void log(Logger logger, Level level, String message, Object arg) {
+		if (logger.isLoggable(level)) {
+			logger.log(level, message + arg);
+		}
+	}
+
+
+	/**
+	 * Logs <code>message + arg</code> if the level is enabled (without boxing
+	 * the argument).
+	 */
+	public static void log(Logger logger, Level level, String message, long arg) {
+		if (logger.isLoggable(level)) {
+			logger.log(level, message + arg);
+		}
+	}
+
+
+	/**
+	 * Logs <code>message + arg + message2 + arg2</code> if the level is enabled.
+	 */
+	public static void log(Logger logger, Level level, String message, Object arg, String message2, Object arg2) {
+		if (logger.isLoggable(level)) {
+			logger.log(level, message + arg + message2 + arg2);
+		}
+	}
+
+
+	/**
+	 * Logs <code>message + arg + message2 + arg2</code> if the level is
+	 * enabled (without boxing the arguments).
+	 */
+	public static void log(Logger logger, Level level, String message, long arg, String message2, long arg2) {
+		if (logger.isLoggable(level)) {
+			logger.log(level, message + arg + message2 + arg2);
+		}
+	}
+
+
+	/**
+	 * Logs a message of level {@link Level#FINE}.
+	 */
+	public static void fine(Logger logger, String message) {
+		logger.log(Level.FINE, message);
+	}
+
+
+	public static void fine(Logger logger, String message, Object arg) {
+		log(logger, Level.FINE, message, arg);
+	}
+
+
+	public static void fine(Logger logger, String message, long arg) {
+		log(logger, Level.FINE, message, arg);
+	}
+
+
+	public static void fine(Logger logger, String message, Object arg, String message2, Object arg2) {
+		log(logger, Level.FINE, message, arg, message2, arg2);
+	}
+
+
+	public static void fine(Logger logger, String message, long arg, String message2, long arg2) {
+		log(logger, Level.FINE, message, arg, message2, arg2);
+	}
+}
@@ -15,7 +15,11 @@
 
 package mpc.bftsu;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.BitSet;
 
 import mpc.MessageBase;
 
@@ -27,20 +31,67 @@ import mpc.MessageBase;
  *
  */
 public class BftsuMessage extends MessageBase implements Serializable {
-	private static final long serialVersionUID = 3461683923455914692L;
+	private static final long serialVersionUID = -4286502215137935761L;
+
+	/** header bits of the binary encoding (see {@link #writeObject(ObjectOutputStream)}) */
+	private static final int FLAG_INITIAL_SHARES_MESSAGE = 1;
+	private static final int FLAG_FINAL_RESULT_MESSAGE = 1 << 1;
+	private static final int FLAG_LAST_SHARES_CHUNK = 1 << 2;
+	private static final int FLAG_HAS_INITIAL_SHARES = 1 << 3;
+	private static final int FLAG_HAS_FINAL_RESULTS = 1 << 4;
+	private static final int FLAG_RESULT_SHARES_MESSAGE = 1 << 5;
+	private static final int FLAG_PARTICIPANTS_MESSAGE = 1 << 6;
+	private static final int FLAG_EXCLUDED = 1 << 7;
+
+	/** read the shares of initial shares messages into off-heap buffers */
+	private static volatile boolean readSharesOffHeap = false;
+
+	/*
+	 * All fields are transient: they are written in the compact binary form of
+	 * writeObject() instead of the default serialized form.
+	 */
 
 	/**
 	 * Message Type Flags
 	 */
 	/** indicates if the message contains the initial shares */
-	private boolean isInitialSharesMessage = false;
+	private transient boolean isInitialSharesMessage = false;
 	/** indicates if the message contains the final results */
-	private boolean isFinalResultMessage = false;
+	private transient boolean isFinalResultMessage = false;
+	/** indicates if the message contains the shares of the result (sent among privacy peers) */
+	private transient boolean isResultSharesMessage = false;
+	/** indicates if the message contains the input peers a privacy peer computes the round on */
+	private transient boolean isParticipantsMessage = false;
+	/** indicates if the shares of the receiving input peer were left out of the round (final result messages) */
+	private transient boolean isExcluded = false;
 
+	/** the time slot the message belongs to (0 if unknown) */
+	private transient int timeSlot = 0;
+	/** the settings of the Bloom filter the initial shares were generated from (see {@link BftsuBase#getFilterConfig()}) */
+	private transient String filterConfig = null;
 	/** contains the initial shares */
-	private long[] initialShares = null;
+	private transient long[] initialShares = null;
+	/** contains the initial shares if they were read off-heap (see {@link #setReadSharesOffHeap(boolean)}) */
+	private transient BftsuShareBuffer shareBuffer = null;
+	/** the range [sharesFrom, sharesTo) of initialShares that is sent */
+	private transient int sharesFrom = 0;
+	private transient int sharesTo = 0;
+	/** index of the first initial share within the whole share vector */
+	private transient int sharesOffset = 0;
+	/** indicates if the message contains the last chunk of the initial shares */
+	private transient boolean isLastSharesChunk = true;
 	/** contains the final results */
-	private long[] finalResults = null;
+	private transient long[] finalResults = null;
+	/** contains the final results as received, if they were sent as a sparse 0/1 vector */
+	private transient BitSet finalResultBits = null;
+	/** the length of the final results vector */
+	private transient int finalResultsLength = 0;
+	/** the final results, already encoded in the adaptive form (never modified) */
+	private transient byte[] encodedResults = null;
+	/** the IDs of the input peers whose shares the sender received in time */
+	private transient String[] participants = null;
+	/** the number of bytes of the binary form, set when the message is written */
+	private transient int payloadSize = 0;
 
 
 	/**
@@ -71,15 +122,142 @@ public class BftsuMessage extends MessageBase implements Serializable {
 	}
 
 
+	public boolean isResultSharesMessage() {
+		return isResultSharesMessage;
+	}
+
+	/**
+	 * marks the message as containing the shares of the result vector; the
+	 * shares are set using {@link #setShares(long[])}
+	 */
+	public void setIsResultSharesMessage(boolean isResultSharesMessage) {
+		this.isResultSharesMessage = isResultSharesMessage;
+	}
+
+
+	public boolean isParticipantsMessage() {
+		return isParticipantsMessage;
+	}
+
+	/**
+	 * marks the message as containing the input peers whose shares the sender
+	 * received in time; the IDs are set using {@link #setParticipants(String[])}
+	 */
+	public void setIsParticipantsMessage(boolean isParticipantsMessage) {
+		this.isParticipantsMessage = isParticipantsMessage;
+	}
+
+
+	public boolean isExcluded() {
+		return isExcluded;
+	}
+
+	/**
+	 * marks a final result message for an input peer whose shares the privacy
+	 * peers left out of the round, e.g., because they arrived too late
+	 */
+	public void setIsExcluded(boolean isExcluded) {
+		this.isExcluded = isExcluded;
+	}
+
+
+	/**
+	 * @return the IDs of the input peers whose shares the sender received in time
+	 */
+	public String[] getParticipants() {
+		return participants;
+	}
+
+
+	/**
+	 * sets the IDs of the input peers whose shares the sender received in time
+	 *
+	 * @param participants	the input peer IDs
+	 */
+	public void setParticipants(String[] participants) {
+		this.participants = participants;
+	}
+
+
+
+	/**
+	 * @return the time slot the message belongs to (0 if unknown)
+	 */
+	public int getTimeSlot() {
+		return timeSlot;
+	}
+
+
+	/**
+	 * sets the time slot the message belongs to
+	 *
+	 * @param timeSlot	the time slot (starting at 1)
+	 */
+	public void setTimeSlot(int timeSlot) {
+		this.timeSlot = timeSlot;
+	}
+
+
+
+	/**
+	 * @return the settings of the Bloom filter the initial shares were
+	 * generated from (initial shares messages only)
+	 */
+	public String getFilterConfig() {
+		return filterConfig;
+	}
+
+
+	/**
+	 * sets the settings of the Bloom filter the initial shares were generated
+	 * from (written with initial shares messages only)
+	 *
+	 * @param filterConfig	the settings, see {@link BftsuBase#getFilterConfig()}
+	 */
+	public void setFilterConfig(String filterConfig) {
+		this.filterConfig = filterConfig;
+	}
+
+
 
 	/**
-	 * @return the initial shares
+	 * @return the initial shares (null if they were read off-heap, see {@link #getShareBuffer()})
 	 */
 	public long[] getInitialShares() {
 		return initialShares;
 	}
 
 
+	/**
+	 * @return the initial shares if they were read into an off-heap buffer,
+	 * null otherwise; the receiver has to release the buffer
+	 */
+	public BftsuShareBuffer getShareBuffer() {
+		return shareBuffer;
+	}
+
+
+	/**
+	 * @return true if the message contains initial shares (on or off the heap)
+	 */
+	public boolean hasInitialShares() {
+		return initialShares != null || shareBuffer != null;
+	}
+
+
+	/**
+	 * Sets whether the shares of initial shares messages are read into
+	 * off-heap buffers instead of arrays. Applies to all messages read
+	 * afterwards in this JVM; the shares of the other messages are always
+	 * read into arrays.
+	 *
+	 * @param offHeap	true to read the initial shares off-heap
+	 */
+	public static void setReadSharesOffHeap(boolean offHeap) {
+		readSharesOffHeap = offHeap;
+	}
+
+
 	/**
 	 * sets the initial shares
 	 *
@@ -87,22 +265,237 @@ public class BftsuMessage extends MessageBase implements Serializable {
 	 */
 	public void setShares(long[] shares) {
 		this.initialShares = shares;
+		this.sharesFrom = 0;
+		this.sharesTo = (shares != null) ? shares.length : 0;
+	}
+
+
+	/**
+	 * Sets a range of a share vector as the initial shares. The range is
+	 * written without copying it and read as a vector of its own.
+	 *
+	 * @param shares	the share vector
+	 * @param from		index of the first share to send
+	 * @param to		index after the last share to send
+	 */
+	public void setShares(long[] shares, int from, int to) {
+		this.initialShares = shares;
+		this.sharesFrom = from;
+		this.sharesTo = to;
+	}
+
+
+
+	/**
+	 * @return the index of the first initial share within the whole share vector
+	 */
+	public int getSharesOffset() {
+		return sharesOffset;
+	}
+
+
+	/**
+	 * sets the index of the first initial share within the whole share vector
+	 *
+	 * @param sharesOffset	the offset
+	 */
+	public void setSharesOffset(int sharesOffset) {
+		this.sharesOffset = sharesOffset;
+	}
+
+
+	public boolean isLastSharesChunk() {
+		return isLastSharesChunk;
+	}
+
+	public void setIsLastSharesChunk(boolean isLastSharesChunk) {
+		this.isLastSharesChunk = isLastSharesChunk;
 	}
 
 
 
 	/**
-	 * @return the final results
+	 * @return the final results (materialized if they were received in a sparse encoding)
 	 */
 	public long[] getResults() {
+		if (finalResults == null && finalResultBits != null) {
+			finalResults = BftsuCodec.toArray(finalResultBits, finalResultsLength);
+		}
 		return finalResults;
 	}
 
 
+	/**
+	 * Returns the positions of the ones in the final results if they were
+	 * received in a sparse encoding. This avoids materializing the dense vector.
+	 *
+	 * @return the set positions or <code>null</code> if the results are only available densely
+	 */
+	public BitSet getResultBits() {
+		return finalResultBits;
+	}
+
+
+	/**
+	 * @return the length of the final results vector
+	 */
+	public int getResultsLength() {
+		return (finalResults != null) ? finalResults.length : finalResultsLength;
+	}
+
+
+	/**
+	 * @return true if the message contains final results
+	 */
+	public boolean hasResults() {
+		return finalResults != null || finalResultBits != null || encodedResults != null;
+	}
+
+
 	/**
 	 * @param finalResults the finalResults to set
 	 */
 	public void setResults(long[] finalResults) {
 		this.finalResults = finalResults;
+		this.finalResultBits = null;
+		this.encodedResults = null;
+	}
+
+
+	/**
+	 * Sets final results that were already encoded by
+	 * {@link BftsuCodec#encodeAdaptive(long[])}. The bytes are written as they
+	 * are, so one encoding can be shared by the messages to all input peers.
+	 * They are not decoded on the sending side, i.e., {@link #getResults()}
+	 * returns <code>null</code>.
+	 *
+	 * @param encodedResults	the encoded final results (must not be modified afterwards)
+	 */
+	public void setEncodedResults(byte[] encodedResults) {
+		this.finalResults = null;
+		this.finalResultBits = null;
+		this.encodedResults = encodedResults;
+	}
+
+
+	/**
+	 * @return the number of bytes of the binary form of the message, as last
+	 * written (0 if the message was not written yet)
+	 */
+	public int getPayloadSize() {
+		return payloadSize;
+	}
+
+
+	/**
+	 * Writes the message in a compact binary form: a single header byte with
+	 * the message type flags, followed by the bit-packed vectors (see
+	 * {@link BftsuCodec}). The final results are written in the adaptive form,
+	 * which is much smaller for sparse 0/1 vectors. The vectors are always written as new data, so
+	 * buffers reused between rounds are never sent as back-references. They are
+	 * packed piece by piece, without a heap copy of the encoded vector.
+	 * <p>
+	 * The connections of SEPIA send messages through Java serialization, which
+	 * adds the class descriptors and the fields of MessageBase once per message
+	 * and a block header per 1024 bytes of the binary form (about 0.5%).
+	 *
+	 * @serialData header byte, int timeSlot, [filter config (UTF)], [int sharesOffset, initial shares], [final results],
+	 * [int count, participant IDs (UTF)]
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		int header = 0;
+		if (isInitialSharesMessage) {
+			header |= FLAG_INITIAL_SHARES_MESSAGE;
+		}
+		if (isFinalResultMessage) {
+			header |= FLAG_FINAL_RESULT_MESSAGE;
+		}
+		if (isResultSharesMessage) {
+			header |= FLAG_RESULT_SHARES_MESSAGE;
+		}
+		if (isParticipantsMessage) {
+			header |= FLAG_PARTICIPANTS_MESSAGE;
+		}
+		if (isLastSharesChunk) {
+			header |= FLAG_LAST_SHARES_CHUNK;
+		}
+		if (isExcluded) {
+			header |= FLAG_EXCLUDED;
+		}
+		if (initialShares != null) {
+			header |= FLAG_HAS_INITIAL_SHARES;
+		}
+		if (hasResults()) {
+			header |= FLAG_HAS_FINAL_RESULTS;
+		}
+		out.writeByte(header);
+		out.writeInt(timeSlot);
+		int size = 5;
+		if (isInitialSharesMessage) {
+			String config = (filterConfig != null) ? filterConfig : "";
+			out.writeUTF(config);
+			size += 2 + config.length();
+		}
+		if (initialShares != null) {
+			out.writeInt(sharesOffset);
+			size += 4 + BftsuCodec.write(out, initialShares, sharesFrom, sharesTo);
+		}
+		if (encodedResults != null) {
+			out.write(encodedResults);
+			size += encodedResults.length;
+		} else if (hasResults()) {
+			size += BftsuCodec.writeAdaptive(out, getResults());
+		}
+		if (isParticipantsMessage) {
+			String[] ids = (participants != null) ? participants : new String[0];
+			out.writeInt(ids.length);
+			size += 4;
+			for (String id : ids) {
+				out.writeUTF(id);
+				size += 2 + id.length();
+			}
+		}
+		payloadSize = size;
+	}
+
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int header = in.readUnsignedByte();
+		timeSlot = in.readInt();
+		isInitialSharesMessage = (header & FLAG_INITIAL_SHARES_MESSAGE) != 0;
+		isFinalResultMessage = (header & FLAG_FINAL_RESULT_MESSAGE) != 0;
+		isResultSharesMessage = (header & FLAG_RESULT_SHARES_MESSAGE) != 0;
+		isParticipantsMessage = (header & FLAG_PARTICIPANTS_MESSAGE) != 0;
+		isLastSharesChunk = (header & FLAG_LAST_SHARES_CHUNK) != 0;
+		isExcluded = (header & FLAG_EXCLUDED) != 0;
+		if (isInitialSharesMessage) {
+			filterConfig = in.readUTF();
+		}
+		if ((header & FLAG_HAS_INITIAL_SHARES) != 0) {
+			sharesOffset = in.readInt();
+			if (readSharesOffHeap && isInitialSharesMessage) {
+				shareBuffer = BftsuCodec.readDirect(in);
+			} else {
+				initialShares = BftsuCodec.read(in);
+				sharesTo = initialShares.length;
+			}
+		}
+		if ((header & FLAG_HAS_FINAL_RESULTS) != 0) {
+			int encoding = in.readUnsignedByte();
+			if (encoding == BftsuCodec.ENCODING_DENSE) {
+				finalResults = BftsuCodec.read(in);
+			} else {
+				finalResultsLength = in.readInt();
+				finalResultBits = BftsuCodec.readBits(in, encoding, finalResultsLength);
+			}
+		}
+		if (isParticipantsMessage) {
+			participants = new String[in.readInt()];
+			for (int i = 0; i < participants.length; i++) {
+				participants[i] = in.readUTF();
+			}
+		}
 	}
 }
@@ -0,0 +1,376 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timings of the stages of a peer and the bytes it sent, per message type
+ * and per peer. The values are kept for all rounds (exposed through JMX) and
+ * for the current round, which is appended to a CSV file when the round ends.
+ * <p>
+ * Recording is cheap (a few atomic additions) and can be done from any
+ * thread:
+ * <pre>
+ * long start = BftsuMetrics.start();
+ * ...
+ * metrics.record(Stage.SHARE_GENERATION, start);
+ * </pre>
+ * The CSV file <code>bftsu_metrics_&lt;peer&gt;.csv</code> in the output folder
+ * has one row per round and stage (durations in us) and per round and message
+ * type or peer (bytes sent):
+ * <code>time_slot, slots, metric, name, count, total, mean, p50, p90, p99, max</code>.
+ */
+public class BftsuMetrics implements BftsuMetricsMBean {
+
+	/** the measured stages of a round */
+	public enum Stage {
+		/** waiting for the next input file (input peer) */
+		INPUT_READ,
+		/** building the Bloom filter of an input file (input peer) */
+		BLOOM_INSERT,
+		/** generating the initial shares (input peer) */
+		SHARE_GENERATION,
+		/** sending a message (all protocol threads) */
+		SEND,
+		/** from the start of the round until all shares arrived (privacy peer) */
+		WAIT_FOR_SHARES,
+		/** preparing the threshold union (privacy peer) */
+		START_BFTSU,
+		/** computing the threshold union, per protocol thread (privacy peer) */
+		OPERATIONS,
+		/** exchanging the result shares and interpolating the result (privacy peer) */
+		RECONSTRUCTION,
+		/** writing the output files (input peer) */
+		OUTPUT_WRITE
+	}
+
+	/** the types of the sent messages */
+	public enum MessageType {
+		INITIAL_SHARES,
+		RESULT_SHARES,
+		FINAL_RESULT,
+		PARTICIPANTS,
+		OTHER
+	}
+
+	private static final Logger logger = Logger.getLogger(BftsuMetrics.class.getName());
+
+	/** the metric names of the CSV rows */
+	private static final String CSV_STAGE = "time_us";
+	private static final String CSV_TYPE = "bytes_by_type";
+	private static final String CSV_PEER = "bytes_to_peer";
+
+	/** bytes and messages sent */
+	private static class Traffic {
+		final LongAdder bytes = new LongAdder();
+		final LongAdder messages = new LongAdder();
+
+		void add(long messageBytes) {
+			bytes.add(messageBytes);
+			messages.increment();
+		}
+	}
+
+	private final BftsuHistogram[] stageTimes = new BftsuHistogram[Stage.values().length];
+	private final BftsuHistogram[] roundStageTimes = new BftsuHistogram[Stage.values().length];
+	private final Traffic[] typeTraffic = new Traffic[MessageType.values().length];
+	private final Traffic[] roundTypeTraffic = new Traffic[MessageType.values().length];
+	private final Map<String, Traffic> peerTraffic = new ConcurrentHashMap<String, Traffic>();
+	private final Map<String, Traffic> roundPeerTraffic = new ConcurrentHashMap<String, Traffic>();
+
+	private volatile int lastTimeSlot = 0;
+	/** the CSV file (null: not written) */
+	private File csvFile = null;
+	/** the name of the registered MBean (null: not registered) */
+	private ObjectName objectName = null;
+
+
+	public BftsuMetrics() {
+		for (int i = 0; i < stageTimes.length; i++) {
+			stageTimes[i] = new BftsuHistogram();
+			roundStageTimes[i] = new BftsuHistogram();
+		}
+		for (int i = 0; i < typeTraffic.length; i++) {
+			typeTraffic[i] = new Traffic();
+			roundTypeTraffic[i] = new Traffic();
+		}
+	}
+
+
+	/**
+	 * @return the start time of a measurement
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+
+	/**
+	 * Records the duration of a stage.
+	 *
+	 * @param stage		the stage
+	 * @param startTime	the start time returned by {@link #start()}
+	 */
+	public void record(Stage stage, long startTime) {
+		long micros = (System.nanoTime() - startTime) / 1000;
+		stageTimes[stage.ordinal()].record(micros);
+		roundStageTimes[stage.ordinal()].record(micros);
+	}
+
+
+	/**
+	 * Records a sent message.
+	 *
+	 * @param message		the message
+	 * @param recipientID	the ID of the recipient
+	 */
+	public void addMessageSent(BftsuMessage message, String recipientID) {
+		long bytes = message.getPayloadSize();
+		MessageType type = getType(message);
+		typeTraffic[type.ordinal()].add(bytes);
+		roundTypeTraffic[type.ordinal()].add(bytes);
+		getTraffic(peerTraffic, recipientID).add(bytes);
+		getTraffic(roundPeerTraffic, recipientID).add(bytes);
+	}
+
+
+	/**
+	 * Starts exporting the metrics: registers the MBean and, if an output
+	 * folder is given, (re-)creates the CSV file.
+	 *
+	 * @param peerID		the ID of the peer
+	 * @param outputFolder	the folder of the CSV file (null: no CSV file)
+	 */
+	public synchronized void startExport(String peerID, File outputFolder) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName("mpc.bftsu:type=Metrics,peer=" + ObjectName.quote(peerID));
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Registering the metrics MBean failed: " + e);
+			objectName = null;
+		}
+		if (outputFolder != null) {
+			outputFolder.mkdirs();
+			csvFile = new File(outputFolder, "bftsu_metrics_" + peerID.replace(":", "_") + ".csv");
+			try {
+				PrintWriter out = new PrintWriter(new FileWriter(csvFile, false));
+				out.println("time_slot,slots,metric,name,count,total,mean,p50,p90,p99,max");
+				out.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Creating the metrics file " + csvFile + " failed: " + e);
+				csvFile = null;
+			}
+		}
+	}
+
+
+	/**
+	 * Stops exporting the metrics.
+	 */
+	public synchronized void stopExport() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Unregistering the metrics MBean failed: " + e);
+			}
+			objectName = null;
+		}
+		csvFile = null;
+	}
+
+
+	/**
+	 * Ends a round: the metrics of the round are appended to the CSV file and
+	 * reset.
+	 *
+	 * @param firstTimeSlot	the first time slot of the round
+	 * @param slots			the number of time slots of the round
+	 * @return a one-line summary of the round (traffic and time per stage)
+	 */
+	public synchronized String endRound(int firstTimeSlot, int slots) {
+		lastTimeSlot = firstTimeSlot;
+		String prefix = firstTimeSlot + "," + slots + ",";
+		StringBuilder rows = new StringBuilder();
+		long messages = 0;
+		long bytes = 0;
+		for (Traffic traffic : roundTypeTraffic) {
+			messages += traffic.messages.sum();
+			bytes += traffic.bytes.sum();
+		}
+		StringBuilder summary = new StringBuilder();
+		summary.append(messages).append(" messages sent (").append(bytes).append(" bytes)");
+		for (Stage stage : Stage.values()) {
+			BftsuHistogram times = roundStageTimes[stage.ordinal()].drain();
+			if (times.getCount() > 0) {
+				summary.append(", ").append(stage).append(' ').append(times.getSum() / 1000).append(" ms");
+				rows.append(prefix).append(CSV_STAGE).append(',').append(stage).append(',')
+						.append(times.getCount()).append(',').append(times.getSum()).append(',')
+						.append(String.format(Locale.ROOT, "%.1f", times.getMean())).append(',')
+						.append(times.getPercentile(50)).append(',').append(times.getPercentile(90)).append(',')
+						.append(times.getPercentile(99)).append(',').append(times.getMax()).append('\n');
+			}
+		}
+		for (MessageType type : MessageType.values()) {
+			appendTraffic(rows, prefix, CSV_TYPE, type.toString(), roundTypeTraffic[type.ordinal()]);
+		}
+		for (Map.Entry<String, Traffic> entry : new TreeMap<String, Traffic>(roundPeerTraffic).entrySet()) {
+			appendTraffic(rows, prefix, CSV_PEER, entry.getKey(), entry.getValue());
+		}
+		if (csvFile != null) {
+			try {
+				FileWriter out = new FileWriter(csvFile, true);
+				try {
+					out.write(rows.toString());
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Writing the metrics of time slot " + firstTimeSlot + " failed: " + e);
+			}
+		}
+		return summary.toString();
+	}
+
+
+	/**
+	 * @return the metrics of a stage over all rounds
+	 */
+	public BftsuHistogram getStageTimes(Stage stage) {
+		return stageTimes[stage.ordinal()];
+	}
+
+
+	public String[] getStages() {
+		Stage[] stages = Stage.values();
+		String[] names = new String[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			names[i] = stages[i].toString();
+		}
+		return names;
+	}
+
+
+	public int getLastTimeSlot() {
+		return lastTimeSlot;
+	}
+
+
+	public long getBytesSent() {
+		long bytes = 0;
+		for (Traffic traffic : typeTraffic) {
+			bytes += traffic.bytes.sum();
+		}
+		return bytes;
+	}
+
+
+	public String[] getPeers() {
+		return new TreeMap<String, Traffic>(peerTraffic).keySet().toArray(new String[0]);
+	}
+
+
+	public long getCount(String stage) {
+		return getStageTimes(Stage.valueOf(stage)).getCount();
+	}
+
+
+	public double getMeanMillis(String stage) {
+		return getStageTimes(Stage.valueOf(stage)).getMean() / 1000;
+	}
+
+
+	public double getPercentileMillis(String stage, double percentile) {
+		return getStageTimes(Stage.valueOf(stage)).getPercentile(percentile) / 1000.0;
+	}
+
+
+	public double getMaxMillis(String stage) {
+		return getStageTimes(Stage.valueOf(stage)).getMax() / 1000.0;
+	}
+
+
+	public long getBytesSentByType(String messageType) {
+		return typeTraffic[MessageType.valueOf(messageType).ordinal()].bytes.sum();
+	}
+
+
+	public long getBytesSentToPeer(String peerID) {
+		Traffic traffic = peerTraffic.get(peerID);
+		return (traffic != null) ? traffic.bytes.sum() : 0;
+	}
+
+
+	/**
+	 * @return the type of a message
+	 */
+	static MessageType getType(BftsuMessage message) {
+		if (message.isInitialSharesMessage()) {
+			return MessageType.INITIAL_SHARES;
+		} else if (message.isResultSharesMessage()) {
+			return MessageType.RESULT_SHARES;
+		} else if (message.isFinalResultMessage()) {
+			return MessageType.FINAL_RESULT;
+		} else if (message.isParticipantsMessage()) {
+			return MessageType.PARTICIPANTS;
+		}
+		return MessageType.OTHER;
+	}
+
+
+	private static Traffic getTraffic(Map<String, Traffic> traffic, String peerID) {
+		Traffic peer = traffic.get(peerID);
+		if (peer == null) {
+			synchronized (traffic) {
+				peer = traffic.get(peerID);
+				if (peer == null) {
+					peer = new Traffic();
+					traffic.put(peerID, peer);
+				}
+			}
+		}
+		return peer;
+	}
+
+
+	private static void appendTraffic(StringBuilder rows, String prefix, String metric, String name, Traffic traffic) {
+		long messages = traffic.messages.sumThenReset();
+		long bytes = traffic.bytes.sumThenReset();
+		if (messages > 0) {
+			rows.append(prefix).append(metric).append(',').append(name).append(',').append(messages).append(',')
+					.append(bytes).append(',').append(bytes / messages).append(",,,,\n");
+		}
+	}
+}
@@ -0,0 +1,74 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+/**
+ * JMX interface of {@link BftsuMetrics}. The stages and message types are
+ * given by their names (see {@link BftsuMetrics.Stage} and
+ * {@link BftsuMetrics.MessageType}). All values cover all rounds so far.
+ */
+public interface BftsuMetricsMBean {
+
+	/**
+	 * @return the names of all stages
+	 */
+	String[] getStages();
+
+	/**
+	 * @return the first time slot of the last completed round (0: none yet)
+	 */
+	int getLastTimeSlot();
+
+	/**
+	 * @return the number of bytes sent to all peers
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return the IDs of all peers bytes were sent to
+	 */
+	String[] getPeers();
+
+	/**
+	 * @return the number of measurements of a stage
+	 */
+	long getCount(String stage);
+
+	/**
+	 * @return the mean duration of a stage in ms
+	 */
+	double getMeanMillis(String stage);
+
+	/**
+	 * @return a percentile (0 to 100) of the durations of a stage in ms
+	 */
+	double getPercentileMillis(String stage, double percentile);
+
+	/**
+	 * @return the longest duration of a stage in ms
+	 */
+	double getMaxMillis(String stage);
+
+	/**
+	 * @return the number of bytes sent in messages of a type
+	 */
+	long getBytesSentByType(String messageType);
+
+	/**
+	 * @return the number of bytes sent to a peer
+	 */
+	long getBytesSentToPeer(String peerID);
+}
@@ -15,25 +15,33 @@
 
 package mpc.bftsu;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
-import mpc.ShamirSharing;
 import mpc.VectorData;
+import mpc.bftsu.BftsuMetrics.Stage;
 import mpc.protocolPrimitives.PrimitivesEnabledProtocol;
-import services.BloomFilter;
 import services.DirectoryPoller;
 import services.Services;
 import services.Stopper;
+import services.Utils;
 import connections.ConnectionManager;
 import events.FinalResultEvent;
 
@@ -47,19 +55,89 @@ public class BftsuPeer extends BftsuBase {
 
 	/** vector of protocols (between this peer and the privacy peers) */
 	private Vector<BftsuProtocolPeer> peerProtocolThreads = null;
-	/** MpcShamirSharing instance to use basic operations on Shamir shares */
-	protected ShamirSharing mpcShamirSharing = null;
-
-	/** indicates if the initial shares were generated yet */
-	private boolean initialSharesGenerated = false;
+	/** generates the Shamir shares of the input data in parallel */
+	protected BftsuShareGenerator shareGenerator = null;
+
+	/** number of initial shares per privacy peer */
+	private int numberOfShares = 0;
+	/** number of chunks in which the initial shares are generated and sent */
+	private int numberOfSharesChunks = 1;
+	/** number of initial shares per chunk */
+	private int sharesChunkLength = 0;
+	/** number of chunks whose initial shares were generated yet (-1 if the generation failed) */
+	private int sharedChunks = 0;
+	/** guards sharedChunks (a lock instead of the monitor, so waiting does not pin virtual threads) */
+	private final Lock sharesLock = new ReentrantLock();
+	/** signalled whenever sharedChunks changes */
+	private final Condition sharesGenerated = sharesLock.newCondition();
 	/** array containing the input data of this peer for all time slots; format: [inputIndex] */
 	protected long[] inputData = null;
-	/** array containing my initial shares; dimensions: [numberOfPrivacyPeers][numberOfItems] */
+	/**
+	 * array containing my initial shares; dimensions: [numberOfPrivacyPeers][numberOfItems]
+	 * (the buffers are owned by the share generator and reused in every round)
+	 */
 	private long[][] initialShares = null;
 	
 	private DirectoryPoller poller;
-	/** keeps track of the input file belonging to the current round */
+	/** keeps track of the input file read last */
 	private File currentInputFile;
+	/** the index of the input file read last (null if not indexed) */
+	private BftsuInputIndex currentInputIndex;
+	/** reads the input files (memory-mapped if useMappedInput is set) and filters the output */
+	private BftsuInputReader inputReader = null;
+	/** the inputs read ahead of their rounds (only used if pipelineDepth is set) */
+	private BlockingQueue<SlotInput> prefetchedInputs = null;
+	/** the protocol thread reading the inputs ahead of their rounds */
+	private volatile Thread prefetcher = null;
+	/** the rounds whose final results are awaited, by their first time slot (guarded by itself) */
+	private final Map<Integer, PendingRound> pendingRounds = new HashMap<Integer, PendingRound>();
+	/** true once all shares of the current round are sent (guarded by pendingRounds) */
+	private boolean sharingDone = false;
+	/** the number of protocol threads of the current round still sending shares */
+	private final AtomicInteger sendersToDo = new AtomicInteger();
+
+	/** the input of one time slot */
+	private static class SlotInput {
+		/** the input file */
+		File file;
+		/** the Bloom filter of the file */
+		long[] data;
+		/** the index of the file (null if not indexed) */
+		BftsuInputIndex index;
+		/** false if reading the file failed */
+		boolean successful;
+	}
+
+	/** a round whose final results are awaited */
+	private static class PendingRound {
+		/** the first time slot of the round */
+		final int timeSlot;
+		/** the number of time slots of the round */
+		final int slots;
+		/** when the round was started */
+		final long startTime;
+		/** the input files of the time slots */
+		final File[] inputFiles;
+		/** the indices of the input files (elements are null if not indexed) */
+		final BftsuInputIndex[] inputIndices;
+		/** the number of privacy peers whose final result is missing */
+		int resultsToDo;
+		/** the final results (null if received as bits) */
+		long[] results;
+		/** the final results as set positions, if they were received in a sparse encoding */
+		BitSet resultBits;
+		/** true if a privacy peer reported that the shares of this peer were left out of the round */
+		boolean excluded;
+
+		PendingRound(int timeSlot, int slots, long startTime, int privacyPeers) {
+			this.timeSlot = timeSlot;
+			this.slots = slots;
+			this.startTime = startTime;
+			inputFiles = new File[slots];
+			inputIndices = new BftsuInputIndex[slots];
+			resultsToDo = privacyPeers;
+		}
+	}
 
 	/**
 	 * constructs a new bftsu peer object
@@ -72,7 +150,6 @@ public class BftsuPeer extends BftsuBase {
 	public BftsuPeer(int myPeerIndex, ConnectionManager cm, Stopper stopper) throws Exception {
 		super(myPeerIndex, cm, stopper);
 		peerProtocolThreads = new Vector<BftsuProtocolPeer>();
-		mpcShamirSharing = new ShamirSharing();
 	}
 
 	/**
@@ -81,11 +158,7 @@ public class BftsuPeer extends BftsuBase {
 	public void initialize() throws Exception {
 		initProperties();
 
-		mpcShamirSharing.setRandomAlgorithm(randomAlgorithm);
-		mpcShamirSharing.setFieldSize(shamirSharesFieldOrder);
-		if (degreeT>0) {
-			mpcShamirSharing.setDegreeT(degreeT);
-		}
+		shareGenerator = new BftsuShareGenerator(randomAlgorithm, shamirSharesFieldOrder, degreeT, sharingThreads);
 			
 		currentTimeSlot = 1;
 		
@@ -93,12 +166,30 @@ public class BftsuPeer extends BftsuBase {
 		
    		poller = new DirectoryPoller(stopper, new File(inputFolder));
    		poller.setTimeout(inputTimeout);
+   		inputReader = new BftsuInputReader(hashStrategy, numberOfHashFunctions, numberOfItems, inputThreads);
+   		if (pipelineDepth > 0) {
+   			// read the next time slots while the current one is computed
+   			prefetchedInputs = new ArrayBlockingQueue<SlotInput>(pipelineDepth);
+   			if (!runProtocolTask(new Runnable() {
+   				public void run() {
+   					prefetcher = Thread.currentThread();
+   					prefetchInputs();
+   				}
+   			})) {
+   				// the round failed; read directly instead of waiting for the prefetcher
+   				prefetchedInputs = null;
+   			}
+   		}
 		
    		// Create output folder if it does not exist
         File folder = new File(outputFolder);
     	if (!folder.exists()) {
     		folder.mkdir();
     	}
+
+    	// handling the final results includes writing the output files, which
+    	// must not block the protocol threads
+    	startEventHandler();
 	}
 
 	/**
@@ -106,6 +197,8 @@ public class BftsuPeer extends BftsuBase {
 	 * then creates and runs the protocol threads for the new round. 
 	 */
 	protected void initializeNewRound() {
+		setPhase(Phase.INITIALIZING);
+		roundStartTime = System.currentTimeMillis();
 		connectionManager.waitForConnections();
 		connectionManager.activateTemporaryConnections();
 		PrimitivesEnabledProtocol.newStatisticsRound();
@@ -113,20 +206,60 @@ public class BftsuPeer extends BftsuBase {
 		List<String> privacyPeerIDs = connectionManager.getActivePeers(true);
 		Collections.sort(privacyPeerIDs);
 		numberOfPrivacyPeers = privacyPeerIDs.size();
-		mpcShamirSharing.setNumberOfPrivacyPeers(numberOfPrivacyPeers);
-		mpcShamirSharing.init();
+		shareGenerator.setNumberOfPrivacyPeers(numberOfPrivacyPeers);
 		clearPP2PPBarrier();
 		
-		// Init state variables
-		initialSharesGenerated = false;
-		initialShares = null;
-		finalResults = null;
-		finalResultsToDo = numberOfPrivacyPeers;
-
-		readDataFromFile(inputFolder);
+		// the final results of the round are awaited until all privacy peers sent theirs
+		PendingRound round = new PendingRound(currentTimeSlot, getSlotsInRound(), roundStartTime, numberOfPrivacyPeers);
+		readRoundData(round);
+		synchronized (pendingRounds) {
+			pendingRounds.put(round.timeSlot, round);
+			sharingDone = false;
+		}
+		sendersToDo.set(numberOfPrivacyPeers);
+		setPhase(Phase.SHARING);
+		startShareGeneration();
 		createProtocolThreadsForPrivacyPeers(privacyPeerIDs);
 	}
 
+
+	/**
+	 * Lets a protocol thread report that it is done sending its initial
+	 * shares (or gave up). Once all are, the next round may be started.
+	 */
+	protected void sharesSent() {
+		if (sendersToDo.decrementAndGet() == 0) {
+			synchronized (pendingRounds) {
+				sharingDone = true;
+			}
+			startNextRoundIfReady();
+		}
+	}
+
+
+	/**
+	 * Starts the next round if there is one, all shares of the current round
+	 * are sent and few enough rounds wait for their final results: none
+	 * without pipelining, and only the current one with pipelining, so the
+	 * next round is shared while the privacy peers compute the current one.
+	 */
+	private void startNextRoundIfReady() {
+		synchronized (pendingRounds) {
+			int maxPendingRounds = (pipelineDepth > 0) ? 2 : 1;
+			int slots = getSlotsInRound();
+			if (!sharingDone || pendingRounds.size() >= maxPendingRounds || currentTimeSlot + slots - 1 >= timeSlotCount) {
+				return;
+			}
+			sharingDone = false;
+			currentTimeSlot += slots;
+		}
+		runProtocolTask(new Runnable() {
+			public void run() {
+				initializeNewRound();
+			}
+		});
+	}
+
 	
 	/**
 	 * Create and start the threads. Attach one privacy peer id to each of them.
@@ -134,72 +267,252 @@ public class BftsuPeer extends BftsuBase {
 	 * @param privacyPeerIDs the ids of the privacy peers
 	 */
 	private void createProtocolThreadsForPrivacyPeers(List<String> privacyPeerIDs)  { 
+		// the final results arrive in the order of the rounds on every connection
+		Map<String, BftsuProtocolPeer> previous = new HashMap<String, BftsuProtocolPeer>();
+		for (BftsuProtocolPeer bftsuProtocolPeer : peerProtocolThreads) {
+			previous.put(bftsuProtocolPeer.getPrivacyPeerID(), bftsuProtocolPeer);
+		}
 		peerProtocolThreads.clear();
 		int currentID = 0;
 		for(String ppId: privacyPeerIDs) {
-			logger.log(Level.INFO, "Create a thread for privacy peer " +ppId );
+			BftsuLog.fine(logger, "Create a thread for privacy peer ", ppId);
 			BftsuProtocolPeer bftsuProtocolPeer = new BftsuProtocolPeer(currentID, this, ppId, currentID, stopper);
+			bftsuProtocolPeer.receiveAfter(previous.get(ppId));
 			bftsuProtocolPeer.addObserver(this);
-			Thread thread = new Thread(bftsuProtocolPeer, "Bftsu Peer protocol with user number " + currentID);
 			peerProtocolThreads.add(bftsuProtocolPeer);
-			thread.start();
+			if (!runProtocolTask(bftsuProtocolPeer)) {
+				// the round failed
+				return;
+			}
 			currentID++;
 		}
 	}
 
 	/**
-	 * Opens file input stream and reads the data
+	 * Opens file input stream and reads the data. In pipelined mode, the data
+	 * was already read ahead by the prefetcher.
 	 *
 	 * @param inputFolderName	The file to read from
 	 * @return					true if successful
 	 */
 	public boolean readDataFromFile(String inputFolderName) {
-		// read from input file, create a Bloom filter and set inputData
-		BloomFilter bf = new BloomFilter(numberOfHashFunctions, bloomFilterSize, true);
+		SlotInput input;
+		if (prefetchedInputs != null) {
+			try {
+				input = prefetchedInputs.take();
+			} catch (InterruptedException e) {
+				logger.log(Level.WARNING, "Interrupted while waiting for the input of time slot " + currentTimeSlot);
+				Thread.currentThread().interrupt();
+				inputData = new long[numberOfItems];
+				return false;
+			}
+		} else {
+			input = readSlotInput();
+		}
+		currentInputFile = input.file;
+		currentInputIndex = input.index;
+		inputData = input.data;
+		return input.successful;
+	}
 
-		currentInputFile = poller.getNextFile();
-		try{
-			FileReader fr = new FileReader(currentInputFile);
-			BufferedReader br = new BufferedReader(fr);
 
-			String elem = null;
-			while(null != (elem = br.readLine())){
-				bf.insert(elem);
+	/**
+	 * Reads the inputs of all time slots of the round. With more than one slot,
+	 * their Bloom filters are concatenated into one input vector.
+	 *
+	 * @param round	the round, which keeps the input files for the output
+	 */
+	private void readRoundData(PendingRound round) {
+		if (round.slots == 1) {
+			readDataFromFile(inputFolder);
+			round.inputFiles[0] = currentInputFile;
+			round.inputIndices[0] = currentInputIndex;
+			return;
+		}
+		long[] roundData = new long[round.slots * numberOfItems];
+		for (int slot = 0; slot < round.slots; slot++) {
+			readDataFromFile(inputFolder);
+			round.inputFiles[slot] = currentInputFile;
+			round.inputIndices[slot] = currentInputIndex;
+			System.arraycopy(inputData, 0, roundData, slot * numberOfItems, Math.min(inputData.length, numberOfItems));
+		}
+		inputData = roundData;
+	}
+
+
+	/**
+	 * Reads the next input file and creates its Bloom filter.
+	 *
+	 * @return	the input of the next time slot
+	 */
+	private SlotInput readSlotInput() {
+		SlotInput input = new SlotInput();
+		long start = BftsuMetrics.start();
+		input.file = poller.getNextFile();
+		metrics.record(Stage.INPUT_READ, start);
+		start = BftsuMetrics.start();
+		input.successful = true;
+		try {
+			if (input.file == null) {
+				// no file within the timeout; share an empty filter
+				throw new IOException("No input file for the time slot");
+			}
+			// the filter's counters are used as input data without a copy
+			if (useMappedInput) {
+				input.index = useInputIndex ? new BftsuInputIndex(numberOfHashFunctions, input.file) : null;
+				input.data = inputReader.read(input.file, input.index).getArray();
+			} else {
+				input.data = inputReader.readSequentially(input.file).getArray();
 			}
-			br.close();
-			fr.close();
-		}catch (Exception e){
-			e.printStackTrace();
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Reading input file failed: " + Utils.getStackTrace(e));
+			input.data = new long[numberOfItems];
+			input.index = null;
+			input.successful = false;
 		}
-		// inputData is of type long, and bf.getArray is int
-		// we have to copy each element b/c of the typecast
-		inputData = new long[bf.getArray().length];
-		for(int i = 0; i < bf.getArray().length; i++){
-			inputData[i] = bf.getArray()[i];
+		metrics.record(Stage.BLOOM_INSERT, start);
+		return input;
+	}
+
+
+	/**
+	 * Reads the inputs of all time slots ahead of their rounds. At most
+	 * pipelineDepth inputs are kept ready.
+	 */
+	private void prefetchInputs() {
+		try {
+			for (int slot = 1; slot <= timeSlotCount && !stopper.isStopped(); slot++) {
+				BftsuLog.fine(logger, "Reading the input ahead, time slot ", slot);
+				SlotInput input = readSlotInput();
+				// the executor's threads do not die with the peer, so check for a stop now and then
+				while (!prefetchedInputs.offer(input, 1, TimeUnit.SECONDS)) {
+					if (stopper.isStopped() || protocolStopper.isStopped()) {
+						return;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.log(Level.INFO, "Input prefetching was stopped");
 		}
+	}
 
-		// debug, use for short filters only!!!
-		//logger.log(Level.SEVERE,"initial: "+bf.toString());
 
-		return true;
+	/**
+	 * Starts generating the initial shares in the background. The shares are
+	 * generated chunk by chunk, so the protocol threads can send a chunk to
+	 * their privacy peer while the next chunk is generated.
+	 */
+	private void startShareGeneration() {
+		final long[] secrets = inputData;
+		// the chunk layout is fixed before the protocol threads of the round are started
+		numberOfShares = secrets.length;
+		sharesChunkLength = (sharesChunkSize > 0) ? Math.min(sharesChunkSize, secrets.length) : secrets.length;
+		numberOfSharesChunks = (sharesChunkLength > 0) ? (secrets.length + sharesChunkLength - 1) / sharesChunkLength : 1;
+		initialShares = shareGenerator.prepareShares(secrets.length);
+		setSharedChunks(0);
+		if (!runProtocolTask(new Runnable() {
+			public void run() {
+				generateInitialShares(secrets);
+			}
+		})) {
+			// the round failed: the protocol threads must not wait for the shares
+			setSharedChunks(-1);
+		}
 	}
 
 
 	/**
-	 * Generates shares for each secret input.
+	 * Generates shares for each secret input, chunk by chunk.
+	 *
+	 * @param secrets	the secret inputs
 	 */
-	public synchronized void generateInitialShares() {
-		if(!initialSharesGenerated) {
-			initialSharesGenerated = true;
-			logger.log(Level.INFO, "Generating initial shares...");
-			initialShares = mpcShamirSharing.generateShares(inputData);
+	private void generateInitialShares(long[] secrets) {
+		BftsuLog.fine(logger, "Generating initial shares...");
+		long start = BftsuMetrics.start();
+		try {
+			for (int chunk = 0; chunk < numberOfSharesChunks; chunk++) {
+				shareGenerator.generateShares(secrets, getSharesChunkStart(chunk), getSharesChunkEnd(chunk));
+				setSharedChunks(chunk + 1);
+			}
+			metrics.record(Stage.SHARE_GENERATION, start);
 			logger.log(Level.INFO, Services.getFilterPassingLogPrefix() + "DONE generating initial shares...");
+		} catch (RuntimeException e) {
+			logger.log(Level.SEVERE, "Generating initial shares failed: " + Utils.getStackTrace(e));
+			setSharedChunks(-1);
+		}
+	}
+
+
+	private void setSharedChunks(int chunks) {
+		sharesLock.lock();
+		try {
+			sharedChunks = chunks;
+			sharesGenerated.signalAll();
+		} finally {
+			sharesLock.unlock();
 		}
 	}
 
 
 	/**
-	 * Returns the initial shares for the privacy peer.
+	 * Waits until the initial shares of a chunk are generated.
+	 *
+	 * @param chunk	the index of the chunk
+	 * @return		false if the generation of the shares failed
+	 * @throws InterruptedException
+	 */
+	protected boolean waitForInitialShares(int chunk) throws InterruptedException {
+		sharesLock.lock();
+		try {
+			while (sharedChunks >= 0 && sharedChunks <= chunk) {
+				sharesGenerated.await();
+			}
+			return sharedChunks > chunk;
+		} finally {
+			sharesLock.unlock();
+		}
+	}
+
+
+	/**
+	 * Lets the protocol threads waiting for the initial shares return after
+	 * the round failed.
+	 */
+	protected void releaseWaitingThreads() {
+		setSharedChunks(-1);
+	}
+
+
+	/**
+	 * @return the number of chunks in which the initial shares are sent
+	 */
+	protected int getNumberOfSharesChunks() {
+		return numberOfSharesChunks;
+	}
+
+
+	/**
+	 * @param chunk	the index of the chunk
+	 * @return		index of the first initial share in the chunk
+	 */
+	protected int getSharesChunkStart(int chunk) {
+		return chunk * sharesChunkLength;
+	}
+
+
+	/**
+	 * @param chunk	the index of the chunk
+	 * @return		index after the last initial share in the chunk
+	 */
+	protected int getSharesChunkEnd(int chunk) {
+		return Math.min((chunk + 1) * sharesChunkLength, numberOfShares);
+	}
+
+
+	/**
+	 * Returns the initial shares for the privacy peer. Chunks are sent as the
+	 * ranges [{@link #getSharesChunkStart(int)}, {@link #getSharesChunkEnd(int)})
+	 * of this vector. Call {@link #waitForInitialShares(int)} first.
 	 *
 	 * @param privacyPeerIndex	index of privacy peer for which to return the initial shares
 	 */
@@ -218,7 +531,8 @@ public class BftsuPeer extends BftsuBase {
 
 
 	/**
-	 * Process message received by an observable.
+	 * Process message received by an observable. The messages are handled by
+	 * the event handler thread, one after another.
 	 * 
 	 * @param observable	Observable who sent the notification
 	 * @param object		The object that was sent by the observable
@@ -234,14 +548,37 @@ public class BftsuPeer extends BftsuBase {
 			}
 			
 			if(bftsuMessage.isFinalResultMessage()) {
-				logger.log(Level.INFO, "Received a final result message from a privacy peer");
-				finalResultsToDo--;
+				BftsuLog.fine(logger, "Received a final result message from a privacy peer");
+				// the protocol threads tag every result with the time slot of their round
+				PendingRound round;
+				synchronized (pendingRounds) {
+					round = pendingRounds.get(bftsuMessage.getTimeSlot());
+				}
+				if (round == null) {
+					logger.log(Level.SEVERE, "Final result from " + bftsuMessage.getSenderID() + " for time slot "
+							+ bftsuMessage.getTimeSlot() + ", which is not awaited; ignoring it");
+					return;
+				}
+				if (bftsuMessage.isExcluded() && !round.excluded) {
+					round.excluded = true;
+					logger.log(Level.WARNING, "The privacy peers computed time slot " + round.timeSlot
+							+ " without the shares of this peer (e.g., they arrived after the quorum deadline or their"
+							+ " Bloom filter settings " + getFilterConfig() + " differ from the ones of the privacy peers)");
+				}
+				if (getPhase() == Phase.SHARING) {
+					setPhase(Phase.RESULTS);
+				}
+				round.resultsToDo--;
 
-				if (finalResults == null && bftsuMessage.getResults() != null) {
-					finalResults = bftsuMessage.getResults();
+				if (round.results == null && round.resultBits == null && bftsuMessage.hasResults()) {
+					// keep sparse results sparse
+					round.resultBits = bftsuMessage.getResultBits();
+					if (round.resultBits == null) {
+						round.results = bftsuMessage.getResults();
+					}
 				}
 				
-				if(finalResultsToDo <= 0) {
+				if(round.resultsToDo <= 0) {
 					// notify observers about final result
 					logger.log(Level.INFO, Services.getFilterPassingLogPrefix()+ "Received all final results. Notifying observers...");
 					VectorData dummy = new VectorData(); // dummy data to avoid null pointer exception in Peers::processMpcEvent
@@ -249,14 +586,28 @@ public class BftsuPeer extends BftsuBase {
 					finalResultEvent.setVerificationSuccessful(true);
 					sendNotification(finalResultEvent);
 
-					writeOutputToFile();
+					setPhase(Phase.OUTPUT);
+					if (round.results == null && round.resultBits == null) {
+						// the privacy peers could not compute the round
+						logger.log(Level.SEVERE, "No privacy peer sent a final result for time slot " + round.timeSlot
+								+ "; no output is written");
+					} else {
+						long start = BftsuMetrics.start();
+						writeOutputToFile(round);
+						metrics.record(Stage.OUTPUT_WRITE, start);
+					}
+					
+					endRound(round.timeSlot, round.slots, round.startTime);
+					synchronized (pendingRounds) {
+						pendingRounds.remove(round.timeSlot);
+					}
 					
 					// check if there are more time slots to process
-					if(currentTimeSlot < timeSlotCount) {
-						currentTimeSlot++;
-						initializeNewRound();
+					if(round.timeSlot + round.slots - 1 < timeSlotCount) {
+						startNextRoundIfReady();
 					} else {
 						logger.log(Level.INFO, "No more data available... Stopping protocol threads...");
+						setPhase(Phase.DONE);
 						protocolStopper.setIsStopped(true);
 					}
 				}
@@ -276,37 +627,74 @@ public class BftsuPeer extends BftsuBase {
 
 
     /**
-     * Write the output to a file.
+     * Write the output of every time slot of the round to a file.
+     *
+     * @param round	the round with its final results
      * @throws Exception 
      */
-	protected void writeOutputToFile() throws Exception {
-		// store finalResult as a BloomFilter
-		BloomFilter bf = new BloomFilter(numberOfHashFunctions, finalResults, false);
+	private void writeOutputToFile(PendingRound round) throws Exception {
+		int slots = round.slots;
+		for (int slot = 0; slot < slots; slot++) {
+			int from = slot * numberOfItems;
+			long[] slotResults = null;
+			BitSet slotResultBits = null;
+			if (round.results != null) {
+				slotResults = (slots == 1) ? round.results : Arrays.copyOfRange(round.results, from, from + numberOfItems);
+			} else {
+				slotResultBits = (slots == 1) ? round.resultBits : round.resultBits.get(from, from + numberOfItems);
+			}
+			writeOutputToFile(round.inputFiles[slot], round.inputIndices[slot], round.timeSlot + slot, slotResults, slotResultBits);
+		}
+	}
 
-		// debug, use for short filters only!!!
-		//logger.log(Level.SEVERE,"final: "+bf.toString());
-		//logger.log(Level.SEVERE, "finalResults.length: "+finalResults.length);
 
+    /**
+     * Write the output of one time slot to a file.
+     *
+     * @param inputFile		the input file of the time slot
+     * @param index			the index of the input file (null if not indexed)
+     * @param timeSlot		the time slot
+     * @param results		the final results of the time slot (null if given as bits)
+     * @param resultBits	the final results of the time slot as set positions
+     * @throws Exception 
+     */
+	private void writeOutputToFile(File inputFile, BftsuInputIndex index, int timeSlot, long[] results, BitSet resultBits) throws Exception {
 		String fileName = outputFolder + "/bftsu_" + String.valueOf(getMyPeerID()).replace(":", "_") + "_round" 
-			+ currentTimeSlot + ".csv";
+			+ timeSlot + ".csv";
 
-		FileWriter fw = new FileWriter(fileName);
-		BufferedWriter bw = new BufferedWriter(fw);
+		BftsuBloomFilter bf;
+		if (resultBits != null) {
+			bf = new BftsuBloomFilter(hashStrategy, numberOfHashFunctions, resultBits, numberOfItems);
+		} else {
+			bf = new BftsuBloomFilter(hashStrategy, numberOfHashFunctions, results);
+		}
+		if (index != null && index.isValidFor(inputFile)) {
+			// probe the stored positions and copy the matching elements
+			index.writeMatchingLines(inputFile, bf, new File(fileName));
+		} else if (useMappedInput) {
+			if (index != null) {
+				logger.log(Level.WARNING, "Input file " + inputFile + " changed since it was read; hashing it again");
+			}
+			inputReader.writeMatchingLines(inputFile, bf, new File(fileName));
+		} else {
+			inputReader.writeMatchingLinesSequentially(inputFile, bf, new File(fileName));
+		}
+	}
 
-		FileReader fr = new FileReader(currentInputFile);
-		BufferedReader br = new BufferedReader(fr);
 
-		String elem = null;
-		while(null != (elem = br.readLine())){
-			// for each element in the input set, check if it is in the result
-			if(bf.check(elem)){
-				bw.write(elem);
-				bw.newLine();
-			}
+	/**
+	 * Does some cleaning up.
+	 */
+	protected synchronized void cleanUp() throws Exception {
+		super.cleanUp();
+		if (prefetcher != null) {
+			prefetcher.interrupt();
+		}
+		if (inputReader != null) {
+			inputReader.shutdown();
+		}
+		if (shareGenerator != null) {
+			shareGenerator.shutdown();
 		}
-		br.close();
-		fr.close();
-		bw.close();
-		fw.close();
 	}
 }
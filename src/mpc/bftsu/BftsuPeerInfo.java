@@ -15,6 +15,8 @@
 
 package mpc.bftsu;
 
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * stores information about a bftsu (privacy) peer
@@ -29,9 +31,15 @@ public class BftsuPeerInfo {
 	
 	/** indicates if the initial shares were received */
 	private boolean isInitialSharesReceived = false;
+	/** indicates if a chunk of the initial shares was invalid, so the remaining chunks are ignored */
+	private boolean isSharesRejected = false;
 
 	/** contains the initial shares */
 	private long[] initialShares = null;
+	/** contains the initial shares if they are stored off-heap */
+	private BftsuShareBuffer shareBuffer = null;
+	/** the ranges [from, to) of the initial shares that were added to the running sum of the round */
+	private List<int[]> summedRanges = new ArrayList<int[]>();
 
 	/**
 	 * Creates a new bftsu info object
@@ -50,6 +58,14 @@ public class BftsuPeerInfo {
 		this.isInitialSharesReceived = isInitialSharesReceived;
 	}
 
+	public boolean isSharesRejected() {
+		return isSharesRejected;
+	}
+
+	public void setIsSharesRejected(boolean isSharesRejected) {
+		this.isSharesRejected = isSharesRejected;
+	}
+
 	public String getID() {
 		return ID;
 	}
@@ -70,6 +86,30 @@ public class BftsuPeerInfo {
 	}
 
 
+	/**
+	 * Resets the state of the last round, so the info can be reused for the
+	 * same peer in the next round.
+	 */
+	public void reset() {
+		isInitialSharesReceived = false;
+		isSharesRejected = false;
+		summedRanges.clear();
+		discardShares();
+	}
+
+
+	/**
+	 * Drops the initial shares; an off-heap buffer is released.
+	 */
+	public void discardShares() {
+		initialShares = null;
+		if (shareBuffer != null) {
+			shareBuffer.release();
+			shareBuffer = null;
+		}
+	}
+
+
 	/**
 	 * Returns the initial shares.
 	 * @note This can be <code>null</code> if an input peer is offline.
@@ -89,4 +129,89 @@ public class BftsuPeerInfo {
 	public void setInitialShares(long[] initialShares) {
 		this.initialShares = initialShares;
 	}
+
+
+	/**
+	 * Returns the initial shares if they are stored off-heap.
+	 *
+	 * @return	the initial shares or <code>null</code>
+	 */
+	public BftsuShareBuffer getShareBuffer() {
+		return shareBuffer;
+	}
+
+
+	/**
+	 * sets the initial shares stored off-heap (a buffer set before is not
+	 * released, see {@link #discardShares()})
+	 *
+	 * @param shareBuffer	the initial shares (null: none)
+	 */
+	public void setShareBuffer(BftsuShareBuffer shareBuffer) {
+		this.shareBuffer = shareBuffer;
+	}
+
+
+	/**
+	 * @return true if the initial shares are available (on or off the heap)
+	 */
+	public boolean hasInitialShares() {
+		return initialShares != null || shareBuffer != null;
+	}
+
+
+	/**
+	 * @return the initial shares, wrapped if they are stored on the heap
+	 * (null if not available)
+	 */
+	public BftsuShareBuffer getShares() {
+		if (shareBuffer != null) {
+			return shareBuffer;
+		}
+		return (initialShares != null) ? BftsuShareBuffer.wrap(initialShares) : null;
+	}
+
+
+	/**
+	 * Remembers that a chunk of the initial shares was added to the running
+	 * sum of the round (see {@link BftsuShareAccumulator}).
+	 *
+	 * @param from	index of the first share of the chunk
+	 * @param to	index after the last share of the chunk
+	 */
+	public void addSummedRange(int from, int to) {
+		summedRanges.add(new int[] { from, to });
+	}
+
+
+	/**
+	 * @return the ranges [from, to) of the initial shares that were added to
+	 * the running sum since the last {@link #clearSummedRanges()}
+	 */
+	public List<int[]> getSummedRanges() {
+		return summedRanges;
+	}
+
+
+	/**
+	 * Forgets the chunks added to the running sum, e.g., once the vector is
+	 * complete or the chunks were taken out of the sum again.
+	 */
+	public void clearSummedRanges() {
+		summedRanges.clear();
+	}
+
+
+	/**
+	 * stores a chunk of the initial shares in the given buffer, which then holds
+	 * the initial shares
+	 *
+	 * @param shares		the chunk of initial shares
+	 * @param offset		index of the first share within all initial shares
+	 * @param buffer		buffer for all initial shares
+	 */
+	public void setInitialShares(long[] shares, int offset, long[] buffer) {
+		System.arraycopy(shares, 0, buffer, offset, shares.length);
+		initialShares = buffer;
+	}
 }
@@ -15,21 +15,34 @@
 
 package mpc.bftsu;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
-import mpc.CountingBarrier;
 import mpc.VectorData;
+import mpc.bftsu.BftsuMetrics.Stage;
 import mpc.protocolPrimitives.Primitives;
 import mpc.protocolPrimitives.PrimitivesEnabledProtocol;
 import services.Services;
 import services.Stopper;
+import services.Utils;
 import connections.ConnectionManager;
 import events.FinalResultEvent;
 
@@ -43,21 +56,70 @@ public class BftsuPrivacyPeer extends BftsuBase {
 
 	/** vector of protocols (between this privacy peer and the peers) */
 	private Vector<BftsuProtocolPrivacyPeerToPeer> peerProtocolThreads = null;
+	/** the instances reading the shares of the next round ahead, by input peer ID (guarded by this) */
+	private final Map<String, BftsuProtocolPrivacyPeerToPeer> earlyReaders = new HashMap<String, BftsuProtocolPrivacyPeerToPeer>();
 	/** vector of protocols (between this privacy peer and other privacy peers) */
 	private Vector<BftsuProtocolPrivacyPeerToPP> ppToPPProtocolThreads = null;
 	/** vector of information objects for the connected peers */
 	protected Vector<BftsuPeerInfo> peerInfos = null;
+	/** the information objects for the connected peers by peer ID */
+	private final Map<String, BftsuPeerInfo> peerInfosByID = new ConcurrentHashMap<String, BftsuPeerInfo>();
 	/** vector of information objects for the connected privacy peers */
 	protected Vector<BftsuPeerInfo> privacyPeerInfos = null;
-	/** barrier to synchronize the peerProtocolThreads threads */
-	private CountingBarrier peerProtocolBarrier = null;
-	/** barrier to synchronize the ppToPPProtocolThreads threads */
-	private CountingBarrier ppProtocolBarrier = null;
+	/**
+	 * released once the final result of the round is ready; the peerProtocolThreads
+	 * do not wait for each other, so input peers excluded from the round do
+	 * not delay the results of the others
+	 */
+	private volatile CountDownLatch finalResultReady = null;
+	/** opened when the shares of the round are in, so the ppToPPProtocolThreads start computing */
+	private volatile CountDownLatch sharesReady = null;
+
+	/** the peers and primitives of the last round, reused while the same peers are active */
+	private BftsuRoundState roundState = null;
 
 	/** number of input peers connected to this one */
 	protected int numberOfInputPeers = 0;
-	/** number of initial shares that the privacy peer yet has to receive */
-	private int initialSharesToReceive = 0;
+	/**
+	 * guards the input peers whose shares are accepted in the current round
+	 * (participants, inputPeersDone, sharingClosed, deadlinePassed, sharingRound)
+	 */
+	private final Object participantsLock = new Object();
+	/** IDs of the input peers whose complete shares were accepted in the current round */
+	private final List<String> participants = new ArrayList<String>();
+	/** IDs of the input peers whose shares arrived (or which disconnected) in the current round */
+	private final Set<String> inputPeersDone = new HashSet<String>();
+	/** true once the round is started and no more shares are accepted */
+	private boolean sharingClosed = false;
+	/** true once the quorum deadline of the current round has passed */
+	private boolean deadlinePassed = false;
+	/** counts the rounds, so a deadline of an earlier round is ignored */
+	private int sharingRound = 0;
+	/** the participants of the other privacy peers; dimensions: [alphaIndex][] (only with a quorum deadline) */
+	private String[][] participantsOfPPs = null;
+	/** fires the quorum deadline of the rounds (only with a quorum deadline) */
+	private ScheduledExecutorService deadlineTimer = null;
+	/** the quorum deadline of the current round */
+	private ScheduledFuture<?> deadlineTask = null;
+	/**
+	 * buffers receiving the initial shares of the input peers that are sent in
+	 * chunks, reused in every round; dimensions: [peerIndex][items in round]
+	 */
+	private long[][] sharesBuffers = null;
+	/** sums up the initial shares while they arrive (only used if incrementalSum is set) */
+	private BftsuShareAccumulator shareAccumulator = null;
+	/** the shares of the result of all privacy peers; dimensions: [alphaIndex][items in round] */
+	private long[][] resultShares = null;
+	/** the final results, encoded once and sent to all input peers */
+	private byte[] encodedFinalResults = null;
+	/** the input peers the privacy peers agreed on (null if all input peers that delivered shares take part) */
+	private volatile Set<String> roundParticipants = null;
+	/** true if the privacy peers agreed on too few input peers to compute the round */
+	private volatile boolean computationSkipped = false;
+	/** when the privacy peer started to wait for the shares of the round */
+	private volatile long sharingStartTime = 0;
+	/** when the reconstruction of the result started */
+	private volatile long reconstructionStartTime = 0;
 
 	/**
 	 * creates a new MPC bftsu privacy peer
@@ -81,6 +143,26 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 */
 	public void initialize() throws Exception {
 		initProperties();
+		if (incrementalSum) {
+			shareAccumulator = new BftsuShareAccumulator(shamirSharesFieldOrder, sharingThreads);
+		}
+		if (offHeapShares) {
+			BftsuMessage.setReadSharesOffHeap(true);
+		}
+		// no event handler thread (see startEventHandler): the messages of different
+		// input peers are handled in parallel on their protocol threads. Handling a
+		// message never blocks; it only copies a chunk of shares and hands it to the
+		// share accumulator, which a single handler thread would serialize for all
+		// input peers.
+		if (quorumDeadline > 0) {
+			deadlineTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Bftsu quorum deadline");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 
 		currentTimeSlot = 1;
 	}
@@ -90,6 +172,8 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * Initializes a new round of computation.
 	 */
 	protected void initializeNewRound() {
+		setPhase(Phase.INITIALIZING);
+		roundStartTime = System.currentTimeMillis();
 		connectionManager.waitForConnections();
 		connectionManager.activateTemporaryConnections();
 		PrimitivesEnabledProtocol.newStatisticsRound();
@@ -97,23 +181,90 @@ public class BftsuPrivacyPeer extends BftsuBase {
 		// Get all the active privacy peer IDs. Note that these are not necessarily all PPs configured in the config file.
 		List<String> privacyPeerIDs = connectionManager.getActivePeers(true);
 		List<String> inputPeerIDs = connectionManager.getActivePeers(false);
-		Map<String, Integer> ppIndexMap = getIndexMap(privacyPeerIDs);
+		long setupStart = System.nanoTime();
+		boolean samePeers = roundState != null && roundState.hasPeers(privacyPeerIDs, inputPeerIDs);
+		Map<String, Integer> ppIndexMap = samePeers ? roundState.getPPIndexMap() : getIndexMap(privacyPeerIDs);
 		myAlphaIndex = ppIndexMap.get(myPeerID);
 		
 		numberOfPrivacyPeers = privacyPeerIDs.size()+1; // Count myself
 		numberOfInputPeers = inputPeerIDs.size();
-		peerProtocolBarrier = new CountingBarrier(numberOfInputPeers);
-		ppProtocolBarrier = new CountingBarrier(numberOfPrivacyPeers-1);
+		finalResultReady = new CountDownLatch(1);
+		sharesReady = new CountDownLatch(1);
 		clearPP2PPBarrier();
 		
 		// init counters
-		initialSharesToReceive = numberOfInputPeers;
+		synchronized (participantsLock) {
+			participants.clear();
+			inputPeersDone.clear();
+			sharingClosed = false;
+			deadlinePassed = false;
+			sharingRound++;
+		}
+		participantsOfPPs = (quorumDeadline > 0) ? new String[numberOfPrivacyPeers][] : null;
+		if (sharesBuffers == null || sharesBuffers.length != numberOfInputPeers) {
+			sharesBuffers = new long[numberOfInputPeers][];
+		}
+		if (shareAccumulator != null) {
+			shareAccumulator.reset(getItemsInRound());
+		}
 		finalResultsToDo = numberOfInputPeers;
 		finalResults = null;
+		encodedFinalResults = null;
+		roundParticipants = null;
+		computationSkipped = false;
 		
-		primitives = new Primitives(randomAlgorithm, shamirSharesFieldOrder, degreeT, numberOfPrivacyPeers, myAlphaIndex, numberOfPrivacyPeers-1);
-		createProtocolThreadsForInputPeers(inputPeerIDs);
-		createProtocolThreadsForPrivacyPeers(privacyPeerIDs, ppIndexMap);
+		// the shares can arrive as soon as the protocol threads run
+		sharingStartTime = BftsuMetrics.start();
+		setPhase(Phase.SHARING);
+		if (deadlineTimer != null) {
+			final int round = sharingRound;
+			deadlineTask = deadlineTimer.schedule(new Runnable() {
+				public void run() {
+					quorumDeadlinePassed(round);
+				}
+			}, quorumDeadline, TimeUnit.MILLISECONDS);
+		}
+		if (samePeers) {
+			// same peers as in the last round: keep the primitives and peer infos
+			primitives = roundState.getPrimitives();
+			restartProtocolThreads();
+		} else {
+			primitives = new Primitives(randomAlgorithm, shamirSharesFieldOrder, degreeT, numberOfPrivacyPeers, myAlphaIndex, numberOfPrivacyPeers-1);
+			roundState = new BftsuRoundState(privacyPeerIDs, inputPeerIDs, ppIndexMap, primitives);
+			createProtocolThreadsForInputPeers(inputPeerIDs);
+			createProtocolThreadsForPrivacyPeers(privacyPeerIDs, ppIndexMap);
+		}
+		// input peers that left while their shares were read ahead
+		releaseEarlyReaders();
+		if (logger.isLoggable(Level.FINE)) {
+			logger.log(Level.FINE, "Round setup took " + (System.nanoTime() - setupStart) / 1000 + " us ("
+					+ (samePeers ? "same peers, state reused" : "new set of peers") + ")");
+		}
+	}
+
+	/**
+	 * Resets the peer infos and starts new protocol instances for the same
+	 * peers. The instances of the last round are not run again: the new round
+	 * is started by one of them while sending its final result, and the others
+	 * may still be returning from their last step.
+	 */
+	private void restartProtocolThreads() {
+		for (BftsuPeerInfo peerInfo : peerInfos) {
+			peerInfo.reset();
+		}
+		for (BftsuPeerInfo peerInfo : privacyPeerInfos) {
+			peerInfo.reset();
+		}
+		Map<String, BftsuProtocolPrivacyPeerToPeer> previous = getProtocolThreadsByInputPeer();
+		peerProtocolThreads.clear();
+		for (BftsuPeerInfo peerInfo : peerInfos) {
+			startProtocolThreadForInputPeer(peerInfo.getIndex(), peerInfo.getID(), previous.get(peerInfo.getID()));
+		}
+		ppToPPProtocolThreads.clear();
+		for (int currentID = 0; currentID < privacyPeerInfos.size(); currentID++) {
+			BftsuPeerInfo peerInfo = privacyPeerInfos.get(currentID);
+			startProtocolThreadForPrivacyPeer(currentID, peerInfo.getID(), peerInfo.getIndex());
+		}
 	}
 
 	/**
@@ -147,19 +298,29 @@ public class BftsuPrivacyPeer extends BftsuBase {
 		privacyPeerInfos.clear();
 		int currentID =0;
 		for(String ppId: privacyPeerIDs) {
-			logger.log(Level.INFO, "Create a thread for privacy peer " +ppId );
+			BftsuLog.fine(logger, "Create a thread for privacy peer ", ppId);
 			int otherPPindex = ppIndexMap.get(ppId);
-			BftsuProtocolPrivacyPeerToPP pp2pp = new BftsuProtocolPrivacyPeerToPP(currentID, this, ppId, otherPPindex, stopper);
-			pp2pp.setMyPeerIndex(myAlphaIndex);
-			pp2pp.addObserver(this);
-			Thread thread = new Thread(pp2pp, "Bftsu PP-to-PP protocol connected with " + ppId);
-			ppToPPProtocolThreads.add(pp2pp);
 			privacyPeerInfos.add(currentID, new BftsuPeerInfo(ppId, otherPPindex));
-			thread.start();
+			startProtocolThreadForPrivacyPeer(currentID, ppId, otherPPindex);
 			currentID++;
 		}
 	}
 
+	/**
+	 * Creates and starts the protocol thread for one privacy peer.
+	 *
+	 * @param currentID		the thread number
+	 * @param ppId			the id of the privacy peer
+	 * @param otherPPindex	the index of the privacy peer
+	 */
+	private void startProtocolThreadForPrivacyPeer(int currentID, String ppId, int otherPPindex) {
+		BftsuProtocolPrivacyPeerToPP pp2pp = new BftsuProtocolPrivacyPeerToPP(currentID, this, ppId, otherPPindex, stopper);
+		pp2pp.setMyPeerIndex(myAlphaIndex);
+		pp2pp.addObserver(this);
+		ppToPPProtocolThreads.add(pp2pp);
+		runProtocolTask(pp2pp);
+	}
+
 	/**
 	 * Create and start the threads. Attach one input peer id to each of them.
 	 * 
@@ -167,21 +328,120 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 *            the ids of the input peers
 	 */
 	private void createProtocolThreadsForInputPeers(List<String> inputPeerIDs) {
+		Map<String, BftsuProtocolPrivacyPeerToPeer> previous = getProtocolThreadsByInputPeer();
 		peerProtocolThreads.clear();
+		for (BftsuPeerInfo peerInfo : peerInfos) {
+			peerInfo.reset();
+		}
 		peerInfos.clear();
+		peerInfosByID.clear();
 		int currentID = 0;
 		for(String ipId: inputPeerIDs) {
-			logger.log(Level.INFO, "Create a thread for input peer " +ipId );
-			BftsuProtocolPrivacyPeerToPeer pp2p = new BftsuProtocolPrivacyPeerToPeer(currentID, this, ipId, currentID, stopper);
-			pp2p.addObserver(this);
-			Thread thread = new Thread(pp2p, "Bftsu Peer protocol connected with " + ipId);
-			peerProtocolThreads.add(pp2p);
-			peerInfos.add(currentID, new BftsuPeerInfo(ipId, currentID));
-			thread.start();
+			BftsuLog.fine(logger, "Create a thread for input peer ", ipId);
+			BftsuPeerInfo peerInfo = new BftsuPeerInfo(ipId, currentID);
+			peerInfos.add(currentID, peerInfo);
+			peerInfosByID.put(ipId, peerInfo);
+			startProtocolThreadForInputPeer(currentID, ipId, previous.get(ipId));
 			currentID++;
 		}
 	}
 
+	/**
+	 * Creates and starts the protocol thread for one input peer. If the
+	 * instance of the last round still drops late shares of the input peer,
+	 * the new one is started once it is done, so only one thread reads from
+	 * the connection.
+	 *
+	 * @param currentID	the thread number and index of the input peer
+	 * @param ipId		the id of the input peer
+	 * @param previous	the instance of the last round (null if none)
+	 */
+	private void startProtocolThreadForInputPeer(int currentID, String ipId, BftsuProtocolPrivacyPeerToPeer previous) {
+		BftsuProtocolPrivacyPeerToPeer earlyReader = earlyReaders.remove(ipId);
+		if (earlyReader != null) {
+			if (earlyReader.getTimeSlot() == currentTimeSlot) {
+				// it already reads the shares of this round
+				peerProtocolThreads.add(earlyReader);
+				earlyReader.adopt(currentID);
+				return;
+			}
+			logger.log(Level.WARNING, "Shares of input peer " + ipId + " were read ahead for time slot "
+					+ earlyReader.getTimeSlot() + " instead of " + currentTimeSlot + "; dropping them");
+			earlyReader.release();
+			previous = earlyReader;
+		}
+		BftsuProtocolPrivacyPeerToPeer pp2p = new BftsuProtocolPrivacyPeerToPeer(currentID, this, ipId, currentID, stopper);
+		pp2p.addObserver(this);
+		peerProtocolThreads.add(pp2p);
+		if (previous == null || !previous.runAfterReading(pp2p)) {
+			runProtocolTask(pp2p);
+		}
+	}
+
+
+	/**
+	 * Starts reading the shares of the next round from an input peer once its
+	 * protocol instance read the shares of the current one, so the input peer
+	 * can share the next round while this one is computed. Does nothing
+	 * without a pipeline depth, in the last round, or if the next round is
+	 * already started (its instance reads the shares then).
+	 *
+	 * @param pp2p	the instance that read the shares of its round
+	 */
+	protected synchronized void readAhead(BftsuProtocolPrivacyPeerToPeer pp2p) {
+		int nextTimeSlot = pp2p.getTimeSlot() + getSlotsInRound(pp2p.getTimeSlot());
+		if (pipelineDepth <= 0 || nextTimeSlot > timeSlotCount || currentTimeSlot >= nextTimeSlot
+				|| stopper.isStopped() || protocolStopper.isStopped()) {
+			return;
+		}
+		String ipId = pp2p.getInputPeerID();
+		int index = pp2p.getInputPeerIndex();
+		BftsuProtocolPrivacyPeerToPeer earlyReader = new BftsuProtocolPrivacyPeerToPeer(index, this, ipId, index, nextTimeSlot, true, stopper);
+		earlyReader.addObserver(this);
+		earlyReaders.put(ipId, earlyReader);
+		if (!runProtocolTask(earlyReader)) {
+			// the round failed
+			earlyReaders.remove(ipId);
+		}
+	}
+
+
+	/**
+	 * Runs an instance reading ahead again that parked (see
+	 * {@link BftsuReadAhead}), once its round is started or it is released.
+	 * After a stop it stays parked, as nothing is read anymore.
+	 *
+	 * @param earlyReader	the parked instance
+	 */
+	protected void resumeReader(BftsuProtocolPrivacyPeerToPeer earlyReader) {
+		if (!stopper.isStopped() && !protocolStopper.isStopped()) {
+			runProtocolTask(earlyReader);
+		}
+	}
+
+
+	/**
+	 * Releases the instances reading ahead that no round took over.
+	 */
+	private synchronized void releaseEarlyReaders() {
+		for (BftsuProtocolPrivacyPeerToPeer earlyReader : earlyReaders.values()) {
+			earlyReader.release();
+		}
+		earlyReaders.clear();
+	}
+
+
+	/**
+	 * @return the protocol instances of the last round by input peer ID
+	 */
+	private Map<String, BftsuProtocolPrivacyPeerToPeer> getProtocolThreadsByInputPeer() {
+		Map<String, BftsuProtocolPrivacyPeerToPeer> threads = new HashMap<String, BftsuProtocolPrivacyPeerToPeer>();
+		for (BftsuProtocolPrivacyPeerToPeer pp2p : peerProtocolThreads) {
+			threads.put(pp2p.getInputPeerID(), pp2p);
+		}
+		return threads;
+	}
+
 	/**
 	 * Run the MPC protocol(s) over the given connection(s).
 	 */
@@ -191,7 +451,9 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	}
 
 	/**
-	 * Process message received by an observable.
+	 * Process message received by an observable. The messages of different
+	 * input peers are handled in parallel: each touches only its own peer info
+	 * and buffer, and the count of missing shares is atomic.
 	 * 
 	 * @param observable	Observable who sent the notification
 	 * @param object		The object that was sent by the observable
@@ -206,14 +468,119 @@ public class BftsuPrivacyPeer extends BftsuBase {
 			} 
 			
 			if (msg.isInitialSharesMessage()) {
-				logger.log(Level.INFO, "Received shares from peer: " + msg.getSenderID());
+				BftsuLog.fine(logger, "Received shares from peer: ", msg.getSenderID());
+				if (!msg.isDummyMessage() && msg.getTimeSlot() < currentTimeSlot) {
+					// late shares of a round that went on without the input peer; the
+					// peer info already belongs to the current round
+					logger.log(Level.INFO, "Dropping late shares of input peer " + msg.getSenderID() + " for time slot "
+							+ msg.getTimeSlot());
+					if (msg.getShareBuffer() != null) {
+						msg.getShareBuffer().release();
+					}
+					return;
+				}
 				BftsuPeerInfo peerInfo = getPeerInfoByPeerID(msg.getSenderID());
-				peerInfo.setInitialShares(msg.getInitialShares());
-
-				initialSharesToReceive--;
-				if (initialSharesToReceive <= 0) {
-					logger.log(Level.INFO, "Received all initial shares from peers...");
-					startNextPPProtocolStep();
+				String rejection = null;
+				if (!msg.isDummyMessage() && msg.getTimeSlot() != currentTimeSlot) {
+					// shares of another time slot must never be mixed into this one
+					rejection = "belong to time slot " + msg.getTimeSlot() + " instead of " + currentTimeSlot;
+				} else if (!msg.isDummyMessage() && !getFilterConfig().equals(msg.getFilterConfig())) {
+					// the cells of the filter would not match the ones of the other input peers
+					rejection = "come from a Bloom filter with the settings " + msg.getFilterConfig() + " instead of "
+							+ getFilterConfig() + " (hash strategy/hash functions/length)";
+				} else if (msg.hasInitialShares() && !isValidSharesChunk(msg)) {
+					rejection = "do not fit the " + getItemsInRound() + " items of the round";
+				}
+				if (rejection != null || peerInfo.isSharesRejected()) {
+					if (rejection != null) {
+						logger.log(Level.SEVERE, "Shares from " + msg.getSenderID() + " " + rejection + "; ignoring them");
+					}
+					if (msg.getShareBuffer() != null) {
+						msg.getShareBuffer().release();
+					}
+					// the remaining chunks of the vector are ignored as well
+					discardShares(peerInfo);
+					peerInfo.setIsSharesRejected(true);
+					if (!msg.isLastSharesChunk()) {
+						return;
+					}
+				} else if (!msg.hasInitialShares()) {
+					// discard chunks received before the peer went offline
+					discardShares(peerInfo);
+				} else if (msg.getShareBuffer() != null) {
+					// the shares were read off-heap
+					BftsuShareBuffer chunk = msg.getShareBuffer();
+					if (msg.getSharesOffset() == 0 && msg.isLastSharesChunk()) {
+						peerInfo.setShareBuffer(chunk);
+					} else {
+						if (peerInfo.getShareBuffer() == null) {
+							peerInfo.setShareBuffer(BftsuShareBuffer.allocateDirect(getItemsInRound()));
+						}
+						peerInfo.getShareBuffer().set(msg.getSharesOffset(), chunk);
+						if (!addSharesChunk(peerInfo, chunk, msg.getSharesOffset())) {
+							chunk.release();
+						}
+						if (!msg.isLastSharesChunk()) {
+							return;
+						}
+					}
+				} else if (msg.getSharesOffset() == 0 && msg.isLastSharesChunk()) {
+					// all shares in one message: use the received array as is
+					peerInfo.setInitialShares(msg.getInitialShares());
+				} else {
+					peerInfo.setInitialShares(msg.getInitialShares(), msg.getSharesOffset(), getSharesBuffer(peerInfo.getIndex()));
+					addSharesChunk(peerInfo, msg.getInitialShares(), msg.getSharesOffset());
+					if (!msg.isLastSharesChunk()) {
+						return;
+					}
+				}
+				boolean start;
+				synchronized (participantsLock) {
+					if (sharingClosed) {
+						// the round was started without this input peer
+						logger.log(Level.INFO, "Shares of input peer " + peerInfo.getID() + " arrived after the round of time slot "
+								+ currentTimeSlot + " was started; they are excluded");
+						discardShares(peerInfo);
+						return;
+					}
+					if (peerInfo.hasInitialShares()) {
+						participants.add(peerInfo.getID());
+						if (shareAccumulator != null) {
+							// the sum does not keep the vector, so it is dropped once it is
+							// added. In quorum mode, every vector is kept until the round is
+							// computed: it has to be taken out again if the privacy peers
+							// agree on fewer input peers.
+							boolean keep = quorumDeadline > 0;
+							boolean summed = !peerInfo.getSummedRanges().isEmpty();
+							peerInfo.clearSummedRanges();
+							if (peerInfo.getShareBuffer() != null) {
+								if (!summed) {
+									// all shares in one message
+									shareAccumulator.add(peerInfo.getShareBuffer(), 0, !keep);
+								} else if (!keep) {
+									// the chunks were added; the vector was only kept to take them out again
+									peerInfo.getShareBuffer().release();
+								}
+								if (!keep) {
+									peerInfo.setShareBuffer(null);
+								}
+							} else {
+								if (!summed) {
+									shareAccumulator.add(peerInfo.getInitialShares(), 0);
+								}
+								if (!keep) {
+									peerInfo.setInitialShares(null);
+								}
+							}
+							peerInfo.setIsInitialSharesReceived(true);
+						}
+					}
+					inputPeersDone.add(peerInfo.getID());
+					start = closeSharing();
+				}
+				// only one of the (concurrently handled) messages starts the round
+				if (start) {
+					startComputing();
 				}
 
 			} else {
@@ -231,6 +598,294 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	}
 
 
+	/**
+	 * Adds a chunk of the initial shares of an input peer to the running sum
+	 * as soon as it arrives, unless the sharing of the round is closed. The
+	 * chunk is also in the peer's vector, from which it is taken out of the
+	 * sum again if the vector is not completed (see {@link #discardShares(BftsuPeerInfo)}).
+	 *
+	 * @param peerInfo	the input peer
+	 * @param chunk		the chunk of initial shares
+	 * @param offset	index of the first share of the chunk within the whole vector
+	 */
+	private void addSharesChunk(BftsuPeerInfo peerInfo, long[] chunk, int offset) {
+		synchronized (participantsLock) {
+			if (shareAccumulator == null || sharingClosed) {
+				return;
+			}
+			shareAccumulator.add(chunk, offset);
+			peerInfo.addSummedRange(offset, offset + chunk.length);
+		}
+	}
+
+
+	/**
+	 * Adds a chunk of the initial shares, read off-heap, to the running sum
+	 * (see {@link #addSharesChunk(BftsuPeerInfo, long[], int)}). The chunk is
+	 * released once it is added.
+	 *
+	 * @param peerInfo	the input peer
+	 * @param chunk		the chunk of initial shares
+	 * @param offset	index of the first share of the chunk within the whole vector
+	 * @return			true if the chunk is added (otherwise the caller releases it)
+	 */
+	private boolean addSharesChunk(BftsuPeerInfo peerInfo, BftsuShareBuffer chunk, int offset) {
+		synchronized (participantsLock) {
+			if (shareAccumulator == null || sharingClosed) {
+				return false;
+			}
+			shareAccumulator.add(chunk, offset, true);
+			peerInfo.addSummedRange(offset, offset + chunk.length());
+			return true;
+		}
+	}
+
+
+	/**
+	 * Drops the initial shares of an input peer, after taking the chunks that
+	 * were already added out of the running sum.
+	 *
+	 * @param peerInfo	the input peer
+	 * @throws InterruptedException
+	 */
+	private void discardShares(BftsuPeerInfo peerInfo) throws InterruptedException {
+		synchronized (participantsLock) {
+			subtractSummedChunks(peerInfo);
+		}
+		peerInfo.discardShares();
+	}
+
+
+	/**
+	 * Takes the chunks of an incomplete vector out of the running sum. Must be
+	 * called holding participantsLock.
+	 *
+	 * @param peerInfo	the input peer
+	 * @throws InterruptedException
+	 */
+	private void subtractSummedChunks(BftsuPeerInfo peerInfo) throws InterruptedException {
+		if (peerInfo.getSummedRanges().isEmpty()) {
+			return;
+		}
+		BftsuShareBuffer shares = peerInfo.getShares();
+		for (int[] range : peerInfo.getSummedRanges()) {
+			shareAccumulator.subtract(shares, range[0], range[1]);
+		}
+		peerInfo.clearSummedRanges();
+	}
+
+
+	/**
+	 * Stops accepting shares if the round can start: if all input peers have
+	 * sent their shares (or disconnected), or if the quorum deadline has passed
+	 * and the shares of at least minInputPeers input peers have arrived. Must
+	 * be called holding participantsLock.
+	 *
+	 * @return	true if the caller has to start the round
+	 */
+	private boolean closeSharing() {
+		if (sharingClosed) {
+			return false;
+		}
+		boolean allDone = inputPeersDone.size() >= numberOfInputPeers;
+		// at least one input peer, whose final result ends the round
+		boolean quorum = deadlinePassed && participants.size() >= Math.max(1, minInputPeers);
+		if (!allDone && !quorum) {
+			return false;
+		}
+		sharingClosed = true;
+		return true;
+	}
+
+
+	/**
+	 * Called by the timer when the quorum deadline of a round has passed.
+	 *
+	 * @param round	the round of the deadline
+	 */
+	private void quorumDeadlinePassed(int round) {
+		boolean start;
+		synchronized (participantsLock) {
+			if (round != sharingRound) {
+				return;
+			}
+			deadlinePassed = true;
+			start = closeSharing();
+		}
+		if (start) {
+			try {
+				startComputing();
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		} else {
+			BftsuLog.fine(logger, "Quorum deadline passed, waiting for the shares of at least input peers: ", minInputPeers);
+		}
+	}
+
+
+	/**
+	 * Starts the computation of the round on the accepted shares.
+	 *
+	 * @throws InterruptedException
+	 */
+	private void startComputing() throws InterruptedException {
+		if (deadlineTask != null) {
+			deadlineTask.cancel(false);
+		}
+		BftsuLog.fine(logger, "Received the initial shares of input peers: ", getParticipants().length);
+		metrics.record(Stage.WAIT_FOR_SHARES, sharingStartTime);
+		if (shareAccumulator != null) {
+			// the chunks of the input peers left out were added while they arrived
+			synchronized (participantsLock) {
+				for (BftsuPeerInfo peerInfo : peerInfos) {
+					if (!participants.contains(peerInfo.getID())) {
+						subtractSummedChunks(peerInfo);
+					}
+				}
+			}
+		}
+		setPhase(Phase.COMPUTING);
+		// before any final result is sent, so the round does not wait for the late input peers
+		releaseLateInputPeers();
+		startNextPPProtocolStep();
+	}
+
+
+	/**
+	 * Tells the input peers whose shares did not arrive before the round was
+	 * started that they are excluded, without waiting for the rest of their
+	 * shares. Their protocol threads drop the shares and stop, and the round
+	 * does not wait for their final results.
+	 */
+	private void releaseLateInputPeers() {
+		List<BftsuPeerInfo> late = new ArrayList<BftsuPeerInfo>();
+		synchronized (participantsLock) {
+			for (BftsuPeerInfo peerInfo : peerInfos) {
+				if (!inputPeersDone.contains(peerInfo.getID())) {
+					late.add(peerInfo);
+				}
+			}
+		}
+		final int timeSlot = currentTimeSlot;
+		for (BftsuPeerInfo peerInfo : late) {
+			final BftsuProtocolPrivacyPeerToPeer pp2p = peerProtocolThreads.get(peerInfo.getIndex());
+			if (!pp2p.release()) {
+				// its last shares were just read; it sends its final result as usual
+				continue;
+			}
+			logger.log(Level.INFO, "Input peer " + peerInfo.getID() + " did not deliver its shares for time slot "
+					+ timeSlot + " in time; it is excluded");
+			synchronized (this) {
+				finalResultsToDo--;
+			}
+			runProtocolTask(new Runnable() {
+				public void run() {
+					pp2p.sendExcludedResult(timeSlot);
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * @return the IDs of the input peers whose shares were accepted in the
+	 * current round (complete once the round is started)
+	 */
+	public String[] getParticipants() {
+		synchronized (participantsLock) {
+			return participants.toArray(new String[participants.size()]);
+		}
+	}
+
+
+	/**
+	 * @return true if the round is started at a quorum deadline, so the privacy
+	 * peers have to agree on the participating input peers
+	 */
+	public boolean hasQuorumDeadline() {
+		return quorumDeadline > 0;
+	}
+
+
+	/**
+	 * Stores the participants of another privacy peer.
+	 *
+	 * @param alphaIndex	the alpha index of the other privacy peer
+	 * @param ids			the IDs of the input peers whose shares it accepted (null if it disconnected)
+	 */
+	public void setParticipantsOfPP(int alphaIndex, String[] ids) {
+		participantsOfPPs[alphaIndex] = ids;
+	}
+
+
+	/**
+	 * Computes the input peers that all privacy peers accepted, i.e., the
+	 * intersection of the own participants and the ones of the other privacy
+	 * peers. Privacy peers that disconnected are not considered.
+	 *
+	 * @return	the IDs of the input peers the round is computed on
+	 */
+	private Set<String> agreeOnParticipants() {
+		Set<String> agreed = new TreeSet<String>(Arrays.asList(getParticipants()));
+		for (String[] ids : participantsOfPPs) {
+			if (ids != null) {
+				agreed.retainAll(Arrays.asList(ids));
+			}
+		}
+		List<String> excluded = new ArrayList<String>();
+		for (BftsuPeerInfo peerInfo : peerInfos) {
+			if (!agreed.contains(peerInfo.getID())) {
+				excluded.add(peerInfo.getID());
+			}
+		}
+		if (excluded.isEmpty()) {
+			BftsuLog.fine(logger, "All privacy peers accepted the shares of all input peers: ", agreed.size());
+		} else {
+			logger.log(Level.INFO, "Time slot " + currentTimeSlot + ": computing on " + agreed.size() + " of "
+					+ numberOfInputPeers + " input peers, excluded: " + excluded);
+		}
+		if (agreed.size() < minInputPeers) {
+			logger.log(Level.SEVERE, "The privacy peers only agreed on " + agreed.size() + " input peers (minInputPeers: "
+					+ minInputPeers + "); time slot " + currentTimeSlot + " is not computed");
+		}
+		return agreed;
+	}
+
+
+	/**
+	 * Checks that a chunk of initial shares lies within the share vector of the
+	 * round and that the last chunk ends with it, i.e., that the input peer
+	 * shared a vector of {@link #getItemsInRound()} items.
+	 *
+	 * @param msg	the message holding the chunk
+	 * @return		true if the chunk is valid
+	 */
+	private boolean isValidSharesChunk(BftsuMessage msg) {
+		int length = (msg.getShareBuffer() != null) ? msg.getShareBuffer().length() : msg.getInitialShares().length;
+		long end = (long) msg.getSharesOffset() + length;
+		int items = getItemsInRound();
+		return msg.getSharesOffset() >= 0 && end <= items && (!msg.isLastSharesChunk() || end == items);
+	}
+
+
+	/**
+	 * Returns the buffer for the initial shares of an input peer. The buffers
+	 * are kept across rounds, so they are only allocated once. Only the
+	 * messages of the input peer itself touch its buffer.
+	 *
+	 * @param peerIndex	the index of the input peer
+	 * @return			the buffer
+	 */
+	private long[] getSharesBuffer(int peerIndex) {
+		int length = getItemsInRound();
+		if (sharesBuffers[peerIndex] == null || sharesBuffers[peerIndex].length != length) {
+			sharesBuffers[peerIndex] = new long[length];
+		}
+		return sharesBuffers[peerIndex];
+	}
+
+
 	/**
 	 * returns the number of peers connected to this one
 	 */
@@ -290,16 +945,11 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * 
 	 * @return The peers info instance (null if not found)
 	 */
-	protected synchronized BftsuPeerInfo getPeerInfoByPeerID(String peerID) {
-		for (BftsuPeerInfo peerInfo : peerInfos) {
-			if (peerInfo.getID() == null) {
-				logger.log(Level.WARNING, "There is a peerInfo without a peerID! " + peerInfo.getIndex());
-			}
-			else if (peerInfo.getID().equals(peerID)) {
-				return peerInfo;
-			}
+	protected BftsuPeerInfo getPeerInfoByPeerID(String peerID) {
+		if (peerID == null) {
+			return null;
 		}
-		return null;
+		return peerInfosByID.get(peerID);
 	}
 
 
@@ -308,9 +958,9 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * @throws InterruptedException
 	 */
 	public void waitForNextPeerProtocolStep() {
-		logger.log(Level.INFO, "PeerProtocol Barrier: Thread nr. "+(peerProtocolBarrier.getNumberOfWaitingThreads()+1)+" arrived.");
+		BftsuLog.fine(logger, "PeerProtocol thread waits for the final result...");
 		try {
-			peerProtocolBarrier.block();
+			finalResultReady.await();
 		} catch (InterruptedException e) {
 			// ignore
 		}
@@ -322,12 +972,8 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * @throws InterruptedException
 	 */
 	protected void startNextPeerProtocolStep() {
-		logger.log(Level.INFO, "PeerProtocol Opening the barrier. PeerProtocol Threads can start the next step.");
-		try {
-			peerProtocolBarrier.openBarrier();
-		} catch (InterruptedException e) {
-			// ignore
-		}
+		BftsuLog.fine(logger, "PeerProtocol Opening the barrier. PeerProtocol Threads can start the next step.");
+		finalResultReady.countDown();
 	}
 
 
@@ -336,9 +982,9 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * @throws InterruptedException
 	 */
 	public void waitForNextPPProtocolStep() {
-		logger.log(Level.INFO, "PPProtocol Barrier: Thread nr. "+(ppProtocolBarrier.getNumberOfWaitingThreads()+1)+" arrived.");
+		BftsuLog.fine(logger, "PPProtocol thread waits for the shares of the round...");
 		try {
-			ppProtocolBarrier.block();
+			sharesReady.await();
 		} catch (InterruptedException e) {
 			// ignore
 		}
@@ -350,8 +996,24 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * @throws InterruptedException
 	 */
 	protected void startNextPPProtocolStep() throws InterruptedException {
-		logger.log(Level.INFO, "PPProtocol Opening the barrier. PPProtocol Threads can start the next step.");
-		ppProtocolBarrier.openBarrier();
+		BftsuLog.fine(logger, "PPProtocol Opening the barrier. PPProtocol Threads can start the next step.");
+		sharesReady.countDown();
+	}
+
+
+	/**
+	 * Lets the protocol threads waiting for the shares or the final result of
+	 * the round return after the round failed, and releases the instances
+	 * reading ahead.
+	 */
+	protected void releaseWaitingThreads() {
+		if (sharesReady != null) {
+			sharesReady.countDown();
+		}
+		if (finalResultReady != null) {
+			finalResultReady.countDown();
+		}
+		releaseEarlyReaders();
 	}
 
 
@@ -377,59 +1039,185 @@ public class BftsuPrivacyPeer extends BftsuBase {
 			}
 			primitives.product(operationIndex, data);
 		}
-		logger.log(Level.INFO, "thread " + Thread.currentThread().getId() + " started the "+operationIDs.length+" product operations...");
+		BftsuLog.fine(logger, "thread ", Thread.currentThread().getId(), " started the product operations: ", operationIDs.length);
+	}
+
+
+	/**
+	 * Skips the computation of the round. The privacy peer protocol threads
+	 * stop after {@link #startBftsu()} and the input peers get a final result
+	 * message without results.
+	 */
+	private void skipComputation() {
+		computationSkipped = true;
+		operationIDs = new int[0];
+		finalResults = null;
+		encodedFinalResults = null;
+		setPhase(Phase.RESULTS);
+		startNextPeerProtocolStep();
+	}
+
+
+	/**
+	 * @return true if the round is not computed (see {@link #startBftsu()})
+	 */
+	public boolean isComputationSkipped() {
+		return computationSkipped;
+	}
+
+
+	/**
+	 * @param inputPeerID	the ID of an input peer
+	 * @return				true if the privacy peers left the shares of the input peer
+	 * 						out of the round (after they agreed on the participants)
+	 * 						or if this privacy peer rejected them
+	 */
+	public boolean isExcluded(String inputPeerID) {
+		Set<String> participants = roundParticipants;
+		if (participants != null) {
+			return !participants.contains(inputPeerID);
+		}
+		BftsuPeerInfo peerInfo = getPeerInfoByPeerID(inputPeerID);
+		return peerInfo != null && peerInfo.isSharesRejected();
 	}
 
 
 	/**
 	 * computes the function on the received shares
+	 * @throws InterruptedException
 	 */
-	public void startBftsu() {
+	public void startBftsu() throws InterruptedException {
 		logger.log(Level.INFO, Services.getFilterPassingLogPrefix()+ "STARTING Bftsu Protocol round...");
 		int activeInputPeers = connectionManager.getNumberOfConnectedPeers(false, true);
+		Set<String> agreed = null;
+		if (quorumDeadline > 0) {
+			// only the input peers accepted by all privacy peers take part
+			agreed = agreeOnParticipants();
+			activeInputPeers = agreed.size();
+			roundParticipants = agreed;
+			if (agreed.size() < minInputPeers) {
+				// every privacy peer agreed on the same input peers, so all of them skip the round
+				skipComputation();
+				return;
+			}
+		}
 		
-		//create bftsu operation set
-		initializeNewOperationSet(1);
-		operationIDs = new int[1];
-		operationIDs[0] = 0;
-		int dataIndex = 0;
-		// data[filter x][position i]
-		long[][] data = new long[activeInputPeers][numberOfItems];
+		if (shareAccumulator != null) {
+			// the shares were summed up while they arrived
+			if (agreed != null) {
+				for (String id : getParticipants()) {
+					if (!agreed.contains(id)) {
+						shareAccumulator.subtract(getPeerInfoByPeerID(id).getShares());
+					}
+				}
+			}
+			startThresholdUnion(new long[][] { shareAccumulator.getSum() });
+			BftsuLog.fine(logger, "thread ", Thread.currentThread().getId(), " started the bftsu operations on the summed shares: ", operationIDs.length);
+			return;
+		}
+		// data[filter x][position i]; one row per input peer that delivered its
+		// shares (the rows are the received share vectors themselves, so the
+		// shares on the heap are not copied again)
+		List<BftsuShareBuffer> data = new ArrayList<BftsuShareBuffer>(numberOfInputPeers);
 		for(int peerIndex = 0; peerIndex < numberOfInputPeers; peerIndex++) {
 		// collect all Bloom filter shares
-			long [] initialShares = getPeerInfoByIndex(peerIndex).getInitialShares();
-			if(initialShares!=null) { // only consider active input peers
-				System.arraycopy(initialShares, 0, data[dataIndex], 0, numberOfItems);
-				dataIndex++;
+			BftsuPeerInfo peerInfo = getPeerInfoByIndex(peerIndex);
+			if(peerInfo.hasInitialShares() && (agreed == null || agreed.contains(peerInfo.getID()))) { // only consider active input peers
+				data.add(peerInfo.getShares());
 			}
 		}
+		if (data.size() < activeInputPeers) {
+			logger.log(Level.WARNING, (activeInputPeers - data.size()) + " of " + activeInputPeers
+					+ " input peers did not deliver their shares for time slot " + currentTimeSlot);
+		}
+		startThresholdUnion(data.toArray(new BftsuShareBuffer[data.size()]));
+		BftsuLog.fine(logger, "thread ", Thread.currentThread().getId(), " started the bftsu operations: ", operationIDs.length);
+
+	}
+
+
+	/**
+	 * Creates the operation set of the threshold union. The operation takes
+	 * its input as arrays: vectors on the heap are used as they are. If any
+	 * vector is stored off-heap, the vectors are summed up into a single row
+	 * (the union sums them up first anyway), so no vector is copied to the
+	 * heap as a whole.
+	 *
+	 * @param data	the share vectors; dimensions: [filter x][position i]
+	 */
+	private void startThresholdUnion(BftsuShareBuffer[] data) {
+		int items = getItemsInRound();
+		boolean direct = false;
+		for (BftsuShareBuffer vector : data) {
+			direct |= vector.isDirect();
+		}
+		long[][] rows;
+		if (!direct) {
+			rows = new long[data.length][];
+			for (int row = 0; row < data.length; row++) {
+				rows[row] = data[row].toArray(0, items);
+			}
+		} else {
+			rows = new long[][] { BftsuShareAccumulator.sum(data, 0, items, shamirSharesFieldOrder) };
+		}
+		startThresholdUnion(rows);
+	}
+
+
+	/**
+	 * Creates the threshold union operation.
+	 *
+	 * @param data	the input of the operation; dimensions: [filter x][position i]
+	 */
+	private void startThresholdUnion(long[][] data) {
+		initializeNewOperationSet(1);
+		operationIDs = new int[1];
+		operationIDs[0] = 0;
 		if(!primitives.bfThresholdUnion(operationIDs[0], data, threshold, false)) {
 			Services.printVector("SEVERE: bfBftsu operation arguments are invalid: id=0; data: ", data[0], logger);
 		}
-		logger.log(Level.INFO, "thread " + Thread.currentThread().getId() + " started the "+operationIDs.length+" bftsu operations...");
-
 	}
 	
 	/**
 	 * starts the reconstruction of the final result
 	 */
 	public void startFinalResultReconstruction() {
+		reconstructionStartTime = BftsuMetrics.start();
 		// get bftsu operation result
 		long[] result = primitives.getResult(operationIDs[0]);
 
-		initializeNewOperationSet(result.length);
-		operationIDs = new int[result.length];
-		long[] data = null;
-		for(int i = 0; i < result.length; i++) {
-			// create reconstruction operation for result of product operation
-			operationIDs[i] = i;
-			data = new long[1];
-			data[0] = result[i];
-			if(!primitives.reconstruct(operationIDs[i], data)) {
-				logger.log(Level.SEVERE, "reconstruct operation arguments are invalid: id="+operationIDs[i]+", data="+data[0]);
-			}
-		}
-		logger.log(Level.INFO, "thread " + Thread.currentThread().getId() + " started the final result reconstruction; (" + operationIDs.length + " reconstruction operations are in progress)");
+		// the whole vector is exchanged at once by the privacy peer protocol threads
+		resultShares = new long[numberOfPrivacyPeers][];
+		resultShares[myAlphaIndex] = result;
+		BftsuLog.fine(logger, "thread ", Thread.currentThread().getId(), " started the final result reconstruction; shares exchanged with the other privacy peers: ", result.length);
+	}
+
+
+	/**
+	 * @return the degree of the sharing polynomials (the default of
+	 * {@link mpc.ShamirSharing} if none is configured)
+	 */
+	private int getSharingDegree() {
+		return (degreeT > 0) ? degreeT : (numberOfPrivacyPeers - 1) / 2;
+	}
+
+
+	/**
+	 * @return the shares of the result held by this privacy peer
+	 */
+	public long[] getResultShares() {
+		return resultShares[myAlphaIndex];
+	}
+
+
+	/**
+	 * Stores the shares of the result received from another privacy peer.
+	 *
+	 * @param alphaIndex	the alpha index of the other privacy peer
+	 * @param shares		its shares of the result (null if it disconnected)
+	 */
+	public void setResultShares(int alphaIndex, long[] shares) {
+		resultShares[alphaIndex] = shares;
 	}
 
 
@@ -437,12 +1225,47 @@ public class BftsuPrivacyPeer extends BftsuBase {
 	 * retrieves and stores the final result
 	 */
 	public void setFinalResult() {
-		logger.info("Thread " + Thread.currentThread().getId() + " called setFinalResult");
-		finalResults = new long[operationIDs.length];
-		for(int i = 0; i < operationIDs.length; i++) {
-			finalResults[i] = primitives.getResult(operationIDs[i])[0];
+		BftsuLog.fine(logger, "Thread called setFinalResult: ", Thread.currentThread().getId());
+		// interpolate all secrets at once from the available share vectors
+		int available = 0;
+		for (int i = 0; i < resultShares.length; i++) {
+			if (resultShares[i] != null) {
+				available++;
+			}
 		}
-		logger.info("Thread " + Thread.currentThread().getId() + " starts next pp-peer protocol step...");
+		long[][] shares = new long[available][];
+		int[] alphaIndices = new int[available];
+		int row = 0;
+		for (int i = 0; i < resultShares.length; i++) {
+			if (resultShares[i] != null) {
+				shares[row] = resultShares[i];
+				alphaIndices[row] = i;
+				row++;
+			}
+		}
+		resultShares = null;
+		int degree = getSharingDegree();
+		if (available > degree) {
+			BftsuLog.fine(logger, "Privacy peers whose shares are used to reconstruct the final result: ", available);
+			finalResults = new BftsuInterpolation(shamirSharesFieldOrder).interpolate(shares, alphaIndices);
+			// encode the result once for all input peers
+			try {
+				encodedFinalResults = BftsuCodec.encodeAdaptive(finalResults);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Encoding the final result failed, every thread encodes it on its own: " + Utils.getStackTrace(e));
+				encodedFinalResults = null;
+			}
+		} else {
+			// fewer than degree+1 points do not determine the polynomials; the input
+			// peers get a final result message without results
+			logger.log(Level.SEVERE, "Only " + available + " privacy peers delivered their shares of the result, "
+					+ (degree + 1) + " are needed; time slot " + currentTimeSlot + " failed");
+			finalResults = null;
+			encodedFinalResults = null;
+		}
+		metrics.record(Stage.RECONSTRUCTION, reconstructionStartTime);
+		BftsuLog.fine(logger, "Thread starts next pp-peer protocol step: ", Thread.currentThread().getId());
+		setPhase(Phase.RESULTS);
 		startNextPeerProtocolStep();
 	}
 
@@ -453,13 +1276,20 @@ public class BftsuPrivacyPeer extends BftsuBase {
 		return finalResults;
 	}
 
+	/**
+	 * @return the final result encoded for sending (null if not available)
+	 */
+	public byte[] getEncodedFinalResult() {
+		return encodedFinalResults;
+	}
+
 	/**
 	 * lets protocol thread report to privacy peer that it sent the final result and
 	 * starts new round if there are more time slots (data) to process
 	 */
 	protected synchronized void finalResultIsSent() {
 		finalResultsToDo--;
-		logger.log(Level.INFO, "thread " + Thread.currentThread().getId() + " called finalResultIsSent; finalResultsToDo="+finalResultsToDo);
+		BftsuLog.fine(logger, "thread ", Thread.currentThread().getId(), " called finalResultIsSent; finalResultsToDo=", finalResultsToDo);
 		if(finalResultsToDo <= 0) {
 			// report final result to observers
 			logger.log(Level.INFO, Services.getFilterPassingLogPrefix()+ "Sent all final results. Notifying observers...");
@@ -468,15 +1298,41 @@ public class BftsuPrivacyPeer extends BftsuBase {
 			finalResultEvent = new FinalResultEvent(this, myAlphaIndex, getMyPeerID(), getMyPeerID(), dummy);
 			finalResultEvent.setVerificationSuccessful(true);
 			sendNotification(finalResultEvent);
+			endRound();
 			// check if there are more time slots to process
-			if(currentTimeSlot < timeSlotCount) {
-				currentTimeSlot++;
-				logger.log(Level.INFO, "thread " + Thread.currentThread().getId() + " increased currentTimeSlot to "+currentTimeSlot+", will init new round now...");
+			int slots = getSlotsInRound();
+			if(currentTimeSlot + slots - 1 < timeSlotCount) {
+				currentTimeSlot += slots;
+				BftsuLog.fine(logger, "thread ", Thread.currentThread().getId(), " increased currentTimeSlot and inits the new round: ", currentTimeSlot);
 				initializeNewRound();
 			} else {
 				logger.log(Level.INFO, "No more data available... Stopping protocol threads...");
+				setPhase(Phase.DONE);
 				protocolStopper.setIsStopped(true);
 			}
 		}
 	}
+
+
+	/**
+	 * Does some cleaning up.
+	 */
+	protected synchronized void cleanUp() throws Exception {
+		// the parked instances reading ahead are not run again
+		protocolStopper.setIsStopped(true);
+		super.cleanUp();
+		releaseEarlyReaders();
+		if (shareAccumulator != null) {
+			shareAccumulator.shutdown();
+		}
+		if (deadlineTimer != null) {
+			deadlineTimer.shutdownNow();
+		}
+		if (offHeapShares) {
+			for (BftsuPeerInfo peerInfo : peerInfos) {
+				peerInfo.reset();
+			}
+			BftsuShareBuffer.clearPool();
+		}
+	}
 }
@@ -17,6 +17,7 @@ package mpc.bftsu;
 
 import java.util.logging.Level;
 
+import mpc.bftsu.BftsuMetrics.Stage;
 import mpc.protocolPrimitives.PrimitivesEnabledProtocol;
 import services.Stopper;
 import connections.PrivacyViolationException;
@@ -35,6 +36,8 @@ public abstract class BftsuProtocol extends PrimitivesEnabledProtocol implements
 	protected BftsuMessage messageReceived;
 	/** defines the string which precedes a bftsu protocol message */
 	protected static String BFTSU_MESSAGE = "BFTSU_MESSAGE";
+	/** the metrics of the peer running the protocol */
+	protected BftsuMetrics metrics;
 
 
 	/**
@@ -49,6 +52,7 @@ public abstract class BftsuProtocol extends PrimitivesEnabledProtocol implements
 		super(threadNumber, bftsuPeer.getConnectionManager(), bftsuPeer.getMyPeerID(), otherPeerID, bftsuPeer.getMyPeerIndex(), otherPeerIndex, stopper);
 
 		initializeProtocolPrimitives(bftsuPeer);
+		metrics = bftsuPeer.getMetrics();
 	}
 
 
@@ -57,9 +61,12 @@ public abstract class BftsuProtocol extends PrimitivesEnabledProtocol implements
 	 * @throws PrivacyViolationException 
 	 */
 	protected void sendMessage() throws PrivacyViolationException {
-		logger.log(Level.INFO, "Sending bftsu message (to " + otherPeerID + ")...");
+		BftsuLog.fine(logger, "Sending bftsu message to ", otherPeerID);
+		long start = BftsuMetrics.start();
 		connectionManager.sendMessage(otherPeerID, BFTSU_MESSAGE);
 		connectionManager.sendMessage(otherPeerID, messageToSend);
+		metrics.record(Stage.SEND, start);
+		metrics.addMessageSent(messageToSend, otherPeerID);
 	}
 
 
@@ -69,7 +76,22 @@ public abstract class BftsuProtocol extends PrimitivesEnabledProtocol implements
 	 * @throws PrivacyViolationException 
 	 */
 	protected void receiveMessage() throws PrivacyViolationException {
-		logger.log(Level.INFO, "Waiting for bftsu message to arrive ( from " + otherPeerID + ")...");
+		if (readMessage()) {
+			BftsuLog.fine(logger, "Notifying Observers with the message from ", otherPeerID);
+			notify(messageReceived);
+		}
+	}
+
+
+	/**
+	 * Receives a bftsu message over the connection without notifying the observers.
+	 * (the received message is stored in the messageReceived variable)
+	 *
+	 * @return	true if a bftsu message (or a dummy message if the counterpart disconnected) was received
+	 * @throws PrivacyViolationException 
+	 */
+	protected boolean readMessage() throws PrivacyViolationException {
+		BftsuLog.fine(logger, "Waiting for bftsu message to arrive from ", otherPeerID);
 		String messageType = (String) connectionManager.receiveMessage(otherPeerID);
 		messageReceived = (BftsuMessage) connectionManager.receiveMessage(otherPeerID);
 		
@@ -82,13 +104,14 @@ public abstract class BftsuProtocol extends PrimitivesEnabledProtocol implements
 			messageReceived = new BftsuMessage(otherPeerID, otherPeerIndex);
 			messageReceived.setIsDummyMessage(true);			
 			
-			logger.info("No connection to "+otherPeerID+". Notifying Observers with DUMMY message... ");
-			notify(messageReceived);
+			logger.info("No connection to "+otherPeerID+". Using DUMMY message... ");
+			return true;
 		} else if (BFTSU_MESSAGE.equals(messageType)) {
-			logger.info("Received " + messageType + " message type from "+otherPeerID+". Notifying Observers... ");
-			notify(messageReceived);
+			BftsuLog.fine(logger, "Received bftsu message from ", otherPeerID);
+			return true;
 		} else {
 			logger.log(Level.WARNING, "Received unexpected message type (expected: " + BFTSU_MESSAGE + ", received: " + messageType);
+			return false;
 		}
 	}
 
@@ -99,7 +122,7 @@ public abstract class BftsuProtocol extends PrimitivesEnabledProtocol implements
 	protected boolean wasIStopped() {
 		// Leave if someone stopped you
 		if (stopper.isStopped()) {
-			logger.log(Level.INFO, "Protocol thread handling "+otherPeerID+" was stopped, returning...");
+			BftsuLog.fine(logger, "Protocol thread was stopped, returning: ", otherPeerID);
 			return true;
 		}
 		return false;
@@ -15,6 +15,7 @@
 
 package mpc.bftsu;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 
 import services.Stopper;
@@ -32,6 +33,12 @@ public class BftsuProtocolPeer extends BftsuProtocol {
 	/** reference to the bftsu peer object that started this protocol instance */
 	private BftsuPeer inputPeer;
 	private int privacyPeerIndex;
+	/** the first time slot of the round of this instance */
+	private final int timeSlot;
+	/** the instance of the previous round with the same privacy peer (null if none) */
+	private BftsuProtocolPeer previous = null;
+	/** counted down once the final result of this instance was received (or will never be) */
+	private final CountDownLatch resultReceived = new CountDownLatch(1);
 
 
 	/**
@@ -47,6 +54,19 @@ public class BftsuProtocolPeer extends BftsuProtocol {
 		super(threadNumber, inputPeer, privacyPeerID, privacyPeerIndex, stopper);
 		this.inputPeer = inputPeer;
 		this.privacyPeerIndex = privacyPeerIndex;
+		timeSlot = inputPeer.getCurrentTimeSlot();
+	}
+
+
+	/**
+	 * Lets this instance receive its final result only after the instance of
+	 * the previous round, which may still wait for its own on the same
+	 * connection while this one sends the shares of the next round.
+	 *
+	 * @param previous	the instance of the previous round (null if none)
+	 */
+	public void receiveAfter(BftsuProtocolPeer previous) {
+		this.previous = previous;
 	}
 
 
@@ -55,44 +75,121 @@ public class BftsuProtocolPeer extends BftsuProtocol {
      * 
      * One round of communication looks as follows:
      * <ul>
-     * <li>Send Shares
+     * <li>Send Shares (in one or more chunks)
      * <li>Receive Final Result (zeros if peer was disqualified)
      * </ul> 
      */
     public void run() {
-		// Send the initial shares
-		createInitialSharesMessage();
 		try {
-			sendMessage();
-		} catch (PrivacyViolationException e) {
+			boolean sent;
+			try {
+				sent = sendInitialShares();
+			} finally {
+				// the next round may be shared while this one is computed
+				inputPeer.sharesSent();
+			}
+			if (sent) {
+				receiveFinalResult();
+			}
+		} finally {
+			resultReceived.countDown();
+		}
+    }
+
+
+	/**
+	 * Sends the initial shares chunk by chunk, as soon as they are generated.
+	 *
+	 * @return	false if not all chunks could be sent
+	 */
+	private boolean sendInitialShares() {
+		int numberOfChunks = inputPeer.getNumberOfSharesChunks();
+		for (int chunk = 0; chunk < numberOfChunks; chunk++) {
+			try {
+				if (!inputPeer.waitForInitialShares(chunk)) {
+					logger.severe("Initial shares could not be generated; returning...");
+					return false;
+				}
+			} catch (InterruptedException e) {
+				logger.severe(Utils.getStackTrace(e));
+				return false;
+			}
+			createInitialSharesMessage(chunk, numberOfChunks);
+			try {
+				sendMessage();
+			} catch (PrivacyViolationException e) {
+				logger.severe(Utils.getStackTrace(e));
+				return false;
+			}
+		}
+		BftsuLog.fine(logger, "Sent initial shares.");
+		return true;
+	}
+
+
+	/**
+	 * Receives the final result of the round, after the previous round
+	 * received its own over the same connection.
+	 */
+	private void receiveFinalResult() {
+		try {
+			if (previous != null) {
+				previous.resultReceived.await();
+				previous = null;
+			}
+		} catch (InterruptedException e) {
 			logger.severe(Utils.getStackTrace(e));
 			return;
 		}
-		logger.log(Level.INFO, "Sent initial shares.");
-
-		// wait for final result
-		logger.log(Level.INFO, "Waiting for final result...");
+		BftsuLog.fine(logger, "Waiting for final result...");
 		try {
-			receiveMessage();
+			if (!readMessage()) {
+				return;
+			}
 		} catch (PrivacyViolationException e) {
 			logger.severe(Utils.getStackTrace(e));
 			return;
 		}
-    }
+		if (messageReceived.isDummyMessage()) {
+			messageReceived.setTimeSlot(timeSlot);
+		} else if (messageReceived.isFinalResultMessage() && messageReceived.getTimeSlot() != timeSlot) {
+			// never take the results of another time slot; count it like a missing result
+			logger.log(Level.SEVERE, "Final result from " + otherPeerID + " belongs to time slot "
+					+ messageReceived.getTimeSlot() + " instead of " + timeSlot + "; ignoring it");
+			messageReceived.setResults(null);
+			messageReceived.setTimeSlot(timeSlot);
+		}
+		notify(messageReceived);
+	}
+
+
+	/**
+	 * @return the ID of the privacy peer
+	 */
+	public String getPrivacyPeerID() {
+		return otherPeerID;
+	}
 
 
 	/**
 	 * Create the first messages with which the initial shares are sent to the
 	 * other peers.
+	 *
+	 * @param chunk				index of the chunk of initial shares to send
+	 * @param numberOfChunks	number of chunks of initial shares
 	 */
-	private synchronized void createInitialSharesMessage() {
-		logger.log(Level.INFO, "Creating message for first round (send initial shares)...");
-		inputPeer.generateInitialShares();
+	private void createInitialSharesMessage(int chunk, int numberOfChunks) {
+		BftsuLog.fine(logger, "Creating message for first round (send initial shares), chunk ", chunk+1, "/", numberOfChunks);
 		messageToSend = new BftsuMessage(inputPeer.getMyPeerID(), myPeerIndex);
 		messageToSend.setSenderIndex(myPeerIndex);
 		messageToSend.setTimeSlotCount(timeSlotCount);
+		messageToSend.setTimeSlot(timeSlot);
 		messageToSend.setMetricCount(metricCount);
 		messageToSend.setIsInitialSharesMessage(true);
-		messageToSend.setShares(inputPeer.getInitialSharesForPrivacyPeer(privacyPeerIndex));
+		messageToSend.setFilterConfig(inputPeer.getFilterConfig());
+		messageToSend.setShares(inputPeer.getInitialSharesForPrivacyPeer(privacyPeerIndex),
+				inputPeer.getSharesChunkStart(chunk), inputPeer.getSharesChunkEnd(chunk));
+		messageToSend.setSharesOffset(inputPeer.getSharesChunkStart(chunk));
+		messageToSend.setIsLastSharesChunk(chunk == numberOfChunks - 1);
 	}
 }
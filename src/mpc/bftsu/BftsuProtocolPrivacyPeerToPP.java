@@ -17,8 +17,8 @@ package mpc.bftsu;
 
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
-import java.util.logging.Level;
 
+import mpc.bftsu.BftsuMetrics.Stage;
 import mpc.protocolPrimitives.PrimitivesException;
 import services.Stopper;
 import services.Utils;
@@ -56,33 +56,48 @@ public class BftsuProtocolPrivacyPeerToPP extends BftsuProtocol {
 
 	/**
 	 * Run the MPC bftsu protocol for the privacy peer
+	 * (not synchronized: holding a monitor while blocking in the barriers
+	 * would pin the carrier thread of a virtual thread)
 	 */
-	public synchronized void run() {
+	public void run() {
 		initialize(privacyPeer.getTimeSlotCount(), privacyPeer.getNumberOfItems(), privacyPeer.getNumberOfInputPeers());
 
 		// wait for all shares
-		logger.log(Level.INFO, "thread " + Thread.currentThread().getId() + " waits for all shares to arrive...");
+		BftsuLog.fine(logger, "Thread waits for all shares to arrive: ", Thread.currentThread().getId());
 		privacyPeer.waitForNextPPProtocolStep();
-		if(wasIStopped()) {
+		if(wasIStopped() || privacyPeer.isRoundFailed()) {
 			return;
 		}
 
 		CyclicBarrier ppThreadsBarrier = privacyPeer.getBarrierPP2PPProtocolThreads();
 		try {
+			if (privacyPeer.hasQuorumDeadline()) {
+				// agree on the input peers the round is computed on
+				exchangeParticipants();
+			}
+
 			/*
 			 * One thread always prepares the data for the next step and then all threads
 			 * enter doOperations() and process the operations in parallel.
 			 */
 			if (ppThreadsBarrier.await()==0) {
 				// compute bftsu
+				long start = BftsuMetrics.start();
 				privacyPeer.startBftsu();
+				metrics.record(Stage.START_BFTSU, start);
 			}
 			
 			ppThreadsBarrier.await();
+			if (privacyPeer.isComputationSkipped()) {
+				// too few input peers; the input peers get no results for the round
+				return;
+			}
+			long start = BftsuMetrics.start();
 			if(!doOperations()) {
 				logger.severe("Computing bftsu failed; returning...");
 				return;
 			}
+			metrics.record(Stage.OPERATIONS, start);
 			
 			if (ppThreadsBarrier.await()==0) {
 				// reconstruct
@@ -90,14 +105,11 @@ public class BftsuProtocolPrivacyPeerToPP extends BftsuProtocol {
 			}
 			
 			ppThreadsBarrier.await();
-			if(!doOperations()) {
-				logger.severe("Final result reconstruction failed; returning...");
-				return;
-			}
+			exchangeResultShares();
 			
 			if (ppThreadsBarrier.await()==0) {
 				privacyPeer.setFinalResult();
-				logger.log(Level.INFO, "Bftsu protocol round completed");
+				BftsuLog.fine(logger, "Bftsu protocol round completed");
 			}
 		} catch (PrimitivesException e) {
 			logger.severe(Utils.getStackTrace(e));
@@ -109,4 +121,95 @@ public class BftsuProtocolPrivacyPeerToPP extends BftsuProtocol {
 			logger.severe(Utils.getStackTrace(e));
 		}
 	}
+
+
+	/**
+	 * Exchanges the IDs of the input peers whose shares were accepted with the
+	 * other privacy peer. The privacy peer with the lower index sends first.
+	 *
+	 * @throws PrivacyViolationException
+	 */
+	protected void exchangeParticipants() throws PrivacyViolationException {
+		messageToSend = new BftsuMessage(myPeerID, myPeerIndex);
+		messageToSend.setIsParticipantsMessage(true);
+		messageToSend.setTimeSlot(privacyPeer.getCurrentTimeSlot());
+		messageToSend.setParticipants(privacyPeer.getParticipants());
+		if (myPeerIndex < otherPeerIndex) {
+			sendMessage();
+			receiveParticipants();
+		} else {
+			receiveParticipants();
+			sendMessage();
+		}
+	}
+
+
+	/**
+	 * Receives the participants of the other privacy peer and hands them to
+	 * the privacy peer (none if the peer disconnected).
+	 *
+	 * @throws PrivacyViolationException
+	 */
+	private void receiveParticipants() throws PrivacyViolationException {
+		String[] participants = null;
+		if (readMessage()) {
+			if (messageReceived.isDummyMessage()) {
+				logger.warning("No participants from " + otherPeerID + "; agreeing without them...");
+			} else if (messageReceived.getTimeSlot() != privacyPeer.getCurrentTimeSlot()) {
+				logger.severe("Participants from " + otherPeerID + " belong to time slot " + messageReceived.getTimeSlot()
+						+ " instead of " + privacyPeer.getCurrentTimeSlot() + "; agreeing without them...");
+			} else if (messageReceived.isParticipantsMessage()) {
+				participants = messageReceived.getParticipants();
+			} else {
+				logger.severe("Expected participants from " + otherPeerID + "; agreeing without them...");
+			}
+		}
+		privacyPeer.setParticipantsOfPP(otherPeerIndex, participants);
+	}
+
+
+	/**
+	 * Exchanges the shares of the whole result vector with the other privacy
+	 * peer in a single message. The privacy peer with the lower index sends
+	 * first, so the two peers never both wait on a full connection.
+	 *
+	 * @throws PrivacyViolationException
+	 */
+	protected void exchangeResultShares() throws PrivacyViolationException {
+		messageToSend = new BftsuMessage(myPeerID, myPeerIndex);
+		messageToSend.setIsResultSharesMessage(true);
+		messageToSend.setTimeSlot(privacyPeer.getCurrentTimeSlot());
+		messageToSend.setShares(privacyPeer.getResultShares());
+		if (myPeerIndex < otherPeerIndex) {
+			sendMessage();
+			receiveResultShares();
+		} else {
+			receiveResultShares();
+			sendMessage();
+		}
+	}
+
+
+	/**
+	 * Receives the shares of the result vector of the other privacy peer and
+	 * hands them to the privacy peer (no shares if the peer disconnected).
+	 *
+	 * @throws PrivacyViolationException
+	 */
+	private void receiveResultShares() throws PrivacyViolationException {
+		long[] shares = null;
+		if (readMessage()) {
+			if (messageReceived.isDummyMessage()) {
+				logger.warning("No result shares from " + otherPeerID + "; reconstructing without them...");
+			} else if (messageReceived.getTimeSlot() != privacyPeer.getCurrentTimeSlot()) {
+				logger.severe("Result shares from " + otherPeerID + " belong to time slot " + messageReceived.getTimeSlot()
+						+ " instead of " + privacyPeer.getCurrentTimeSlot() + "; reconstructing without them...");
+			} else if (messageReceived.isResultSharesMessage()) {
+				shares = messageReceived.getInitialShares();
+			} else {
+				logger.severe("Expected result shares from " + otherPeerID + "; reconstructing without them...");
+			}
+		}
+		privacyPeer.setResultShares(otherPeerIndex, shares);
+	}
 }
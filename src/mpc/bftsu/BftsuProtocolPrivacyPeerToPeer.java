@@ -15,8 +15,6 @@
 
 package mpc.bftsu;
 
-import java.util.logging.Level;
-
 import services.Stopper;
 import services.Utils;
 import connections.PrivacyViolationException;
@@ -31,6 +29,16 @@ public class BftsuProtocolPrivacyPeerToPeer extends BftsuProtocol {
 
 	/** reference to bftsu privacy peer object that started this protocol instance */
 	protected BftsuPrivacyPeer privacyPeer;
+	/** true until the last shares of the round are read (guarded by this) */
+	private boolean reading = true;
+	/** true if the round was started without the shares of the input peer (guarded by this) */
+	private boolean released = false;
+	/** the instance of the next round, started once this one stops reading (guarded by this) */
+	private BftsuProtocolPrivacyPeerToPeer successor = null;
+	/** the first time slot of the round of this instance */
+	private final int timeSlot;
+	/** the messages read ahead of the round, handled once it is started (null if not reading ahead) */
+	private final BftsuReadAhead messagesReadAhead;
 
 
 	/**
@@ -46,8 +54,28 @@ public class BftsuProtocolPrivacyPeerToPeer extends BftsuProtocol {
 	 * @throws Exception
 	 */
 	public BftsuProtocolPrivacyPeerToPeer(int threadNumber, BftsuPrivacyPeer privacyPeer, String inputPeerId, int inputPeerIndex, Stopper stopper)  {
+		this(threadNumber, privacyPeer, inputPeerId, inputPeerIndex, privacyPeer.getCurrentTimeSlot(), false, stopper);
+	}
+
+
+	/**
+	 * Creates a new instance of a protocol between a privacy peer and a peer,
+	 * possibly one that reads the shares of a round before it is started.
+	 *
+	 * @param threadNumber		Protocol's thread number
+	 * @param privacyPeer		Privacy Peer who started the protocol
+	 * @param inputPeerId		the ID of the input peer
+	 * @param inputPeerIndex	the index of the input peer
+	 * @param timeSlot			the first time slot of the round
+	 * @param readAhead			true if the round is not started yet (see {@link #adopt(int)})
+	 * @param stopper			Stopper to stop protocol thread
+	 */
+	protected BftsuProtocolPrivacyPeerToPeer(int threadNumber, BftsuPrivacyPeer privacyPeer, String inputPeerId, int inputPeerIndex,
+			int timeSlot, boolean readAhead, Stopper stopper) {
 		super(threadNumber, privacyPeer, inputPeerId, inputPeerIndex, stopper);
 		this.privacyPeer = privacyPeer;
+		this.timeSlot = timeSlot;
+		messagesReadAhead = readAhead ? new BftsuReadAhead(BftsuReadAhead.MAX_SHARES) : null;
 	}
 
 
@@ -55,20 +83,36 @@ public class BftsuProtocolPrivacyPeerToPeer extends BftsuProtocol {
 	 * Run the MPC bftsu computation protocol for the peer.
 	 */
 	public void run() {
+		if (messagesReadAhead != null && !readAhead()) {
+			return;
+		}
 		initialize(privacyPeer.getTimeSlotCount(), privacyPeer.getNumberOfItems(), privacyPeer.getNumberOfInputPeers());
 		
-		// Receive shares from peers
-		logger.log(Level.INFO, "Waiting for initial shares from peers...");
+		// Receive shares from peers (possibly in several chunks)
+		BftsuLog.fine(logger, "Waiting for initial shares from peers...");
+		boolean sharesRead = false;
 		try {
-			receiveMessage();
+			do {
+				boolean read = nextMessage();
+				if (isReleased()) {
+					// the round went on without the input peer: drop the rest of its shares
+					dropMessage(read);
+				} else if (read) {
+					notify(messageReceived);
+				}
+			} while (!isLastMessage());
+			sharesRead = true;
 		} catch (PrivacyViolationException e) {
 			logger.severe(Utils.getStackTrace(e));
+		}
+		if (!stopReadingAndReadAhead(sharesRead)) {
+			// the privacy peer already sent the final result of a released input peer
 			return;
 		}
 
 		// wait for final result
 		privacyPeer.waitForNextPeerProtocolStep();
-		if(wasIStopped()) {
+		if(wasIStopped() || privacyPeer.isRoundFailed()) {
 			return;
 		}
 		
@@ -93,10 +137,227 @@ public class BftsuProtocolPrivacyPeerToPeer extends BftsuProtocol {
 		// create message
 		messageToSend = new BftsuMessage(myPeerID, myPeerIndex);
 		messageToSend.setIsFinalResultMessage(true);
-		messageToSend.setResults(privacyPeer.getFinalResult());
-		logger.log(Level.INFO, "I am about to send the final result...");
+		messageToSend.setTimeSlot(privacyPeer.getCurrentTimeSlot());
+		messageToSend.setIsExcluded(privacyPeer.isExcluded(otherPeerID));
+		byte[] encodedResult = privacyPeer.getEncodedFinalResult();
+		if (encodedResult != null) {
+			// the result is encoded only once for all input peers
+			messageToSend.setEncodedResults(encodedResult);
+		} else {
+			messageToSend.setResults(privacyPeer.getFinalResult());
+		}
+		BftsuLog.fine(logger, "I am about to send the final result...");
 		sendMessage();
 
 		privacyPeer.finalResultIsSent();
 	}
+
+
+	/**
+	 * Tells the input peer that the round of the given time slot was started
+	 * without its shares (a final result message without results). Called by
+	 * the privacy peer while this instance still reads the shares.
+	 *
+	 * @param timeSlot	the time slot of the round
+	 */
+	protected void sendExcludedResult(int timeSlot) {
+		messageToSend = new BftsuMessage(myPeerID, myPeerIndex);
+		messageToSend.setIsFinalResultMessage(true);
+		messageToSend.setTimeSlot(timeSlot);
+		messageToSend.setIsExcluded(true);
+		BftsuLog.fine(logger, "Telling the input peer that it is excluded from time slot ", timeSlot);
+		try {
+			sendMessage();
+		} catch (PrivacyViolationException e) {
+			logger.severe(Utils.getStackTrace(e));
+		}
+	}
+
+
+	/**
+	 * Releases the instance from its round if it is still reading the shares:
+	 * it drops the rest of them and then stops without sending a final result.
+	 * A parked instance reading ahead is run again for that.
+	 *
+	 * @return	true if released, false if the shares were already read
+	 */
+	protected boolean release() {
+		synchronized (this) {
+			if (!reading) {
+				return false;
+			}
+			released = true;
+		}
+		if (messagesReadAhead != null && messagesReadAhead.resume()) {
+			// it parked: drop the rest of the shares on a new task
+			privacyPeer.resumeReader(this);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Lets a released instance start the instance of the next round once it
+	 * stops reading, so only one thread reads from the connection.
+	 *
+	 * @param next	the instance of the next round
+	 * @return		true if it will be started, false if the caller has to start it
+	 */
+	protected synchronized boolean runAfterReading(BftsuProtocolPrivacyPeerToPeer next) {
+		if (!reading || !released) {
+			return false;
+		}
+		successor = next;
+		return true;
+	}
+
+
+	/**
+	 * Lets an instance reading ahead handle the shares it read (and read the
+	 * rest of them) now that its round is started.
+	 *
+	 * @param inputPeerIndex	the index of the input peer in the round
+	 */
+	protected void adopt(int inputPeerIndex) {
+		otherPeerIndex = inputPeerIndex;
+		if (messagesReadAhead.resume()) {
+			privacyPeer.resumeReader(this);
+		}
+	}
+
+
+	/**
+	 * Reads the shares of the next round while the privacy peer still computes
+	 * the current one, without handling them. Once the bound of the shares
+	 * read ahead is reached (or all are read), the instance parks and returns
+	 * its thread until the round is started; it is run again then.
+	 *
+	 * @return	false if the instance parked or was released instead
+	 */
+	private boolean readAhead() {
+		if (messageReceived == null) {
+			BftsuLog.fine(logger, "Reading the shares ahead of their round, time slot ", timeSlot);
+		}
+		try {
+			while (messagesReadAhead.mayRead() && !isLastMessage()) {
+				if (readMessage()) {
+					messagesReadAhead.add(messageReceived);
+				}
+			}
+		} catch (PrivacyViolationException e) {
+			logger.severe(Utils.getStackTrace(e));
+		}
+		if (messagesReadAhead.park()) {
+			BftsuLog.fine(logger, "Parked with ", messagesReadAhead.getShareCount(), " shares read ahead, time slot ", timeSlot);
+			return false;
+		}
+		if (!isReleased()) {
+			return true;
+		}
+		// drop the shares read ahead, and the rest of them
+		BftsuMessage message;
+		while ((message = messagesReadAhead.poll()) != null) {
+			messageReceived = message;
+			dropMessage(true);
+		}
+		boolean sharesRead = false;
+		try {
+			while (!isLastMessage() && !Thread.currentThread().isInterrupted()) {
+				dropMessage(readMessage());
+			}
+			sharesRead = isLastMessage();
+		} catch (PrivacyViolationException e) {
+			logger.severe(Utils.getStackTrace(e));
+		}
+		stopReadingAndReadAhead(sharesRead);
+		return false;
+	}
+
+
+	/**
+	 * Takes the next message read ahead, or reads it from the connection.
+	 *
+	 * @return	true if a bftsu message was received
+	 * @throws PrivacyViolationException
+	 */
+	private boolean nextMessage() throws PrivacyViolationException {
+		BftsuMessage message = (messagesReadAhead != null) ? messagesReadAhead.poll() : null;
+		if (message != null) {
+			messageReceived = message;
+			return true;
+		}
+		return readMessage();
+	}
+
+
+	/**
+	 * @return true if the received message ends the shares of the round
+	 */
+	private boolean isLastMessage() {
+		return messageReceived != null && (messageReceived.isDummyMessage() || !messageReceived.isInitialSharesMessage()
+				|| messageReceived.isLastSharesChunk());
+	}
+
+
+	private void dropMessage(boolean read) {
+		if (read && messageReceived.getShareBuffer() != null) {
+			messageReceived.getShareBuffer().release();
+		}
+	}
+
+
+	/**
+	 * Stops reading the shares of the round and hands the connection on: to
+	 * the instance of the next round if it waits for it, or else to a new
+	 * instance reading the shares of the next round ahead.
+	 *
+	 * @param sharesRead	false if reading the shares failed
+	 * @return				false if the instance stops (failed or released)
+	 */
+	private boolean stopReadingAndReadAhead(boolean sharesRead) {
+		BftsuProtocolPrivacyPeerToPeer next = stopReading();
+		if (next != null) {
+			// the next round waited for the connection; if no thread is left for
+			// it, its round fails and the threads waiting in it return
+			privacyPeer.runProtocolTask(next);
+		} else if (sharesRead && !messageReceived.isDummyMessage() && messageReceived.isInitialSharesMessage()) {
+			privacyPeer.readAhead(this);
+		}
+		return sharesRead && !isReleased();
+	}
+
+
+	private synchronized boolean isReleased() {
+		return released;
+	}
+
+
+	private synchronized BftsuProtocolPrivacyPeerToPeer stopReading() {
+		reading = false;
+		return successor;
+	}
+
+
+	/**
+	 * @return the first time slot of the round of this instance
+	 */
+	public int getTimeSlot() {
+		return timeSlot;
+	}
+
+
+	/**
+	 * @return the index of the input peer
+	 */
+	public int getInputPeerIndex() {
+		return otherPeerIndex;
+	}
+
+
+	/**
+	 * @return the ID of the input peer
+	 */
+	public String getInputPeerID() {
+		return otherPeerID;
+	}
 }
@@ -0,0 +1,131 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The messages a privacy peer reads from an input peer ahead of their round,
+ * while it still computes the current one. At most {@link #MAX_SHARES} shares
+ * (but at least one message) are buffered; then the reader parks: it stops
+ * reading, so the connection throttles the input peer, and returns its
+ * thread. Once the round is started (or the reader released), the reader
+ * either goes on by itself or, if it parked, has to be run again.
+ */
+public class BftsuReadAhead {
+
+	/** the shares read ahead per input peer before the reader parks (8 MB on the heap) */
+	public static final int MAX_SHARES = 1 << 20;
+
+	/** the number of shares read ahead before the reader parks */
+	private final int maxShares;
+	/** the messages read ahead, in the order they were read (guarded by this) */
+	private final Queue<BftsuMessage> messages = new ArrayDeque<BftsuMessage>();
+	/** the number of shares in messages (guarded by this) */
+	private int shares = 0;
+	/** true once the round is started or the reader released (guarded by this) */
+	private boolean resumed = false;
+	/** true while the reader is parked and has to be run again (guarded by this) */
+	private boolean parked = false;
+
+
+	/**
+	 * Creates a buffer for the messages read ahead.
+	 *
+	 * @param maxShares	the number of shares read ahead before the reader parks
+	 */
+	public BftsuReadAhead(int maxShares) {
+		this.maxShares = maxShares;
+	}
+
+
+	/**
+	 * Adds a message read ahead.
+	 *
+	 * @param message	the message
+	 */
+	public synchronized void add(BftsuMessage message) {
+		messages.add(message);
+		shares += getShareCount(message);
+	}
+
+
+	/**
+	 * @return the next message read ahead (null if none is left)
+	 */
+	public synchronized BftsuMessage poll() {
+		BftsuMessage message = messages.poll();
+		if (message != null) {
+			shares -= getShareCount(message);
+		}
+		return message;
+	}
+
+
+	/**
+	 * @return true if the reader may read another message ahead: the round is
+	 * not resumed yet and the buffered shares are below the bound
+	 */
+	public synchronized boolean mayRead() {
+		return !resumed && shares < maxShares;
+	}
+
+
+	/**
+	 * Parks the reader unless the round was resumed in the meantime. A parked
+	 * reader returns its thread; {@link #resume()} tells who runs it again.
+	 *
+	 * @return	true if parked, false if the reader has to go on
+	 */
+	public synchronized boolean park() {
+		if (resumed) {
+			return false;
+		}
+		parked = true;
+		return true;
+	}
+
+
+	/**
+	 * Resumes the reader once its round is started or it is released.
+	 *
+	 * @return	true if the reader was parked and the caller has to run it again,
+	 * 			false if it still runs and goes on by itself
+	 */
+	public synchronized boolean resume() {
+		resumed = true;
+		boolean wasParked = parked;
+		parked = false;
+		return wasParked;
+	}
+
+
+	/**
+	 * @return the number of shares read ahead and not taken yet
+	 */
+	public synchronized int getShareCount() {
+		return shares;
+	}
+
+
+	private static int getShareCount(BftsuMessage message) {
+		if (message.getInitialShares() != null) {
+			return message.getInitialShares().length;
+		}
+		return (message.getShareBuffer() != null) ? message.getShareBuffer().length() : 0;
+	}
+}
@@ -0,0 +1,93 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import mpc.protocolPrimitives.Primitives;
+
+/**
+ * The part of a privacy peer's round that only depends on the set of active
+ * peers: the privacy peer indices and the {@link Primitives} instance. It is
+ * kept from round to round as long as the same peers are active, together with
+ * the peer infos created for these peers. The protocol instances are created
+ * per round, since the instances of the last round may still be finishing.
+ */
+public class BftsuRoundState {
+
+	/** the active privacy peers (without myself), sorted */
+	private List<String> privacyPeerIDs;
+	/** the active input peers, sorted */
+	private List<String> inputPeerIDs;
+	/** maps the privacy peer IDs (including mine) to their indices */
+	private Map<String, Integer> ppIndexMap;
+	/** the primitives for the active privacy peers */
+	private Primitives primitives;
+
+
+	/**
+	 * Creates the state of a round with the given peers.
+	 *
+	 * @param privacyPeerIDs	the active privacy peers (without myself)
+	 * @param inputPeerIDs		the active input peers
+	 * @param ppIndexMap		maps the privacy peer IDs to their indices
+	 * @param primitives		the primitives for the active privacy peers
+	 */
+	public BftsuRoundState(List<String> privacyPeerIDs, List<String> inputPeerIDs, Map<String, Integer> ppIndexMap, Primitives primitives) {
+		this.privacyPeerIDs = sortedCopy(privacyPeerIDs);
+		this.inputPeerIDs = sortedCopy(inputPeerIDs);
+		this.ppIndexMap = ppIndexMap;
+		this.primitives = primitives;
+	}
+
+
+	/**
+	 * Checks whether the state was created for the given peers (in any order).
+	 *
+	 * @param privacyPeerIDs	the active privacy peers (without myself)
+	 * @param inputPeerIDs		the active input peers
+	 * @return					true if the state can be reused for these peers
+	 */
+	public boolean hasPeers(List<String> privacyPeerIDs, List<String> inputPeerIDs) {
+		return this.privacyPeerIDs.equals(sortedCopy(privacyPeerIDs)) && this.inputPeerIDs.equals(sortedCopy(inputPeerIDs));
+	}
+
+
+	/**
+	 * @return the map from privacy peer IDs to their indices
+	 */
+	public Map<String, Integer> getPPIndexMap() {
+		return ppIndexMap;
+	}
+
+
+	/**
+	 * @return the primitives for the active privacy peers
+	 */
+	public Primitives getPrimitives() {
+		return primitives;
+	}
+
+
+	private static List<String> sortedCopy(List<String> ids) {
+		List<String> copy = new ArrayList<String>(ids);
+		Collections.sort(copy);
+		return copy;
+	}
+}
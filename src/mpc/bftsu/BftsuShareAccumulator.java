@@ -0,0 +1,314 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sums up share vectors modulo the field size while they arrive.
+ * <p>
+ * Adding shares is linear, so the privacy peer can add the share vector of
+ * every input peer to a running sum as soon as it is received instead of
+ * waiting for all of them. The additions run on a worker pool; the sum is
+ * split into stripes with a lock each, so vectors of different peers are
+ * added in parallel.
+ */
+public class BftsuShareAccumulator {
+
+	/** number of positions per stripe */
+	private static final int STRIPE_LENGTH = 1 << 16;
+
+	/** the size of the field */
+	private long fieldSize;
+	/** the running sum */
+	private long[] sum = null;
+	/** one lock per stripe of the sum */
+	private Object[] stripeLocks = null;
+	/** the workers adding the vectors */
+	private ExecutorService executor;
+	/** per worker: a stripe of an off-heap vector being added */
+	private final ThreadLocal<long[]> stripeBuffer = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[STRIPE_LENGTH];
+		}
+	};
+
+	/** number of additions that are not yet finished */
+	private int pendingAdditions = 0;
+	/** the first failure of an addition */
+	private RuntimeException failure = null;
+	private final Lock lock = new ReentrantLock();
+	private final Condition additionsFinished = lock.newCondition();
+
+
+	/**
+	 * Creates a new accumulator.
+	 *
+	 * @param fieldSize		the size of the field
+	 * @param parallelism	the number of worker threads
+	 */
+	public BftsuShareAccumulator(long fieldSize, int parallelism) {
+		this.fieldSize = fieldSize;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Bftsu share accumulator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+
+	/**
+	 * Starts a new sum of the given length. Must not be called while additions
+	 * are pending.
+	 *
+	 * @param length	the length of the share vectors
+	 */
+	public void reset(int length) {
+		lock.lock();
+		try {
+			if (sum == null || sum.length != length) {
+				sum = new long[length];
+				stripeLocks = new Object[(length + STRIPE_LENGTH - 1) / STRIPE_LENGTH];
+				for (int i = 0; i < stripeLocks.length; i++) {
+					stripeLocks[i] = new Object();
+				}
+			} else {
+				Arrays.fill(sum, 0);
+			}
+			failure = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Adds (a chunk of) a share vector to the sum in the background. The
+	 * vector is not referenced anymore once the addition is finished.
+	 *
+	 * @param shares	the shares to add
+	 * @param offset	index of the first share within the whole vector
+	 */
+	public void add(final long[] shares, final int offset) {
+		final long[] target;
+		final Object[] locks;
+		lock.lock();
+		try {
+			target = sum;
+			locks = stripeLocks;
+			pendingAdditions++;
+		} finally {
+			lock.unlock();
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				RuntimeException error = null;
+				try {
+					addShares(target, locks, shares, shares.length, offset);
+				} catch (RuntimeException e) {
+					error = e;
+				}
+				additionFinished(error);
+			}
+		});
+	}
+
+
+	/**
+	 * Adds (a chunk of) a share vector stored off-heap to the sum in the
+	 * background. The vector is read in place.
+	 *
+	 * @param shares	the shares to add
+	 * @param offset	index of the first share within the whole vector
+	 * @param release	true to release the buffer once the addition is finished
+	 */
+	public void add(final BftsuShareBuffer shares, final int offset, final boolean release) {
+		final long[] target;
+		final Object[] locks;
+		lock.lock();
+		try {
+			target = sum;
+			locks = stripeLocks;
+			pendingAdditions++;
+		} finally {
+			lock.unlock();
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				RuntimeException error = null;
+				try {
+					// copy the vector stripe by stripe to the heap and add it from there
+					long[] stripeShares = stripeBuffer.get();
+					int end = offset + shares.length();
+					int position = offset;
+					while (position < end) {
+						int length = Math.min(end, (position / STRIPE_LENGTH + 1) * STRIPE_LENGTH) - position;
+						shares.get(position - offset, stripeShares, 0, length);
+						addShares(target, locks, stripeShares, length, position);
+						position += length;
+					}
+				} catch (RuntimeException e) {
+					error = e;
+				}
+				if (release) {
+					shares.release();
+				}
+				additionFinished(error);
+			}
+		});
+	}
+
+
+	/**
+	 * Waits until all additions are finished and returns the sum.
+	 *
+	 * @return	the sum of all added vectors
+	 * @throws InterruptedException
+	 */
+	public long[] getSum() throws InterruptedException {
+		lock.lock();
+		try {
+			while (pendingAdditions > 0) {
+				additionsFinished.await();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return sum;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Takes a share vector that was added before out of the sum again, e.g.,
+	 * the shares of an input peer that is excluded from the round. Waits until
+	 * all additions are finished.
+	 *
+	 * @param shares	the complete share vector to subtract
+	 * @throws InterruptedException
+	 */
+	public void subtract(BftsuShareBuffer shares) throws InterruptedException {
+		subtract(shares, 0, shares.length());
+	}
+
+
+	/**
+	 * Takes the range [from, to) of a share vector out of the sum again, e.g.,
+	 * the chunks added before an input peer's vector was rejected. Waits until
+	 * all additions are finished.
+	 *
+	 * @param shares	the share vector (indexed like the whole vector)
+	 * @param from		index of the first share to subtract
+	 * @param to		index after the last share to subtract
+	 * @throws InterruptedException
+	 */
+	public void subtract(BftsuShareBuffer shares, int from, int to) throws InterruptedException {
+		long[] target = getSum();
+		for (int i = from; i < to; i++) {
+			// both values are smaller than the field size
+			long s = target[i] - shares.get(i);
+			if (s < 0) {
+				s += fieldSize;
+			}
+			target[i] = s;
+		}
+	}
+
+
+	/**
+	 * Sums up the positions [from, to) of the given share vectors.
+	 *
+	 * @param vectors	the share vectors (on or off the heap)
+	 * @param from		index of the first position
+	 * @param to		index after the last position
+	 * @param fieldSize	the size of the field
+	 * @return			the sum; dimensions: [to - from]
+	 */
+	public static long[] sum(BftsuShareBuffer[] vectors, int from, int to, long fieldSize) {
+		long[] target = new long[to - from];
+		long[] stripeShares = new long[Math.min(STRIPE_LENGTH, to - from)];
+		for (BftsuShareBuffer vector : vectors) {
+			for (int position = from; position < to; position += stripeShares.length) {
+				int length = Math.min(stripeShares.length, to - position);
+				vector.get(position, stripeShares, 0, length);
+				for (int i = 0; i < length; i++) {
+					long s = target[position - from + i] + stripeShares[i];
+					if (s < 0 || s >= fieldSize) {
+						s -= fieldSize;
+					}
+					target[position - from + i] = s;
+				}
+			}
+		}
+		return target;
+	}
+
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+
+	private void additionFinished(RuntimeException error) {
+		lock.lock();
+		try {
+			if (error != null && failure == null) {
+				failure = error;
+			}
+			pendingAdditions--;
+			if (pendingAdditions == 0) {
+				additionsFinished.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	private void addShares(long[] target, Object[] locks, long[] shares, int length, int offset) {
+		int end = offset + length;
+		int position = offset;
+		while (position < end) {
+			int stripe = position / STRIPE_LENGTH;
+			int stripeEnd = Math.min(end, (stripe + 1) * STRIPE_LENGTH);
+			synchronized (locks[stripe]) {
+				for (int i = position; i < stripeEnd; i++) {
+					// both summands are smaller than the field size: a single
+					// subtraction reduces the sum (also if it overflowed)
+					long s = target[i] + shares[i - offset];
+					if (s < 0 || s >= fieldSize) {
+						s -= fieldSize;
+					}
+					target[i] = s;
+				}
+			}
+			position = stripeEnd;
+		}
+	}
+}
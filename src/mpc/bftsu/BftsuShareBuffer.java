@@ -0,0 +1,209 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A vector of shares that is either a <code>long[]</code> on the heap or
+ * stored off-heap in a direct buffer.
+ * <p>
+ * Off-heap vectors keep very large share vectors out of the garbage
+ * collected heap. Direct buffers are expensive to allocate and are only freed
+ * by the garbage collector, so they are taken from a pool and have to be
+ * returned with {@link #release()} once they are not used anymore. Their
+ * size is limited by <code>-XX:MaxDirectMemorySize</code> (by default the
+ * maximum heap size).
+ */
+public class BftsuShareBuffer {
+
+	/** the maximum length of an off-heap vector (its bytes are indexed by an int) */
+	public static final int MAX_DIRECT_LENGTH = Integer.MAX_VALUE / 8;
+
+	/** the released direct buffers by length */
+	private static final ConcurrentHashMap<Integer, Queue<BftsuShareBuffer>> pool =
+			new ConcurrentHashMap<Integer, Queue<BftsuShareBuffer>>();
+
+	private final LongBuffer values;
+	private final long[] array;
+
+
+	private BftsuShareBuffer(LongBuffer values, long[] array) {
+		this.values = values;
+		this.array = array;
+	}
+
+
+	/**
+	 * Wraps a vector on the heap.
+	 *
+	 * @param values	the vector
+	 * @return			the buffer (backed by the array)
+	 */
+	public static BftsuShareBuffer wrap(long[] values) {
+		return new BftsuShareBuffer(LongBuffer.wrap(values), values);
+	}
+
+
+	/**
+	 * Returns an off-heap vector of the given length, reusing a released one
+	 * if possible. The values are not initialized.
+	 *
+	 * @param length	the number of values
+	 * @return			the buffer
+	 */
+	public static BftsuShareBuffer allocateDirect(int length) {
+		Queue<BftsuShareBuffer> released = pool.get(length);
+		BftsuShareBuffer buffer = (released != null) ? released.poll() : null;
+		if (buffer != null) {
+			return buffer;
+		}
+		if (length > MAX_DIRECT_LENGTH) {
+			throw new IllegalArgumentException("Share vector too large for a direct buffer: " + length);
+		}
+		LongBuffer values = ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+		return new BftsuShareBuffer(values, null);
+	}
+
+
+	/**
+	 * Drops all released direct buffers, so their memory can be freed.
+	 */
+	public static void clearPool() {
+		pool.clear();
+	}
+
+
+	/**
+	 * Returns an off-heap vector to the pool. Nothing happens for vectors on
+	 * the heap. The buffer must not be used afterwards.
+	 */
+	public void release() {
+		if (array != null) {
+			return;
+		}
+		int length = values.capacity();
+		Queue<BftsuShareBuffer> released = pool.get(length);
+		if (released == null) {
+			pool.putIfAbsent(length, new ConcurrentLinkedQueue<BftsuShareBuffer>());
+			released = pool.get(length);
+		}
+		released.offer(this);
+	}
+
+
+	/**
+	 * @return true if the values are stored off-heap
+	 */
+	public boolean isDirect() {
+		return array == null;
+	}
+
+
+	/**
+	 * @return the number of values
+	 */
+	public int length() {
+		return values.capacity();
+	}
+
+
+	public long get(int index) {
+		return values.get(index);
+	}
+
+
+	public void set(int index, long value) {
+		values.put(index, value);
+	}
+
+
+	/**
+	 * Copies values to an array.
+	 *
+	 * @param from		index of the first value
+	 * @param target	the array to copy to
+	 * @param offset	the index in the array of the first value
+	 * @param length	the number of values
+	 */
+	public void get(int from, long[] target, int offset, int length) {
+		if (array != null) {
+			System.arraycopy(array, from, target, offset, length);
+		} else {
+			LongBuffer source = values.duplicate();
+			source.position(from);
+			source.get(target, offset, length);
+		}
+	}
+
+
+	/**
+	 * Copies values from an array.
+	 *
+	 * @param from		index of the first value to set
+	 * @param source	the array to copy from
+	 * @param offset	the index in the array of the first value
+	 * @param length	the number of values
+	 */
+	public void set(int from, long[] source, int offset, int length) {
+		if (array != null) {
+			System.arraycopy(source, offset, array, from, length);
+		} else {
+			LongBuffer target = values.duplicate();
+			target.position(from);
+			target.put(source, offset, length);
+		}
+	}
+
+
+	/**
+	 * Copies a whole vector into this one.
+	 *
+	 * @param from		index of the first value to set
+	 * @param source	the vector to copy
+	 */
+	public void set(int from, BftsuShareBuffer source) {
+		LongBuffer target = values.duplicate();
+		target.position(from);
+		LongBuffer copy = source.values.duplicate();
+		copy.clear();
+		target.put(copy);
+	}
+
+
+	/**
+	 * Returns the values in the range [from, to) as an array on the heap. For
+	 * the whole range of a vector on the heap, the array itself is returned.
+	 *
+	 * @param from	index of the first value
+	 * @param to	index after the last value
+	 * @return		the values
+	 */
+	public long[] toArray(int from, int to) {
+		if (array != null && from == 0 && to == array.length) {
+			return array;
+		}
+		long[] copy = new long[to - from];
+		get(from, copy, 0, copy.length);
+		return copy;
+	}
+}
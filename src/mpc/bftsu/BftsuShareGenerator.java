@@ -0,0 +1,260 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+package mpc.bftsu;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Generates the Shamir shares of a (large) vector of secrets in parallel.
+ * <p>
+ * The vector is split into ranges which are shared on a fork-join pool. Every
+ * worker thread uses its own PRG and coefficient buffer, so no state is
+ * shared between the workers. The workers evaluate the sharing polynomials
+ * at the points of {@link mpc.ShamirSharing} (privacy peer <code>i</code>
+ * gets the value at <code>x = i+1</code>) and write the shares straight into
+ * per-privacy-peer buffers, which are reused as long as the number of privacy
+ * peers and the vector length stay the same. Nothing is allocated per range.
+ * <p>
+ * Note that the PRGs are deliberately not seeded deterministically: the
+ * polynomial coefficients have to be unpredictable, otherwise the shares would
+ * reveal the secrets.
+ */
+public class BftsuShareGenerator {
+
+	/** ranges shorter than this are not split any further */
+	private static final int MIN_RANGE_LENGTH = 1 << 14;
+
+	/** the pool generating the shares */
+	private ForkJoinPool pool;
+	/** the PRG algorithm used by the sharing instances */
+	private String randomAlgorithm;
+	/** the size of the field */
+	private long fieldSize;
+	/** the degree of the polynomials (-1 for the default) */
+	private int degreeT;
+	/** the number of privacy peers */
+	private int numberOfPrivacyPeers = 0;
+	/** the degree of the polynomials of the current number of privacy peers */
+	private int degree = 0;
+	/** one PRG and coefficient buffer per worker thread */
+	private ThreadLocal<Worker> workers = null;
+	/** multiplies field elements */
+	private BftsuInterpolation field;
+	/** true if a field element times a privacy peer's x does not overflow */
+	private boolean smallProducts = false;
+	/** the share buffers; dimensions: [numberOfPrivacyPeers][numberOfItems] */
+	private long[][] shares = null;
+
+
+	/**
+	 * Creates a new share generator.
+	 *
+	 * @param randomAlgorithm	the PRG algorithm
+	 * @param fieldSize			the size of the field
+	 * @param degreeT			the degree of the polynomials (-1 for the default)
+	 * @param parallelism		the number of worker threads
+	 */
+	public BftsuShareGenerator(String randomAlgorithm, long fieldSize, int degreeT, int parallelism) {
+		this.randomAlgorithm = randomAlgorithm;
+		this.fieldSize = fieldSize;
+		this.degreeT = degreeT;
+		this.field = new BftsuInterpolation(fieldSize);
+		this.pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+
+	/**
+	 * Sets the number of privacy peers. The state of the workers is re-created
+	 * if the number changed.
+	 *
+	 * @param numberOfPrivacyPeers	the number of privacy peers
+	 */
+	public synchronized void setNumberOfPrivacyPeers(int numberOfPrivacyPeers) {
+		if (this.numberOfPrivacyPeers == numberOfPrivacyPeers && workers != null) {
+			return;
+		}
+		this.numberOfPrivacyPeers = numberOfPrivacyPeers;
+		this.shares = null;
+		// the default degree of ShamirSharing
+		this.degree = (degreeT > 0) ? degreeT : (numberOfPrivacyPeers - 1) / 2;
+		this.smallProducts = fieldSize <= Long.MAX_VALUE / Math.max(1, numberOfPrivacyPeers);
+		final int coefficients = degree;
+		this.workers = new ThreadLocal<Worker>() {
+			protected Worker initialValue() {
+				return new Worker(randomAlgorithm, coefficients);
+			}
+		};
+	}
+
+
+	/**
+	 * Generates the shares of all secrets. The returned buffers are owned by
+	 * the generator and are overwritten by the next call.
+	 *
+	 * @param secrets	the secrets
+	 * @return			the shares; dimensions: [numberOfPrivacyPeers][secrets.length]
+	 */
+	public synchronized long[][] generateShares(long[] secrets) {
+		prepareShares(secrets.length);
+		pool.invoke(new ShareTask(secrets, 0, secrets.length));
+		return shares;
+	}
+
+
+	/**
+	 * Makes sure the share buffers have the given length. The buffers can then
+	 * be filled range by range using {@link #generateShares(long[], int, int)}.
+	 *
+	 * @param length	the number of secrets
+	 * @return			the share buffers; dimensions: [numberOfPrivacyPeers][length]
+	 */
+	public synchronized long[][] prepareShares(int length) {
+		if (shares == null || shares[0].length != length) {
+			shares = new long[numberOfPrivacyPeers][length];
+		}
+		return shares;
+	}
+
+
+	/**
+	 * Generates the shares of the secrets in the range [from, to) and writes
+	 * them to the same range of the share buffers.
+	 *
+	 * @param secrets	the secrets
+	 * @param from		index of the first secret to share
+	 * @param to		index after the last secret to share
+	 */
+	public void generateShares(long[] secrets, int from, int to) {
+		pool.invoke(new ShareTask(secrets, from, to));
+	}
+
+
+	/**
+	 * @return the share buffers of the last call to {@link #generateShares(long[])}
+	 */
+	public synchronized long[][] getShares() {
+		return shares;
+	}
+
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+
+	/**
+	 * Shares the range [from, to) of the secrets, splitting it up if it is large.
+	 */
+	private class ShareTask extends RecursiveAction {
+		private static final long serialVersionUID = 4216359023417651201L;
+
+		private long[] secrets;
+		private int from;
+		private int to;
+
+		ShareTask(long[] secrets, int from, int to) {
+			this.secrets = secrets;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= MIN_RANGE_LENGTH) {
+				shareRange(secrets, from, to);
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ShareTask(secrets, from, middle), new ShareTask(secrets, middle, to));
+			}
+		}
+	}
+
+
+	/**
+	 * Shares the range [from, to) of the secrets into the share buffers.
+	 */
+	private void shareRange(long[] secrets, int from, int to) {
+		Worker worker = workers.get();
+		long[] coefficients = worker.coefficients;
+		long[][] shares = this.shares;
+		for (int j = from; j < to; j++) {
+			// the coefficients of x^1 .. x^degree
+			for (int k = 0; k < coefficients.length; k++) {
+				coefficients[k] = worker.nextElement(fieldSize);
+			}
+			long secret = secrets[j] % fieldSize;
+			for (int i = 0; i < numberOfPrivacyPeers; i++) {
+				long x = i + 1;
+				// Horner's method
+				long y = 0;
+				for (int k = coefficients.length - 1; k >= 0; k--) {
+					y = addMod(mulMod(y, x), coefficients[k]);
+				}
+				shares[i][j] = addMod(mulMod(y, x), secret);
+			}
+		}
+	}
+
+
+	private long mulMod(long a, long x) {
+		return smallProducts ? (a * x) % fieldSize : field.mulMod(a, x);
+	}
+
+
+	private long addMod(long a, long b) {
+		// both summands are smaller than the field size
+		long s = a + b;
+		return (s < 0 || s >= fieldSize) ? s - fieldSize : s;
+	}
+
+
+	/**
+	 * The state of a worker thread.
+	 */
+	private static class Worker {
+		/** the PRG of the coefficients */
+		final SecureRandom random;
+		/** the coefficients of the polynomial of the current secret */
+		final long[] coefficients;
+
+		Worker(String randomAlgorithm, int degree) {
+			try {
+				random = SecureRandom.getInstance(randomAlgorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unknown random algorithm: " + randomAlgorithm, e);
+			}
+			coefficients = new long[degree];
+		}
+
+		/**
+		 * @return a uniformly distributed element of the field
+		 */
+		long nextElement(long fieldSize) {
+			long bits;
+			long value;
+			do {
+				bits = random.nextLong() >>> 1;
+				value = bits % fieldSize;
+			} while (bits - value + (fieldSize - 1) < 0);
+			return value;
+		}
+	}
+}
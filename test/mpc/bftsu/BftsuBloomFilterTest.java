@@ -0,0 +1,118 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import services.BloomFilter;
+
+/**
+ * Checks that {@link BftsuBloomFilter} with the default strategy sets and
+ * checks the same cells as {@link BloomFilter}, the filter of the original
+ * input and output paths, so upgraded and not upgraded peers compute the
+ * same union.
+ */
+public class BftsuBloomFilterTest {
+
+	private static final int HASH_FUNCTIONS = 7;
+	/** not a power of two: both filters round it up */
+	private static final int SIZE = 3000;
+
+	@Test
+	public void testCountersMatchBloomFilter() {
+		BloomFilter expected = new BloomFilter(HASH_FUNCTIONS, SIZE, true);
+		BftsuBloomFilter asString = new BftsuBloomFilter(HASH_FUNCTIONS, SIZE);
+		BftsuBloomFilter asBytes = new BftsuBloomFilter(HASH_FUNCTIONS, SIZE);
+		for (int i = 0; i < 1000; i++) {
+			expected.insert(element(i));
+			asString.insert(element(i));
+			// an element within a larger buffer, like a line of a mapped chunk
+			byte[] bytes = ("#" + element(i) + "#").getBytes(BftsuBloomFilter.ELEMENT_CHARSET);
+			asBytes.insert(ByteBuffer.wrap(bytes), 1, bytes.length - 1);
+		}
+		long[] counters = widen(expected.getArray());
+		assertArrayEquals(counters, asString.getArray());
+		assertArrayEquals(counters, asBytes.getArray());
+		assertEquals(counters.length, asString.getLength());
+	}
+
+	@Test
+	public void testSummedChunksMatchBloomFilter() {
+		BloomFilter expected = new BloomFilter(HASH_FUNCTIONS, SIZE, true);
+		BftsuBloomFilter[] chunks = new BftsuBloomFilter[3];
+		for (int c = 0; c < chunks.length; c++) {
+			chunks[c] = new BftsuBloomFilter(HASH_FUNCTIONS, SIZE);
+		}
+		for (int i = 0; i < 1000; i++) {
+			expected.insert(element(i));
+			chunks[i % chunks.length].insert(element(i));
+		}
+		for (int c = 1; c < chunks.length; c++) {
+			chunks[0].add(chunks[c]);
+		}
+		assertArrayEquals(widen(expected.getArray()), chunks[0].getArray());
+	}
+
+	@Test
+	public void testCheckMatchesBloomFilter() {
+		BloomFilter input = new BloomFilter(HASH_FUNCTIONS, SIZE, true);
+		for (int i = 0; i < 1000; i += 3) {
+			input.insert(element(i));
+		}
+		// a reconstructed result: 1 where the count reaches the threshold
+		long[] result = widen(input.getArray());
+		BitSet bits = new BitSet(result.length);
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (result[i] > 0) ? 1 : 0;
+			if (result[i] != 0) {
+				bits.set(i);
+			}
+		}
+		BloomFilter expected = new BloomFilter(HASH_FUNCTIONS, result, false);
+		BftsuBloomFilter dense = new BftsuBloomFilter(HASH_FUNCTIONS, result);
+		BftsuBloomFilter sparse = new BftsuBloomFilter(HASH_FUNCTIONS, bits, result.length);
+		int contained = 0;
+		for (int i = 0; i < 2000; i++) {
+			boolean check = expected.check(element(i));
+			assertEquals(element(i), check, dense.check(element(i)));
+			assertEquals(element(i), check, sparse.check(element(i).getBytes(BftsuBloomFilter.ELEMENT_CHARSET)));
+			contained += check ? 1 : 0;
+		}
+		assertTrue(contained >= 334);
+	}
+
+
+	private static String element(int i) {
+		return "10.0." + (i % 256) + "." + (i / 256) + ":" + (1024 + i * 7);
+	}
+
+
+	private static long[] widen(int[] counters) {
+		long[] widened = new long[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			widened[i] = counters[i];
+		}
+		return widened;
+	}
+}
@@ -0,0 +1,251 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Round trips and sizes of the vector encodings of {@link BftsuCodec}, and the
+ * overhead of the serialized {@link BftsuMessage} around them.
+ */
+public class BftsuCodecTest {
+
+	private static final int[] BITS = { 1, 11, 32, 63, 64 };
+	private static final int[] LENGTHS = { 0, 1, 3, 7, 9, 13, 1001, 20001 };
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void testPackUnpack() {
+		for (int bits : BITS) {
+			for (int length : LENGTHS) {
+				long[] values = randomValues(length, bits);
+				for (boolean direct : new boolean[] { false, true }) {
+					int packedLength = BftsuCodec.getPackedLength(length, bits);
+					ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(packedLength) : ByteBuffer.allocate(packedLength);
+					BftsuCodec.pack(values, 0, length, bits, buffer);
+					assertEquals(bits + " bits, " + length + " values", packedLength, buffer.position());
+					buffer.flip();
+					long[] unpacked = new long[length];
+					BftsuCodec.unpack(buffer, unpacked, 0, length, bits);
+					assertArrayEquals(bits + " bits, " + length + " values", values, unpacked);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPackRange() {
+		long[] values = randomValues(101, 11);
+		ByteBuffer buffer = ByteBuffer.allocate(BftsuCodec.getPackedLength(51, 11));
+		BftsuCodec.pack(values, 17, 68, 11, buffer);
+		buffer.flip();
+		long[] unpacked = new long[101];
+		BftsuCodec.unpack(buffer, unpacked, 17, 68, 11);
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(i >= 17 && i < 68 ? values[i] : 0, unpacked[i]);
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws IOException {
+		for (int bits : BITS) {
+			for (int length : LENGTHS) {
+				long[] values = randomValues(length, bits);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				int written = BftsuCodec.write(new DataOutputStream(bytes), values);
+				String message = bits + " bits, " + length + " values";
+				assertEquals(message, bytes.size(), written);
+				if (length > 0) {
+					assertEquals(message, bits, BftsuCodec.getBitsPerValue(values));
+					assertEquals(message, 5 + BftsuCodec.getPackedLength(length, bits), written);
+				}
+				assertArrayEquals(message, values, BftsuCodec.read(input(bytes)));
+
+				BftsuShareBuffer direct = BftsuCodec.readDirect(input(bytes));
+				try {
+					assertEquals(message, length, direct.length());
+					assertArrayEquals(message, values, direct.toArray(0, length));
+				} finally {
+					direct.release();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWriteRange() throws IOException {
+		for (int bits : BITS) {
+			long[] values = randomValues(1000, bits);
+			// a range of small values of a vector with large ones
+			values[0] = -1L >>> (64 - bits);
+			for (int[] range : new int[][] { { 0, 1000 }, { 1, 1000 }, { 300, 301 }, { 250, 750 }, { 500, 500 } }) {
+				long[] copy = Arrays.copyOfRange(values, range[0], range[1]);
+				ByteArrayOutputStream copied = new ByteArrayOutputStream();
+				BftsuCodec.write(new DataOutputStream(copied), copy);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				int written = BftsuCodec.write(new DataOutputStream(bytes), values, range[0], range[1]);
+				String message = bits + " bits, [" + range[0] + ", " + range[1] + ")";
+				assertEquals(message, bytes.size(), written);
+				assertArrayEquals(message, copied.toByteArray(), bytes.toByteArray());
+				assertArrayEquals(message, copy, BftsuCodec.read(input(bytes)));
+			}
+		}
+	}
+
+	@Test
+	public void testAdaptiveEncodings() throws IOException {
+		int n = 100003;
+		long[] zeros = new long[n];
+		assertAdaptive(BftsuCodec.ENCODING_INDICES, zeros);
+
+		long[] sparse = new long[n];
+		for (int i = 5; i < n; i += 9973) {
+			sparse[i] = 1;
+		}
+		assertAdaptive(BftsuCodec.ENCODING_INDICES, sparse);
+
+		long[] runs = new long[n];
+		for (int i = n / 3; i < 2 * n / 3; i++) {
+			runs[i] = 1;
+		}
+		runs[n - 1] = 1;
+		assertAdaptive(BftsuCodec.ENCODING_RUNS, runs);
+
+		long[] dense = new long[n];
+		for (int i = 0; i < n; i++) {
+			dense[i] = random.nextInt(2);
+		}
+		assertAdaptive(BftsuCodec.ENCODING_BITSET, dense);
+
+		long[] counts = randomValues(n, 3);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int written = BftsuCodec.writeAdaptive(new DataOutputStream(bytes), counts);
+		assertEquals(bytes.size(), written);
+		DataInputStream in = input(bytes);
+		assertEquals(BftsuCodec.ENCODING_DENSE, in.readByte());
+		assertArrayEquals(counts, BftsuCodec.read(in));
+	}
+
+	@Test
+	public void testSmallerThanSerializedArray() throws IOException {
+		// the vectors used to be sent as serialized long[]
+		int n = 1 << 16;
+		for (int bits : BITS) {
+			long[] values = randomValues(n, bits);
+			int serialized = getSerializedSize(values);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			int written = BftsuCodec.write(new DataOutputStream(bytes), values);
+			assertTrue(bits + " bits: " + written + " >= " + serialized, written < serialized);
+			assertTrue(bits + " bits: " + written, written <= 5 + (long) n * bits / 8 + 1);
+		}
+		long[] result = new long[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = random.nextInt(2);
+		}
+		assertTrue(BftsuCodec.encodeAdaptive(result).length <= 6 + n / 8);
+		assertTrue(BftsuCodec.encodeAdaptive(result).length * 60 < getSerializedSize(result));
+	}
+
+
+	@Test
+	public void testSerializationOverheadOfMessage() throws IOException {
+		// the messages still go through Java serialization: class descriptors
+		// and the fields of MessageBase once per message, and a block header of
+		// at most 5 bytes per 1024 bytes of payload
+		int fixed = getSerializedSize(createSharesMessage(new long[0])) - createSharesMessage(new long[0]).getPayloadSize();
+		assertTrue("per message: " + fixed, fixed < 1024);
+		for (int n : new int[] { 1, 1 << 10, 1 << 16, 1 << 20 }) {
+			BftsuMessage message = createSharesMessage(randomValues(n, 31));
+			int serialized = getSerializedSize(message);
+			int payload = message.getPayloadSize();
+			int blocks = (payload + 1023) / 1024;
+			assertTrue(n + " shares: " + serialized + " bytes for " + payload, serialized - payload <= fixed + 5 * blocks);
+			// about 0.5% for large vectors
+			assertTrue(n + " shares: " + serialized + " bytes for " + payload, serialized - fixed <= payload * 1.005 + 5);
+		}
+	}
+
+
+	private BftsuMessage createSharesMessage(long[] shares) {
+		BftsuMessage message = new BftsuMessage("inputpeer", 0);
+		message.setIsInitialSharesMessage(true);
+		message.setShares(shares);
+		message.setIsLastSharesChunk(true);
+		return message;
+	}
+
+
+	private void assertAdaptive(int encoding, long[] values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int written = BftsuCodec.writeAdaptive(new DataOutputStream(bytes), values);
+		assertEquals(bytes.size(), written);
+		assertArrayEquals(bytes.toByteArray(), BftsuCodec.encodeAdaptive(values));
+		DataInputStream in = input(bytes);
+		assertEquals(encoding, in.readByte());
+		int n = in.readInt();
+		assertEquals(values.length, n);
+		BitSet bits = BftsuCodec.readBits(in, encoding, n);
+		assertArrayEquals(values, BftsuCodec.toArray(bits, n));
+		assertEquals(-1, in.read());
+	}
+
+
+	/**
+	 * Random values of which at least one needs all the bits.
+	 */
+	private long[] randomValues(int length, int bits) {
+		long[] values = new long[length];
+		long mask = (bits == 64) ? -1L : (1L << bits) - 1;
+		for (int i = 0; i < length; i++) {
+			values[i] = random.nextLong() & mask;
+		}
+		if (length > 0) {
+			values[length / 2] |= 1L << (bits - 1);
+		}
+		return values;
+	}
+
+
+	private static DataInputStream input(ByteArrayOutputStream bytes) {
+		return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+
+	private static int getSerializedSize(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.size();
+	}
+}
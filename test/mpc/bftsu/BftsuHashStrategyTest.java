@@ -0,0 +1,145 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Known answers of the MurmurHash3 functions (the published test vectors of
+ * MurmurHash3_x86_32 and the values of Guava's murmur3_32 and murmur3_128)
+ * and the positions of both {@link BftsuHashStrategy strategies}.
+ */
+public class BftsuHashStrategyTest {
+
+	private static final String FOX = "The quick brown fox jumps over the lazy dog";
+
+	@Test
+	public void testMurmur3x32() throws UnsupportedEncodingException {
+		assertEquals(0, murmur3x32("", 0));
+		assertEquals(0x514e28b7, murmur3x32("", 1));
+		assertEquals(0x81f16f39, murmur3x32("", 0xffffffff));
+		assertEquals(0x248bfa47, murmur3x32("hello", 0));
+		assertEquals(0x5a97808a, murmur3x32("aaaa", 0x9747b28c));
+		assertEquals(0xc84a62dd, murmur3x32("abc", 0x9747b28c));
+		assertEquals(0x2fa826cd, murmur3x32(FOX, 0x9747b28c));
+	}
+
+	@Test
+	public void testMurmur3x128() throws UnsupportedEncodingException {
+		assertArrayEquals(new long[] { 0L, 0L }, murmur3x128(""));
+		// less than one block
+		assertArrayEquals(new long[] { 0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L }, murmur3x128("hello"));
+		// two blocks and a tail of more than 8 bytes
+		assertArrayEquals(new long[] { 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L }, murmur3x128(FOX));
+	}
+
+	@Test
+	public void testElementWithinBuffer() throws UnsupportedEncodingException {
+		byte[] element = FOX.getBytes("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate(element.length + 10);
+		buffer.position(3);
+		buffer.put(element);
+		assertEquals(0x2fa826cd, BftsuHashStrategy.murmur3x32(buffer, 3, 3 + element.length, 0x9747b28c));
+		assertArrayEquals(new long[] { 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L },
+				BftsuHashStrategy.murmur3x128(buffer, 3, 3 + element.length));
+	}
+
+	@Test
+	public void testMurmur3Positions() throws UnsupportedEncodingException {
+		int mask = (1 << 20) - 1;
+		int[] positions = getPositions(BftsuHashStrategy.MURMUR3, "hello", 3, mask);
+		// hash function i is the hash seeded with i
+		assertEquals(0x248bfa47 & mask, positions[0]);
+		for (int i = 0; i < positions.length; i++) {
+			assertEquals(murmur3x32("hello", i) & mask, positions[i]);
+		}
+	}
+
+	@Test
+	public void testDoubleHashingPositions() throws UnsupportedEncodingException {
+		int mask = (1 << 20) - 1;
+		int[] positions = getPositions(BftsuHashStrategy.MURMUR3_128_DOUBLE, FOX, 4, mask);
+		long h1 = 0xe34bbc7bbc071b6cL;
+		long step = 0x7a433ca9c49a9347L | 1;
+		for (int i = 0; i < positions.length; i++) {
+			assertEquals((int) (h1 + i * step) & mask, positions[i]);
+		}
+	}
+
+	@Test
+	public void testDoubleHashingPositionsAreDistinct() throws UnsupportedEncodingException {
+		for (int length = 1; length <= 256; length <<= 1) {
+			for (int element = 0; element < 100; element++) {
+				int[] positions = getPositions(BftsuHashStrategy.MURMUR3_128_DOUBLE, "element-" + element, length, length - 1);
+				Set<Integer> distinct = new HashSet<Integer>();
+				for (int position : positions) {
+					distinct.add(position);
+				}
+				assertEquals("filter length " + length + ", element " + element, length, distinct.size());
+			}
+		}
+	}
+
+	@Test
+	public void testGetInstance() {
+		// the positions of services.BloomFilter unless a peer opts in to MurmurHash3
+		assertEquals(BftsuHashStrategy.SEPIA, BftsuHashStrategy.getDefault().getName());
+		assertFalse(BftsuHashStrategy.getDefault().hashesBytes());
+		for (String name : new String[] { BftsuHashStrategy.MURMUR3, BftsuHashStrategy.MURMUR3_128_DOUBLE }) {
+			assertEquals(name, BftsuHashStrategy.getInstance(name).getName());
+			assertTrue(BftsuHashStrategy.getInstance(name).hashesBytes());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownStrategy() {
+		BftsuHashStrategy.getInstance("md5");
+	}
+
+
+	private static int murmur3x32(String element, int seed) throws UnsupportedEncodingException {
+		byte[] bytes = element.getBytes("UTF-8");
+		return BftsuHashStrategy.murmur3x32(ByteBuffer.wrap(bytes), 0, bytes.length, seed);
+	}
+
+
+	private static long[] murmur3x128(String element) throws UnsupportedEncodingException {
+		byte[] bytes = element.getBytes("UTF-8");
+		return BftsuHashStrategy.murmur3x128(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+
+	private static int[] getPositions(String strategy, String element, int numberOfHashFunctions, int mask) throws UnsupportedEncodingException {
+		byte[] bytes = element.getBytes("UTF-8");
+		// the positions are written at an offset
+		int[] positions = new int[numberOfHashFunctions + 1];
+		BftsuHashStrategy.getInstance(strategy).getPositions(ByteBuffer.wrap(bytes), 0, bytes.length, numberOfHashFunctions, mask, positions, 1);
+		int[] result = new int[numberOfHashFunctions];
+		System.arraycopy(positions, 1, result, 0, numberOfHashFunctions);
+		return result;
+	}
+}
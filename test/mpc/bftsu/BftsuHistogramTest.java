@@ -0,0 +1,113 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Bucket boundaries and percentiles of {@link BftsuHistogram}.
+ */
+public class BftsuHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		// exact below 16
+		for (int value = 0; value < 16; value++) {
+			assertEquals(value, BftsuHistogram.getBucket(value));
+			assertEquals(value, BftsuHistogram.getBucketEnd(value));
+		}
+		// 8 buckets per power of two, contiguous, each ending where the next one starts
+		long previousEnd = 15;
+		for (int bucket = 16; BftsuHistogram.getBucketEnd(bucket - 1) < Long.MAX_VALUE; bucket++) {
+			long end = BftsuHistogram.getBucketEnd(bucket);
+			assertEquals(bucket, BftsuHistogram.getBucket(previousEnd + 1));
+			assertEquals(bucket, BftsuHistogram.getBucket(end));
+			long width = end - previousEnd;
+			assertTrue("relative error of bucket " + bucket, width <= (previousEnd + 1) / 8 + 1);
+			previousEnd = end;
+		}
+		assertEquals(Long.MAX_VALUE, previousEnd);
+		assertEquals(16, BftsuHistogram.getBucket(16));
+		assertEquals(16, BftsuHistogram.getBucket(17));
+		assertEquals(17, BftsuHistogram.getBucket(18));
+		assertEquals(24, BftsuHistogram.getBucket(32));
+		assertEquals(35, BftsuHistogram.getBucketEnd(24));
+	}
+
+	@Test
+	public void testExactPercentiles() {
+		BftsuHistogram histogram = new BftsuHistogram();
+		for (int value = 1; value <= 10; value++) {
+			histogram.record(value);
+		}
+		assertEquals(10, histogram.getCount());
+		assertEquals(55, histogram.getSum());
+		assertEquals(5.5, histogram.getMean(), 0);
+		assertEquals(10, histogram.getMax());
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(1, histogram.getPercentile(10));
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(6, histogram.getPercentile(51));
+		assertEquals(9, histogram.getPercentile(90));
+		assertEquals(10, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testPercentilesWithinBucketError() {
+		Random random = new Random(7);
+		BftsuHistogram histogram = new BftsuHistogram();
+		long[] values = new long[10000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (long) Math.exp(random.nextDouble() * 30);
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		for (double percentile : new double[] { 1, 25, 50, 90, 99, 99.9, 100 }) {
+			long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+			long reported = histogram.getPercentile(percentile);
+			// the end of the bucket of the exact value, at most the maximum
+			assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+			assertTrue(percentile + ": " + reported + " > " + exact, reported <= exact + exact / 8 + 1);
+		}
+		assertEquals(values[values.length - 1], histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testEmptyNegativeAndDrain() {
+		BftsuHistogram histogram = new BftsuHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(0, histogram.getMean(), 0);
+		histogram.record(-5);
+		histogram.record(1000);
+		assertEquals(0, histogram.getPercentile(50));
+		assertEquals(1000, histogram.getPercentile(100));
+		BftsuHistogram drained = histogram.drain();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(2, drained.getCount());
+		assertEquals(1000, drained.getSum());
+		assertEquals(1000, drained.getMax());
+		assertEquals(1000, drained.getPercentile(99));
+	}
+}
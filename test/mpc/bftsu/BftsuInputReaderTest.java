@@ -0,0 +1,279 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import services.BloomFilter;
+
+/**
+ * Checks that the memory-mapped, chunked reads of {@link BftsuInputReader}
+ * result in the same filter as the line reader of the default input mode
+ * (the BufferedReader loop of the original input peer), for every hash
+ * strategy and every kind of line terminator, and that the default strategy
+ * results in the filter of {@link BloomFilter}. Input peers with different
+ * input modes then build the same filters.
+ */
+public class BftsuInputReaderTest {
+
+	private static final int HASH_FUNCTIONS = 5;
+	private static final int FILTER_LENGTH = 1 << 16;
+	private static final String[] STRATEGIES = { BftsuHashStrategy.SEPIA, BftsuHashStrategy.MURMUR3,
+		BftsuHashStrategy.MURMUR3_128_DOUBLE };
+	/** every line terminator of BufferedReader.readLine, and combinations of them */
+	private static final String[] MIXED_SEPARATORS = { "\n", "\r", "\r\n", "\r\r\n", "\n\r", "\n\n" };
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("bftsu-input", ".txt");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testChunkedReadIsBitIdentical() throws IOException {
+		// large enough to be split into several chunks
+		writeLines(200000, new String[] { "\n" }, true);
+		assertModesAgree(1, 2, 3, 8);
+	}
+
+	@Test
+	public void testCarriageReturnsAndLastLine() throws IOException {
+		writeLines(1000, new String[] { "\r\n" }, false);
+		assertModesAgree(4);
+	}
+
+	@Test
+	public void testLoneCarriageReturns() throws IOException {
+		// no '\n' at all: a single chunk
+		writeLines(1000, new String[] { "\r" }, true);
+		assertModesAgree(1, 4);
+		// split into chunks after the '\n's, next to lone '\r's
+		writeLines(200000, MIXED_SEPARATORS, false);
+		assertModesAgree(1, 3, 8);
+	}
+
+	@Test
+	public void testLongLinesAndEmptyLines() throws IOException {
+		// longer than the buffer of a BufferedReader
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 150000; i++) {
+			line.append((char) ('a' + i % 26));
+		}
+		write(line + "\n\n" + line.substring(1000) + "\r\n\r\nshort\r\r\nlast\r");
+		assertModesAgree(4);
+		write("\r");
+		assertModesAgree(4);
+	}
+
+	@Test
+	public void testMatchingLinesOfBothModes() throws IOException {
+		writeLines(20000, MIXED_SEPARATORS, false);
+		for (String strategy : STRATEGIES) {
+			BftsuHashStrategy hashStrategy = BftsuHashStrategy.getInstance(strategy);
+			BftsuBloomFilter input = new BftsuBloomFilter(hashStrategy, HASH_FUNCTIONS, FILTER_LENGTH);
+			for (int i = 0; i < 20000; i += 10) {
+				// as read back from the file, in case the charset cannot encode it
+				input.insert(new String(element(i).getBytes(BftsuBloomFilter.ELEMENT_CHARSET), BftsuBloomFilter.ELEMENT_CHARSET));
+			}
+			BftsuBloomFilter result = new BftsuBloomFilter(hashStrategy, HASH_FUNCTIONS, input.getArray());
+			File mapped = File.createTempFile("bftsu-output", ".csv");
+			File sequential = File.createTempFile("bftsu-output", ".csv");
+			BftsuInputReader reader = new BftsuInputReader(hashStrategy, HASH_FUNCTIONS, FILTER_LENGTH, 4);
+			try {
+				reader.writeMatchingLines(file, result, mapped);
+				reader.writeMatchingLinesSequentially(file, result, sequential);
+				List<String> lines = readAllLines(mapped);
+				assertTrue(strategy, lines.size() >= 2000);
+				assertEquals(strategy, readAllLines(sequential), lines);
+			} finally {
+				reader.shutdown();
+				mapped.delete();
+				sequential.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testMatchingLinesOfIndex() throws IOException {
+		// several chunks, CRLF and lone CR next to the chunk ends after '\n'
+		writeLines(200000, MIXED_SEPARATORS, false);
+		for (String strategy : new String[] { BftsuHashStrategy.MURMUR3, BftsuHashStrategy.MURMUR3_128_DOUBLE }) {
+			BftsuHashStrategy hashStrategy = BftsuHashStrategy.getInstance(strategy);
+			for (int threads : new int[] { 1, 3, 8 }) {
+				BftsuInputReader reader = new BftsuInputReader(hashStrategy, HASH_FUNCTIONS, FILTER_LENGTH, threads);
+				File indexed = File.createTempFile("bftsu-output", ".csv");
+				File rehashed = File.createTempFile("bftsu-output", ".csv");
+				try {
+					BftsuInputIndex index = new BftsuInputIndex(HASH_FUNCTIONS, file);
+					long[] counters = reader.read(file, index).getArray();
+					assertArrayEquals(strategy, reader.read(file).getArray(), counters);
+					assertEquals(strategy, readAllLines(file).size(), index.getNumberOfElements());
+
+					BftsuBloomFilter input = new BftsuBloomFilter(hashStrategy, HASH_FUNCTIONS, FILTER_LENGTH);
+					for (int i = 0; i < 200000; i += 10) {
+						input.insert(new String(element(i).getBytes(BftsuBloomFilter.ELEMENT_CHARSET), BftsuBloomFilter.ELEMENT_CHARSET));
+					}
+					BftsuBloomFilter result = new BftsuBloomFilter(hashStrategy, HASH_FUNCTIONS, input.getArray());
+					index.writeMatchingLines(file, result, indexed);
+					reader.writeMatchingLines(file, result, rehashed);
+					List<String> lines = readAllLines(indexed);
+					assertTrue(strategy, lines.size() >= 20000);
+					assertEquals(strategy + ", " + threads + " threads", readAllLines(rehashed), lines);
+					assertEquals(strategy, rehashed.length(), indexed.length());
+				} finally {
+					reader.shutdown();
+					indexed.delete();
+					rehashed.delete();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		for (String strategy : STRATEGIES) {
+			BftsuInputReader reader = new BftsuInputReader(BftsuHashStrategy.getInstance(strategy), HASH_FUNCTIONS, FILTER_LENGTH, 4);
+			try {
+				long[] counters = reader.read(file).getArray();
+				assertEquals(FILTER_LENGTH, counters.length);
+				assertArrayEquals(new long[FILTER_LENGTH], counters);
+				assertArrayEquals(new long[FILTER_LENGTH], reader.readSequentially(file).getArray());
+			} finally {
+				reader.shutdown();
+			}
+		}
+	}
+
+
+	/**
+	 * Reads the file with the line reader and the mapped reader with every
+	 * strategy and the given thread counts, and compares the filters; with
+	 * the default strategy also against the loop of the original input peer.
+	 */
+	private void assertModesAgree(int... threadCounts) throws IOException {
+		for (String strategy : STRATEGIES) {
+			BftsuHashStrategy hashStrategy = BftsuHashStrategy.getInstance(strategy);
+			for (int threads : threadCounts) {
+				BftsuInputReader reader = new BftsuInputReader(hashStrategy, HASH_FUNCTIONS, FILTER_LENGTH, threads);
+				try {
+					long[] expected = reader.readSequentially(file).getArray();
+					if (!hashStrategy.hashesBytes()) {
+						assertArrayEquals(strategy + ", original", readWithBloomFilter(), expected);
+					}
+					assertArrayEquals(strategy + ", " + threads + " threads", expected, reader.read(file).getArray());
+				} finally {
+					reader.shutdown();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Writes elements of varying length, some of them not ASCII, separated by
+	 * the given separators in turn.
+	 */
+	private void writeLines(int lines, String[] separators, boolean lastSeparator) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			text.append(element(i));
+			if (i < lines - 1 || lastSeparator) {
+				text.append(separators[i % separators.length]);
+			}
+		}
+		write(text.toString());
+	}
+
+
+	private void write(String text) throws IOException {
+		// in the charset of the FileReader of the line reader
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), BftsuBloomFilter.ELEMENT_CHARSET);
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+	}
+
+
+	private static String element(int i) {
+		return "element-" + i + ((i % 7 == 0) ? "-\u00e9l\u00e9ment" : "") + "-" + Integer.toHexString(i * 31);
+	}
+
+
+	private List<String> readAllLines(File output) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(output), BftsuBloomFilter.ELEMENT_CHARSET));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+
+	/**
+	 * The reference: the input loop of the original input peer, inserting the
+	 * lines read by {@link BufferedReader} into a {@link BloomFilter}.
+	 */
+	private long[] readWithBloomFilter() throws IOException {
+		BloomFilter bf = new BloomFilter(HASH_FUNCTIONS, FILTER_LENGTH, true);
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String elem = null;
+			while (null != (elem = br.readLine())) {
+				bf.insert(elem);
+			}
+		} finally {
+			br.close();
+		}
+		int[] counters = bf.getArray();
+		long[] widened = new long[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			widened[i] = counters[i];
+		}
+		return widened;
+	}
+}
@@ -0,0 +1,132 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import mpc.ShamirSharing;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link BftsuInterpolation} reconstructs the secrets shared by
+ * {@link ShamirSharing}, i.e., that both use the same evaluation points.
+ */
+public class BftsuInterpolationTest {
+
+	/** a field of every multiplication path: small, 16-bit limbs, double and add */
+	private static final long[] FIELDS = { 2147483647L, 140737488355213L, 9223372036854775783L };
+
+	private final Random random = new Random(7);
+
+	@Test
+	public void testReconstructsShamirSharing() {
+		for (long field : FIELDS) {
+			for (int privacyPeers = 3; privacyPeers <= 7; privacyPeers += 2) {
+				int degree = (privacyPeers - 1) / 2;
+				ShamirSharing sharing = new ShamirSharing();
+				sharing.setRandomAlgorithm("SHA1PRNG");
+				sharing.setFieldSize(field);
+				sharing.setDegreeT(degree);
+				sharing.setNumberOfPrivacyPeers(privacyPeers);
+				sharing.init();
+				long[] secrets = randomSecrets(field, 101);
+				assertReconstructs(field, secrets, sharing.generateShares(secrets), degree);
+			}
+		}
+	}
+
+	@Test
+	public void testReconstructsPolynomials() {
+		for (long field : FIELDS) {
+			for (int degree = 1; degree <= 3; degree++) {
+				int privacyPeers = 2 * degree + 1;
+				long[] secrets = randomSecrets(field, 57);
+				assertReconstructs(field, secrets, share(field, secrets, degree, privacyPeers), degree);
+			}
+		}
+	}
+
+
+	/**
+	 * Reconstructs the secrets from every subset of degree+1 or more privacy peers.
+	 */
+	private void assertReconstructs(long field, long[] secrets, long[][] shares, int degree) {
+		int privacyPeers = shares.length;
+		BftsuInterpolation interpolation = new BftsuInterpolation(field);
+		for (int subset = 1; subset < (1 << privacyPeers); subset++) {
+			if (Integer.bitCount(subset) <= degree) {
+				continue;
+			}
+			long[][] rows = new long[Integer.bitCount(subset)][];
+			int[] alphaIndices = new int[rows.length];
+			int row = 0;
+			for (int i = 0; i < privacyPeers; i++) {
+				if ((subset & (1 << i)) != 0) {
+					rows[row] = shares[i];
+					alphaIndices[row] = i;
+					row++;
+				}
+			}
+			assertArrayEquals("field " + field + ", privacy peers " + Integer.toBinaryString(subset),
+					secrets, interpolation.interpolate(rows, alphaIndices));
+		}
+	}
+
+
+	/**
+	 * Evaluates random polynomials with the secrets as constant terms at x = 1..privacyPeers.
+	 */
+	private long[][] share(long field, long[] secrets, int degree, int privacyPeers) {
+		BigInteger p = BigInteger.valueOf(field);
+		long[][] shares = new long[privacyPeers][secrets.length];
+		for (int j = 0; j < secrets.length; j++) {
+			BigInteger[] coefficients = new BigInteger[degree + 1];
+			coefficients[0] = BigInteger.valueOf(secrets[j]);
+			for (int k = 1; k <= degree; k++) {
+				coefficients[k] = BigInteger.valueOf(randomElement(field));
+			}
+			for (int i = 0; i < privacyPeers; i++) {
+				BigInteger x = BigInteger.valueOf(i + 1);
+				BigInteger y = BigInteger.ZERO;
+				for (int k = degree; k >= 0; k--) {
+					y = y.multiply(x).add(coefficients[k]).mod(p);
+				}
+				shares[i][j] = y.longValue();
+			}
+		}
+		return shares;
+	}
+
+
+	private long[] randomSecrets(long field, int length) {
+		long[] secrets = new long[length];
+		for (int i = 0; i < length; i++) {
+			// counters, and a few values close to the field size
+			secrets[i] = (i % 10 == 0) ? field - 1 - i : random.nextInt(100);
+		}
+		return secrets;
+	}
+
+
+	private long randomElement(long field) {
+		return (random.nextLong() & Long.MAX_VALUE) % field;
+	}
+}
@@ -0,0 +1,136 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Pushes more initial shares than fit the heap through
+ * {@link BftsuCodec#readDirect(java.io.DataInput)} and sums them up like a
+ * privacy peer with off-heap shares does. Runs in the forked test JVM with
+ * the small heap and the larger direct memory of the build.xml test target.
+ */
+public class BftsuOffHeapTest {
+
+	private static final long FIELD = 2147483647L;
+	/** 8 MB per vector */
+	private static final int LENGTH = 1 << 20;
+	/** the test needs at most this much direct memory (see build.xml) */
+	private static final long MAX_DIRECT_BYTES = 1L << 30;
+
+	private BftsuShareBuffer[] vectors = new BftsuShareBuffer[0];
+
+
+	/**
+	 * Allocates enough vectors for more share data than the heap can hold.
+	 */
+	@Before
+	public void createVectors() {
+		long heap = Runtime.getRuntime().maxMemory();
+		int count = (int) (heap / (8L * LENGTH)) + 2;
+		Assume.assumeTrue("run with the heap of the build.xml test target (-Xmx256m), not " + (heap >> 20) + " MB",
+				(long) count * 8 * LENGTH <= MAX_DIRECT_BYTES);
+		vectors = new BftsuShareBuffer[count];
+	}
+
+
+	@After
+	public void release() {
+		for (BftsuShareBuffer vector : vectors) {
+			if (vector != null) {
+				vector.release();
+			}
+		}
+		BftsuShareBuffer.clearPool();
+	}
+
+
+	@Test
+	public void testSum() throws IOException {
+		readVectors();
+		// what startThresholdUnion does without the incremental sum
+		long[] sum = BftsuShareAccumulator.sum(vectors, 0, LENGTH, FIELD);
+		assertSum(sum, 0);
+		int from = LENGTH / 3;
+		long[] range = BftsuShareAccumulator.sum(vectors, from, LENGTH, FIELD);
+		assertSum(range, from);
+	}
+
+
+	@Test
+	public void testIncrementalSum() throws Exception {
+		BftsuShareAccumulator accumulator = new BftsuShareAccumulator(FIELD, 4);
+		try {
+			accumulator.reset(LENGTH);
+			readVectors();
+			for (BftsuShareBuffer vector : vectors) {
+				accumulator.add(vector, 0, false);
+			}
+			assertSum(accumulator.getSum(), 0);
+		} finally {
+			accumulator.shutdown();
+		}
+	}
+
+
+	/**
+	 * Reads every vector from its encoding into its own off-heap buffer and
+	 * keeps them all, like the privacy peer does until the round is computed.
+	 */
+	private void readVectors() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BftsuCodec.write(new DataOutputStream(bytes), shares());
+		byte[] encoded = bytes.toByteArray();
+		for (int i = 0; i < vectors.length; i++) {
+			vectors[i] = BftsuCodec.readDirect(new DataInputStream(new ByteArrayInputStream(encoded)));
+			assertTrue(vectors[i].isDirect());
+		}
+		assertTrue("the shares do not fit the heap", (long) vectors.length * 8 * LENGTH > Runtime.getRuntime().maxMemory());
+	}
+
+
+	private void assertSum(long[] sum, int from) {
+		assertEquals(LENGTH - from, sum.length);
+		long[] shares = shares();
+		for (int i = 0; i < sum.length; i++) {
+			if (sum[i] != vectors.length * shares[from + i] % FIELD) {
+				assertEquals("position " + (from + i), vectors.length * shares[from + i] % FIELD, sum[i]);
+			}
+		}
+	}
+
+
+	private static long[] shares() {
+		long[] shares = new long[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			shares[i] = (i * 2654435761L) % FIELD;
+		}
+		return shares;
+	}
+}
@@ -0,0 +1,218 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Two overlapping rounds on one connection, as a privacy peer reads the
+ * shares of the next round ahead with a {@link BftsuReadAhead} while it still
+ * computes the current round.
+ */
+public class BftsuReadAheadTest {
+
+	private static final int CHUNK = 1000;
+	private static final int CHUNKS = 12;
+	/** three chunks, so the reader parks long before the round is read */
+	private static final int MAX_SHARES = 3 * CHUNK;
+
+	/** the connection, which holds two messages like a socket buffer */
+	private BlockingQueue<BftsuMessage> connection;
+	/** runs the protocol tasks on a single thread, so a parked reader must return it */
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		connection = new ArrayBlockingQueue<BftsuMessage>(2);
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testOverlappingRounds() throws Exception {
+		final AtomicInteger sent = new AtomicInteger();
+		Thread inputPeer = new Thread() {
+			public void run() {
+				try {
+					for (int round = 1; round <= 2; round++) {
+						for (int chunk = 0; chunk < CHUNKS; chunk++) {
+							connection.put(createChunk(round, chunk));
+							sent.incrementAndGet();
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		inputPeer.start();
+
+		final BftsuReadAhead readAhead = new BftsuReadAhead(MAX_SHARES);
+		final Reader nextRound = new Reader(2, readAhead);
+		final AtomicBoolean resumedParked = new AtomicBoolean();
+		final CountDownLatch computed = new CountDownLatch(1);
+		final List<BftsuMessage> firstRound = new ArrayList<BftsuMessage>();
+		executor.execute(new Runnable() {
+			public void run() {
+				// the first round reads its shares and hands the connection on
+				BftsuMessage message;
+				do {
+					message = take();
+					firstRound.add(message);
+				} while (!message.isLastSharesChunk());
+				executor.execute(nextRound);
+				// the first round is computed on the same thread, after the next round read ahead
+				executor.execute(new Runnable() {
+					public void run() {
+						computed.countDown();
+						resumedParked.set(readAhead.resume());
+						if (resumedParked.get()) {
+							executor.execute(nextRound);
+						}
+					}
+				});
+			}
+		});
+
+		assertTrue("the first round was not computed", computed.await(10, TimeUnit.SECONDS));
+		assertTrue("the next round was not read", nextRound.done.await(10, TimeUnit.SECONDS));
+		inputPeer.join(10000);
+		assertEquals(2 * CHUNKS, sent.get());
+		assertChunks(1, firstRound);
+		assertChunks(2, nextRound.handled);
+		assertTrue("the reader did not park", resumedParked.get());
+		assertTrue(nextRound.maxSharesReadAhead >= MAX_SHARES);
+		assertTrue(nextRound.maxSharesReadAhead < MAX_SHARES + CHUNK);
+		assertEquals(0, readAhead.getShareCount());
+	}
+
+	@Test
+	public void testResumeWhileReading() {
+		BftsuReadAhead readAhead = new BftsuReadAhead(MAX_SHARES);
+		readAhead.add(createChunk(2, 0));
+		assertTrue(readAhead.mayRead());
+		// the round is started before the reader parks: it goes on by itself
+		assertFalse(readAhead.resume());
+		assertFalse(readAhead.mayRead());
+		assertFalse(readAhead.park());
+		assertEquals(CHUNK, readAhead.getShareCount());
+		assertEquals(0, readAhead.poll().getSharesOffset());
+		assertNull(readAhead.poll());
+	}
+
+	@Test
+	public void testParkAtBound() {
+		BftsuReadAhead readAhead = new BftsuReadAhead(MAX_SHARES);
+		for (int chunk = 0; chunk < 3; chunk++) {
+			assertTrue(readAhead.mayRead());
+			readAhead.add(createChunk(2, chunk));
+		}
+		assertFalse(readAhead.mayRead());
+		assertTrue(readAhead.park());
+		// the caller runs the parked reader again
+		assertTrue(readAhead.resume());
+		assertFalse(readAhead.resume());
+	}
+
+	/**
+	 * Reads a round like an instance of the privacy peer to peer protocol: it
+	 * reads ahead until parked, and handles the shares once resumed.
+	 */
+	private class Reader implements Runnable {
+		private final int round;
+		private final BftsuReadAhead readAhead;
+		private final List<BftsuMessage> handled = new ArrayList<BftsuMessage>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private BftsuMessage messageReceived;
+		private int maxSharesReadAhead;
+
+		Reader(int round, BftsuReadAhead readAhead) {
+			this.round = round;
+			this.readAhead = readAhead;
+		}
+
+		public void run() {
+			while (readAhead.mayRead() && !isLastMessage()) {
+				messageReceived = take();
+				readAhead.add(messageReceived);
+				maxSharesReadAhead = Math.max(maxSharesReadAhead, readAhead.getShareCount());
+			}
+			if (readAhead.park()) {
+				return;
+			}
+			do {
+				BftsuMessage message = readAhead.poll();
+				messageReceived = (message != null) ? message : take();
+				assertEquals(round, messageReceived.getTimeSlot());
+				handled.add(messageReceived);
+			} while (!isLastMessage());
+			done.countDown();
+		}
+
+		private boolean isLastMessage() {
+			return messageReceived != null && messageReceived.isLastSharesChunk();
+		}
+	}
+
+	private BftsuMessage take() {
+		try {
+			return connection.take();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static BftsuMessage createChunk(int round, int chunk) {
+		BftsuMessage message = new BftsuMessage("input peer", 0);
+		message.setIsInitialSharesMessage(true);
+		message.setTimeSlot(round);
+		message.setShares(new long[CHUNK]);
+		message.setSharesOffset(chunk * CHUNK);
+		message.setIsLastSharesChunk(chunk == CHUNKS - 1);
+		return message;
+	}
+
+	private static void assertChunks(int round, List<BftsuMessage> messages) {
+		assertEquals(CHUNKS, messages.size());
+		for (int chunk = 0; chunk < CHUNKS; chunk++) {
+			assertEquals(round, messages.get(chunk).getTimeSlot());
+			assertEquals(chunk * CHUNK, messages.get(chunk).getSharesOffset());
+		}
+	}
+}
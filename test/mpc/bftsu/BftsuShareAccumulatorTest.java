@@ -0,0 +1,126 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Running sums of share chunks in {@link BftsuShareAccumulator}, as the
+ * privacy peer adds them while they arrive.
+ */
+public class BftsuShareAccumulatorTest {
+
+	private static final long FIELD = 2147483647L;
+	/** spans several stripes of the sum */
+	private static final int LENGTH = 200003;
+	private static final int CHUNK = 30011;
+
+	private BftsuShareAccumulator accumulator;
+	private Random random = new Random(3);
+
+	@Before
+	public void setUp() {
+		accumulator = new BftsuShareAccumulator(FIELD, 4);
+	}
+
+	@After
+	public void tearDown() {
+		accumulator.shutdown();
+	}
+
+	@Test
+	public void testChunksSumLikeVectors() throws InterruptedException {
+		long[][] vectors = { randomShares(), randomShares(), randomShares() };
+		accumulator.reset(LENGTH);
+		for (long[] vector : vectors) {
+			addChunks(vector, true);
+		}
+		// an off-heap vector in chunks
+		long[] offHeap = randomShares();
+		for (int from = 0; from < LENGTH; from += CHUNK) {
+			int to = Math.min(LENGTH, from + CHUNK);
+			accumulator.add(BftsuShareBuffer.wrap(Arrays.copyOfRange(offHeap, from, to)), from, true);
+		}
+		assertSum(sum(vectors[0], vectors[1], vectors[2], offHeap));
+	}
+
+	@Test
+	public void testSubtractIncompleteVector() throws InterruptedException {
+		long[] complete = randomShares();
+		long[] incomplete = randomShares();
+		accumulator.reset(LENGTH);
+		addChunks(complete, false);
+		// the chunks of a vector that is rejected before it is complete
+		int[][] ranges = { { CHUNK, 2 * CHUNK }, { 3 * CHUNK, 5 * CHUNK }, { 6 * CHUNK, LENGTH } };
+		for (int[] range : ranges) {
+			accumulator.add(Arrays.copyOfRange(incomplete, range[0], range[1]), range[0]);
+		}
+		BftsuShareBuffer shares = BftsuShareBuffer.wrap(incomplete);
+		for (int[] range : ranges) {
+			accumulator.subtract(shares, range[0], range[1]);
+		}
+		assertSum(complete);
+		// a whole vector
+		accumulator.add(incomplete, 0);
+		accumulator.subtract(shares);
+		assertSum(complete);
+	}
+
+
+	/**
+	 * Adds a vector in chunks (in reverse order, or in order).
+	 */
+	private void addChunks(long[] vector, boolean reverse) {
+		int chunks = (LENGTH + CHUNK - 1) / CHUNK;
+		for (int i = 0; i < chunks; i++) {
+			int from = (reverse ? chunks - 1 - i : i) * CHUNK;
+			accumulator.add(Arrays.copyOfRange(vector, from, Math.min(LENGTH, from + CHUNK)), from);
+		}
+	}
+
+
+	private void assertSum(long[] expected) throws InterruptedException {
+		assertArrayEquals(expected, accumulator.getSum());
+	}
+
+
+	private long[] randomShares() {
+		long[] shares = new long[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			shares[i] = (random.nextLong() >>> 1) % FIELD;
+		}
+		return shares;
+	}
+
+
+	private static long[] sum(long[]... vectors) {
+		long[] sum = new long[LENGTH];
+		for (long[] vector : vectors) {
+			for (int i = 0; i < LENGTH; i++) {
+				sum[i] = (sum[i] + vector[i]) % FIELD;
+			}
+		}
+		return sum;
+	}
+}
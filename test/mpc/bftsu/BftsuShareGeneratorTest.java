@@ -0,0 +1,137 @@
+// Copyright 2010-2012 Martin Burkhart (martibur@ethz.ch)
+//
+// This file is part of SEPIA. SEPIA is free software: you can redistribute
+// it and/or modify it under the terms of the GNU Lesser General Public
+// License as published by the Free Software Foundation, either version 3
+// of the License, or (at your option) any later version.
+//
+// SEPIA is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with SEPIA.  If not, see <http://www.gnu.org/licenses/>.
+
+
+package mpc.bftsu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the shares of {@link BftsuShareGenerator} reconstruct to the
+ * secrets from every set of degree+1 privacy peers, and that the share
+ * buffers are reused.
+ */
+public class BftsuShareGeneratorTest {
+
+	/** a field of every multiplication path: small, 16-bit limbs, double and add */
+	private static final long[] FIELDS = { 2147483647L, 140737488355213L, 9223372036854775783L };
+
+	private final Random random = new Random(11);
+
+	@Test
+	public void testSharesReconstruct() {
+		for (long field : FIELDS) {
+			for (int privacyPeers = 3; privacyPeers <= 7; privacyPeers += 2) {
+				BftsuShareGenerator generator = new BftsuShareGenerator("SHA1PRNG", field, -1, 4);
+				try {
+					generator.setNumberOfPrivacyPeers(privacyPeers);
+					// several ranges
+					long[] secrets = randomSecrets(field, 20001);
+					long[][] shares = generator.generateShares(secrets);
+					assertReconstructs(field, secrets, shares, (privacyPeers - 1) / 2);
+				} finally {
+					generator.shutdown();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testConfiguredDegree() {
+		long field = FIELDS[0];
+		BftsuShareGenerator generator = new BftsuShareGenerator("SHA1PRNG", field, 1, 2);
+		try {
+			generator.setNumberOfPrivacyPeers(5);
+			long[] secrets = randomSecrets(field, 1000);
+			assertReconstructs(field, secrets, generator.generateShares(secrets), 1);
+		} finally {
+			generator.shutdown();
+		}
+	}
+
+	@Test
+	public void testBuffersAreReused() {
+		long field = FIELDS[0];
+		BftsuShareGenerator generator = new BftsuShareGenerator("SHA1PRNG", field, -1, 4);
+		try {
+			generator.setNumberOfPrivacyPeers(3);
+			long[] secrets = randomSecrets(field, 40000);
+			long[][] buffers = generator.prepareShares(secrets.length);
+			// range by range, like the input peer
+			for (int from = 0; from < secrets.length; from += 15000) {
+				generator.generateShares(secrets, from, Math.min(from + 15000, secrets.length));
+			}
+			assertSame(buffers, generator.getShares());
+			assertReconstructs(field, secrets, buffers, 1);
+			long[][] next = generator.generateShares(randomSecrets(field, 40000));
+			assertSame(buffers, next);
+			for (int i = 0; i < buffers.length; i++) {
+				assertSame(buffers[i], next[i]);
+			}
+		} finally {
+			generator.shutdown();
+		}
+	}
+
+
+	/**
+	 * Reconstructs the secrets from every subset of degree+1 or more privacy
+	 * peers, and checks that degree shares alone do not simply reveal them.
+	 */
+	private void assertReconstructs(long field, long[] secrets, long[][] shares, int degree) {
+		int privacyPeers = shares.length;
+		BftsuInterpolation interpolation = new BftsuInterpolation(field);
+		for (int subset = 1; subset < (1 << privacyPeers); subset++) {
+			if (Integer.bitCount(subset) <= degree) {
+				continue;
+			}
+			long[][] rows = new long[Integer.bitCount(subset)][];
+			int[] alphaIndices = new int[rows.length];
+			int row = 0;
+			for (int i = 0; i < privacyPeers; i++) {
+				if ((subset & (1 << i)) != 0) {
+					rows[row] = shares[i];
+					alphaIndices[row] = i;
+					row++;
+				}
+			}
+			assertArrayEquals("field " + field + ", privacy peers " + Integer.toBinaryString(subset),
+					secrets, interpolation.interpolate(rows, alphaIndices));
+		}
+		int equal = 0;
+		for (int j = 0; j < secrets.length; j++) {
+			if (shares[0][j] == secrets[j]) {
+				equal++;
+			}
+		}
+		assertTrue("the shares are random", equal < secrets.length / 100 + 1);
+	}
+
+
+	private long[] randomSecrets(long field, int length) {
+		long[] secrets = new long[length];
+		for (int i = 0; i < length; i++) {
+			// counters, and a few values close to the field size
+			secrets[i] = (i % 10 == 0) ? field - 1 - i : random.nextInt(100);
+		}
+		return secrets;
+	}
+}